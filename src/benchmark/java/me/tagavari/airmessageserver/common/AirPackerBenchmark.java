@@ -0,0 +1,130 @@
+package me.tagavari.airmessageserver.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress-tests the packer pool from many threads at once, checking that no packer is ever leased to two users at the same time
+ * and that no packet is corrupted by another thread's writes, and compares its throughput with allocating a new packer for every packet
+ * Every thread packs packets of varying sizes (occasionally large enough to be dropped from the pool), sometimes leasing a second packer while the first is still open,
+ * and reads every packet back through its view before returning the packer
+ * Usage: AirPackerBenchmark [thread count] [packets per thread]
+ */
+public class AirPackerBenchmark {
+	private static final int smallPayloadMax = 16 * 1024; //16 KiB
+	private static final int largePayloadSize = 3 * 1024 * 1024; //3 MiB, larger than the pool keeps
+	private static final int largePayloadInterval = 500; //How often a thread packs a large payload
+	private static final int nestedInterval = 4; //How often a thread leases a second packer while holding the first
+	
+	public static void main(String[] args) throws Exception {
+		int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int packetCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		
+		Result pooled = run(threadCount, packetCount, true);
+		Result unpooled = run(threadCount, packetCount, false);
+		
+		System.out.println("Threads: " + threadCount + ", packets per thread: " + packetCount);
+		System.out.printf("Pooled: %.0f packets/s, %d double leases, %d corrupted packets%n", pooled.rate, pooled.conflictCount, pooled.corruptionCount);
+		System.out.printf("New packer per packet: %.0f packets/s, %d corrupted packets%n", unpooled.rate, unpooled.corruptionCount);
+		
+		if(pooled.conflictCount > 0 || pooled.corruptionCount > 0 || unpooled.corruptionCount > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static Result run(int threadCount, int packetCount, boolean pooled) throws InterruptedException {
+		Set<AirPacker> leasedPackers = ConcurrentHashMap.newKeySet();
+		AtomicLong conflictCount = new AtomicLong();
+		AtomicLong corruptionCount = new AtomicLong();
+		AtomicLong totalPackets = new AtomicLong();
+		
+		CountDownLatch goLatch = new CountDownLatch(1);
+		CountDownLatch finishLatch = new CountDownLatch(threadCount);
+		for(int i = 0; i < threadCount; i++) {
+			int threadID = i;
+			Thread thread = new Thread(() -> {
+				Random random = new Random(threadID);
+				byte[] payload = new byte[largePayloadSize];
+				try {
+					goLatch.await();
+					for(int j = 0; j < packetCount; j++) {
+						try(AirPacker packer = lease(pooled, leasedPackers, conflictCount)) {
+							int length = j % largePayloadInterval == 0 ? largePayloadSize : random.nextInt(smallPayloadMax);
+							pack(packer, threadID, j, payload, length);
+							
+							//Packing another packet while this one is still open
+							if(j % nestedInterval == 0) {
+								try(AirPacker nestedPacker = lease(pooled, leasedPackers, conflictCount)) {
+									int nestedLength = random.nextInt(smallPayloadMax);
+									pack(nestedPacker, threadID, -j, payload, nestedLength);
+									if(!verify(nestedPacker.toByteBuffer(), threadID, -j, nestedLength)) corruptionCount.incrementAndGet();
+									leasedPackers.remove(nestedPacker);
+								}
+								totalPackets.incrementAndGet();
+							}
+							
+							//The outer packet has to be intact after the nested packer was returned
+							if(!verify(packer.toByteBuffer(), threadID, j, length)) corruptionCount.incrementAndGet();
+							leasedPackers.remove(packer);
+						}
+						totalPackets.incrementAndGet();
+					}
+				} catch(InterruptedException exception) {
+					exception.printStackTrace();
+				} finally {
+					finishLatch.countDown();
+				}
+			}, "Packer benchmark " + i);
+			thread.start();
+		}
+		
+		long startTime = System.nanoTime();
+		goLatch.countDown();
+		finishLatch.await();
+		double seconds = (System.nanoTime() - startTime) / (double) TimeUnit.SECONDS.toNanos(1);
+		
+		return new Result(totalPackets.get() / seconds, conflictCount.get(), corruptionCount.get());
+	}
+	
+	private static AirPacker lease(boolean pooled, Set<AirPacker> leasedPackers, AtomicLong conflictCount) {
+		if(!pooled) return new AirPacker(4 * 1024);
+		
+		AirPacker packer = AirPacker.get();
+		if(!leasedPackers.add(packer)) conflictCount.incrementAndGet();
+		return packer;
+	}
+	
+	/**
+	 * Packs a packet whose contents can be checked: [int thread ID][int sequence][payload filled with a byte derived from both]
+	 */
+	private static void pack(AirPacker packer, int threadID, int sequence, byte[] payload, int length) {
+		packer.packInt(threadID);
+		packer.packInt(sequence);
+		Arrays.fill(payload, 0, length, fillByte(threadID, sequence));
+		packer.packPayload(payload, length);
+	}
+	
+	private static boolean verify(ByteBuffer view, int threadID, int sequence, int length) {
+		if(view.remaining() != Integer.BYTES * 3 + length) return false;
+		if(view.getInt() != threadID || view.getInt() != sequence || view.getInt() != length) return false;
+		
+		byte expected = fillByte(threadID, sequence);
+		while(view.hasRemaining()) {
+			if(view.get() != expected) return false;
+		}
+		return true;
+	}
+	
+	private static byte fillByte(int threadID, int sequence) {
+		return (byte) (threadID * 31 + sequence);
+	}
+	
+	private record Result(double rate, long conflictCount, long corruptionCount) {}
+}
\ No newline at end of file
@@ -0,0 +1,80 @@
+package me.tagavari.airmessageserver.connection;
+
+import me.tagavari.airmessageserver.server.PreferencesManager;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decrypting and encrypting messages when the key has to be derived from the password (cold), against when the derived key is cached
+ * Cold decryption uses messages that were each encrypted with a different salt, and clears the key cache before each one
+ * Usage: EncryptionBenchmark [message count] [message size]
+ */
+public class EncryptionBenchmark {
+	private static final String password = "benchmark-password";
+	
+	public static void main(String[] args) throws Exception {
+		int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int messageSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		
+		//Setting the password, as the preferences aren't loaded
+		PreferencesManager.overridePrefPassword(password);
+		
+		byte[] content = new byte[messageSize];
+		Arrays.fill(content, (byte) 'a');
+		
+		//Encrypting messages with a new salt each, and a batch with the same salt
+		byte[][] coldMessages = new byte[messageCount][];
+		long coldEncryptTime = 0;
+		for(int i = 0; i < messageCount; i++) {
+			EncryptionHelper.rotateSenderKey();
+			long startTime = System.nanoTime();
+			coldMessages[i] = EncryptionHelper.encrypt(content);
+			coldEncryptTime += System.nanoTime() - startTime;
+		}
+		
+		byte[][] cachedMessages = new byte[messageCount][];
+		long cachedEncryptTime = 0;
+		for(int i = 0; i < messageCount; i++) {
+			long startTime = System.nanoTime();
+			cachedMessages[i] = EncryptionHelper.encrypt(content);
+			cachedEncryptTime += System.nanoTime() - startTime;
+		}
+		
+		//Decrypting each message with an empty key cache
+		long coldDecryptTime = 0;
+		for(byte[] message : coldMessages) {
+			EncryptionHelper.invalidateKeyCache();
+			long startTime = System.nanoTime();
+			verify(EncryptionHelper.decrypt(message), content);
+			coldDecryptTime += System.nanoTime() - startTime;
+		}
+		
+		//Decrypting messages that share a cached key
+		EncryptionHelper.decrypt(cachedMessages[0]);
+		long cachedDecryptTime = 0;
+		for(byte[] message : cachedMessages) {
+			long startTime = System.nanoTime();
+			verify(EncryptionHelper.decrypt(message), content);
+			cachedDecryptTime += System.nanoTime() - startTime;
+		}
+		
+		//Printing the results
+		System.out.println("Messages: " + messageCount + ", size: " + messageSize + " bytes");
+		printResult("Encrypt, new salt", coldEncryptTime, messageCount);
+		printResult("Encrypt, cached key", cachedEncryptTime, messageCount);
+		printResult("Decrypt, cold key cache", coldDecryptTime, messageCount);
+		printResult("Decrypt, cached key", cachedDecryptTime, messageCount);
+		System.out.printf("Cached decryption is %.0fx faster%n", (double) coldDecryptTime / cachedDecryptTime);
+	}
+	
+	private static void verify(byte[] result, byte[] expected) throws GeneralSecurityException {
+		if(!Arrays.equals(result, expected)) throw new GeneralSecurityException("Decrypted data doesn't match");
+	}
+	
+	private static void printResult(String name, long totalTime, int count) {
+		double average = totalTime / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+		System.out.printf("%s: %.3f ms per message, %.0f messages/s%n", name, average, 1000 / average);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,428 @@
+package me.tagavari.airmessageserver.connection.connect;
+
+import me.tagavari.airmessageserver.common.AirPacker;
+import me.tagavari.airmessageserver.common.AirUnpacker;
+import me.tagavari.airmessageserver.connection.CommConst;
+import me.tagavari.airmessageserver.connection.DataProxyListener;
+import me.tagavari.airmessageserver.connection.SendWindow;
+import me.tagavari.airmessageserver.exception.LargeAllocationException;
+import me.tagavari.airmessageserver.server.PropertiesManager;
+import me.tagavari.airmessageserver.server.ServerState;
+
+import java.nio.BufferUnderflowException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the Connect proxy against a local relay simulator, and measures request latency, real-time update latency and throughput with many simulated clients
+ * The server side is a stand-in that speaks the client protocol's handshake and answers requests with synthetic data, as the real request handlers need the Messages database
+ * Interactive clients send a mix of pings, conversation list requests and thread requests, while bulk clients download attachments back to back
+ * The proxy's outbound queue wait times are printed per priority class, to show how long urgent messages wait behind bulk transfers
+ * Usage: ConnectProxyBenchmark [client count] [bulk client count] [duration in seconds] [port]
+ */
+public class ConnectProxyBenchmark {
+	private static final String clientThreadPrefix = "Benchmark client ";
+	
+	private static final long requestTimeout = 30 * 1000; //30 seconds
+	private static final long realtimeInterval = 100; //How often the stand-in server broadcasts a message update
+	private static final int conversationResponseSize = 8 * 1024; //8 KiB
+	private static final int threadResponseSize = 32 * 1024; //32 KiB
+	private static final int attachmentSize = 16 * 1024 * 1024; //16 MiB
+	private static final int attachmentChunkSize = 1024 * 1024; //1 MiB
+	
+	private static final String kindPing = "ping";
+	private static final String kindConversations = "conversations";
+	private static final String kindThread = "thread";
+	private static final String kindDownload = "download";
+	private static final String kindRealtime = "real-time update";
+	
+	public static void main(String[] args) throws Exception {
+		int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int bulkClientCount = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int duration = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 1361;
+		
+		//Quieting the logger, and pointing the proxy at the relay
+		Logger.getGlobal().setLevel(Level.WARNING);
+		System.setProperty(PropertiesManager.connectEndpointOverrideProperty, "ws://127.0.0.1:" + port);
+		
+		//Starting the relay
+		RelaySimulator relay = new RelaySimulator(port);
+		relay.start();
+		if(!relay.awaitStart(10, TimeUnit.SECONDS)) throw new IllegalStateException("Relay failed to start");
+		
+		//Starting the proxy
+		DataProxyConnect proxy = new DataProxyConnect("benchmark");
+		StandInServer server = new StandInServer(proxy);
+		proxy.addMessageListener(server);
+		proxy.startServer();
+		if(!server.startLatch.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("Proxy failed to connect to the relay");
+		
+		//Running the clients
+		Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+		CountDownLatch readyLatch = new CountDownLatch(clientCount);
+		CountDownLatch goLatch = new CountDownLatch(1);
+		CountDownLatch finishLatch = new CountDownLatch(clientCount);
+		long[] failureCount = new long[1];
+		for(int i = 0; i < clientCount; i++) {
+			boolean isBulk = i < bulkClientCount;
+			RelaySimulator.SimulatedClient client = relay.openClient();
+			Thread thread = new Thread(() -> {
+				ClientWorkload workload = new ClientWorkload(client, isBulk);
+				try {
+					workload.authenticate();
+					readyLatch.countDown();
+					goLatch.await();
+					workload.run(System.nanoTime() + TimeUnit.SECONDS.toNanos(duration));
+				} catch(Exception exception) {
+					exception.printStackTrace();
+					synchronized(failureCount) {
+						failureCount[0]++;
+					}
+				} finally {
+					readyLatch.countDown();
+					workload.latencies.forEach((kind, values) -> latencies.computeIfAbsent(kind, key -> Collections.synchronizedList(new ArrayList<>())).addAll(values));
+					synchronized(failureCount) {
+						failureCount[0] += workload.timeoutCount;
+					}
+					finishLatch.countDown();
+				}
+			}, clientThreadPrefix + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		readyLatch.await();
+		
+		//Starting the real-time updates
+		long bytesBefore = relay.getBytesFromServer();
+		ScheduledExecutorService realtimeService = Executors.newSingleThreadScheduledExecutor();
+		realtimeService.scheduleAtFixedRate(server::broadcastMessageUpdate, realtimeInterval, realtimeInterval, TimeUnit.MILLISECONDS);
+		
+		long startTime = System.nanoTime();
+		goLatch.countDown();
+		finishLatch.await();
+		long elapsed = System.nanoTime() - startTime;
+		realtimeService.shutdownNow();
+		
+		//Printing the results
+		double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+		long requestCount = latencies.entrySet().stream().filter(entry -> !entry.getKey().equals(kindRealtime)).mapToLong(entry -> entry.getValue().size()).sum();
+		System.out.println("Clients: " + clientCount + " (" + bulkClientCount + " downloading), duration: " + duration + " s");
+		System.out.printf("Throughput: %.0f requests/s, %.2f MiB/s from the server%n", requestCount / seconds, (relay.getBytesFromServer() - bytesBefore) / seconds / (1024 * 1024));
+		for(String kind : new String[]{kindPing, kindConversations, kindThread, kindDownload, kindRealtime}) {
+			List<Long> values = latencies.get(kind);
+			if(values == null) continue;
+			long[] sortedValues = values.stream().mapToLong(Long::longValue).sorted().toArray();
+			System.out.printf("%s: %d, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", kind, sortedValues.length, percentile(sortedValues, 0.5), percentile(sortedValues, 0.99), percentile(sortedValues, 1));
+		}
+		System.out.println("Failed or timed out: " + failureCount[0]);
+		System.out.println("Outbound queue wait by priority class:\n" + proxy.getOutboundStatistics());
+		
+		//Cleaning up
+		proxy.removeMessageListener(server);
+		proxy.stopServer();
+		relay.stop();
+		System.exit(0);
+	}
+	
+	private static double percentile(long[] sortedValues, double percentile) {
+		if(sortedValues.length == 0) return 0;
+		int index = Math.min((int) Math.ceil(percentile * sortedValues.length) - 1, sortedValues.length - 1);
+		return sortedValues[Math.max(index, 0)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	/**
+	 * Drives a simulated client through the handshake and a request mix, recording how long each request takes
+	 */
+	private static class ClientWorkload {
+		private final RelaySimulator.SimulatedClient client;
+		private final boolean isBulk;
+		private final Random random = new Random();
+		private short nextRequestID = 0;
+		
+		final Map<String, List<Long>> latencies = new HashMap<>();
+		long timeoutCount = 0;
+		
+		ClientWorkload(RelaySimulator.SimulatedClient client, boolean isBulk) {
+			this.client = client;
+			this.isBulk = isBulk;
+		}
+		
+		void authenticate() throws InterruptedException, LargeAllocationException {
+			//Waiting for the server's information
+			if(awaitMessage(CommConst.nhtInformation, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeout)) == null) {
+				throw new IllegalStateException("Server didn't send its information");
+			}
+			
+			//Registering without a password
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(CommConst.nhtAuthentication);
+				packer.packString(UUID.randomUUID().toString()); //Installation ID
+				packer.packString("Benchmark client " + client.getConnectionID()); //Client name
+				packer.packString("benchmark"); //Platform ID
+				client.send(packer.toByteArray());
+			}
+			
+			AirUnpacker unpacker = awaitMessage(CommConst.nhtAuthentication, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeout));
+			if(unpacker == null || unpacker.unpackInt() != CommConst.nstAuthenticationOK) throw new IllegalStateException("Authentication failed");
+		}
+		
+		void run(long deadline) throws InterruptedException, LargeAllocationException {
+			while(System.nanoTime() < deadline && !client.isClosed()) {
+				if(isBulk) {
+					download();
+				} else {
+					//Picking a request
+					int choice = random.nextInt(10);
+					if(choice < 2) ping();
+					else if(choice < 6) requestConversations();
+					else requestThread();
+					
+					//Waiting a moment, as a user would
+					receiveUpdates(random.nextInt(100));
+				}
+			}
+		}
+		
+		private void ping() throws InterruptedException, LargeAllocationException {
+			long startTime = System.nanoTime();
+			sendHeaderOnly(CommConst.nhtPing);
+			recordResponse(kindPing, startTime, awaitMessage(CommConst.nhtPong, startTime + TimeUnit.MILLISECONDS.toNanos(requestTimeout)));
+		}
+		
+		private void requestConversations() throws InterruptedException, LargeAllocationException {
+			long startTime = System.nanoTime();
+			sendHeaderOnly(CommConst.nhtLiteConversationRetrieval);
+			recordResponse(kindConversations, startTime, awaitMessage(CommConst.nhtLiteConversationRetrieval, startTime + TimeUnit.MILLISECONDS.toNanos(requestTimeout)));
+		}
+		
+		private void requestThread() throws InterruptedException, LargeAllocationException {
+			long startTime = System.nanoTime();
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(CommConst.nhtLiteThreadRetrieval);
+				packer.packString("benchmark-chat-" + random.nextInt(20)); //Chat GUID
+				packer.packBoolean(false); //No first message ID
+				client.send(packer.toByteArray());
+			}
+			recordResponse(kindThread, startTime, awaitMessage(CommConst.nhtLiteThreadRetrieval, startTime + TimeUnit.MILLISECONDS.toNanos(requestTimeout)));
+		}
+		
+		private void download() throws InterruptedException, LargeAllocationException {
+			long startTime = System.nanoTime();
+			long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(requestTimeout);
+			short requestID = nextRequestID++;
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(CommConst.nhtAttachmentReq);
+				packer.packShort(requestID);
+				packer.packInt(attachmentChunkSize);
+				packer.packString("benchmark-file"); //File GUID
+				client.send(packer.toByteArray());
+			}
+			
+			//Reading chunks until the last one
+			while(true) {
+				AirUnpacker unpacker = awaitMessage(CommConst.nhtAttachmentReq, deadline);
+				if(unpacker == null) {
+					timeoutCount++;
+					return;
+				}
+				if(unpacker.unpackShort() != requestID) continue;
+				unpacker.unpackInt(); //Request index
+				if(unpacker.unpackBoolean()) break; //Is last
+			}
+			
+			latencies.computeIfAbsent(kindDownload, key -> new ArrayList<>()).add(System.nanoTime() - startTime);
+		}
+		
+		private void sendHeaderOnly(int header) {
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(header);
+				client.send(packer.toByteArray());
+			}
+		}
+		
+		private void recordResponse(String kind, long startTime, AirUnpacker response) {
+			if(response == null) timeoutCount++;
+			else latencies.computeIfAbsent(kind, key -> new ArrayList<>()).add(System.nanoTime() - startTime);
+		}
+		
+		/**
+		 * Handles real-time updates for a period of time
+		 */
+		private void receiveUpdates(long time) throws InterruptedException, LargeAllocationException {
+			awaitMessage(-1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time));
+		}
+		
+		/**
+		 * Waits for a message of a certain type, handling any real-time updates that arrive in the meantime
+		 * @return An unpacker positioned after the message's type, or NULL if the message didn't arrive before the deadline
+		 */
+		private AirUnpacker awaitMessage(int messageType, long deadline) throws InterruptedException, LargeAllocationException {
+			while(true) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0 || client.isClosed()) return null;
+				
+				byte[] content = client.receive(remaining, TimeUnit.NANOSECONDS);
+				if(content == null) return null;
+				
+				try {
+					AirUnpacker unpacker = new AirUnpacker(content);
+					int type = unpacker.unpackInt();
+					if(type == messageType) return unpacker;
+					
+					//Recording how long the update took to arrive
+					if(type == CommConst.nhtMessageUpdate) {
+						unpacker.unpackArrayHeader();
+						latencies.computeIfAbsent(kindRealtime, key -> new ArrayList<>()).add(System.nanoTime() - unpacker.unpackLong());
+					}
+				} catch(BufferUnderflowException exception) {
+					exception.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stands in for the communications manager, answering the benchmark clients' requests with synthetic data
+	 */
+	private static class StandInServer implements DataProxyListener<ClientSocket> {
+		private final DataProxyConnect proxy;
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		private final ExecutorService downloadExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "Stand-in download");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		StandInServer(DataProxyConnect proxy) {
+			this.proxy = proxy;
+		}
+		
+		/**
+		 * Sends a message update to all clients, stamped with the time it was sent
+		 */
+		void broadcastMessageUpdate() {
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(CommConst.nhtMessageUpdate);
+				packer.packArrayHeader(1);
+				packer.packLong(System.nanoTime());
+				packer.packPayload(new byte[512]);
+				proxy.sendMessage(null, packer.toByteArray(), true);
+			}
+		}
+		
+		@Override
+		public void onStart() {
+			startLatch.countDown();
+		}
+		
+		@Override
+		public void onPause(ServerState code) {
+			System.err.println("Server paused: " + code);
+		}
+		
+		@Override
+		public void onStop(ServerState code) {
+			if(code != ServerState.STOPPED) System.err.println("Server stopped: " + code);
+		}
+		
+		@Override
+		public void onOpen(ClientSocket client) {
+			//Sending the server's information, without a transmission check
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(CommConst.nhtInformation);
+				packer.packInt(CommConst.mmCommunicationsVersion);
+				packer.packInt(CommConst.mmCommunicationsSubVersion);
+				packer.packBoolean(false);
+				proxy.sendMessage(client, packer.toByteArray(), false);
+			}
+		}
+		
+		@Override
+		public void onClose(ClientSocket client) {
+		
+		}
+		
+		@Override
+		public void onMessage(ClientSocket client, byte[] content, boolean wasEncrypted) {
+			AirUnpacker unpacker = new AirUnpacker(content);
+			try {
+				switch(unpacker.unpackInt()) {
+					case CommConst.nhtPing -> sendHeaderOnly(client, CommConst.nhtPong);
+					case CommConst.nhtAuthentication -> {
+						client.setRegistration(unpacker.unpackString(), unpacker.unpackString(), unpacker.unpackString());
+						client.setClientRegistered(true);
+						
+						try(AirPacker packer = AirPacker.get()) {
+							packer.packInt(CommConst.nhtAuthentication);
+							packer.packInt(CommConst.nstAuthenticationOK);
+							packer.packString("benchmark-server"); //Installation ID
+							packer.packString("Benchmark"); //Device name
+							packer.packString(System.getProperty("os.version")); //System version
+							packer.packString("benchmark"); //Software version
+							proxy.sendMessage(client, packer.toByteArray(), true);
+						}
+					}
+					case CommConst.nhtLiteConversationRetrieval -> sendPadded(client, CommConst.nhtLiteConversationRetrieval, null, conversationResponseSize);
+					case CommConst.nhtLiteThreadRetrieval -> sendPadded(client, CommConst.nhtLiteThreadRetrieval, unpacker.unpackString(), threadResponseSize);
+					case CommConst.nhtAttachmentReq -> {
+						short requestID = unpacker.unpackShort();
+						int chunkSize = unpacker.unpackInt();
+						downloadExecutor.execute(() -> streamAttachment(client, requestID, chunkSize));
+					}
+				}
+			} catch(BufferUnderflowException | LargeAllocationException exception) {
+				exception.printStackTrace();
+			}
+		}
+		
+		private void sendHeaderOnly(ClientSocket client, int header) {
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(header);
+				proxy.sendMessage(client, packer.toByteArray(), false);
+			}
+		}
+		
+		private void sendPadded(ClientSocket client, int header, String chatGUID, int size) {
+			try(AirPacker packer = AirPacker.get()) {
+				packer.packInt(header);
+				if(chatGUID != null) {
+					packer.packString(chatGUID);
+					packer.packBoolean(false);
+				}
+				packer.packPayload(new byte[size]);
+				proxy.sendMessage(client, packer.toByteArray(), true);
+			}
+		}
+		
+		/**
+		 * Sends a synthetic attachment in chunks, waiting for room in the client's send window
+		 * The chunks only contain the request ID, the chunk index, whether this is the last chunk, and filler data
+		 */
+		private void streamAttachment(ClientSocket client, short requestID, int chunkSize) {
+			SendWindow sendWindow = client.getSendWindow();
+			int chunkCount = (attachmentSize + chunkSize - 1) / chunkSize;
+			for(int i = 0; i < chunkCount; i++) {
+				byte[] data;
+				try(AirPacker packer = AirPacker.get()) {
+					packer.packInt(CommConst.nhtAttachmentReq);
+					packer.packShort(requestID);
+					packer.packInt(i);
+					packer.packBoolean(i == chunkCount - 1);
+					packer.packPayload(new byte[chunkSize]);
+					data = packer.toByteArray();
+				}
+				
+				long length = data.length;
+				try {
+					if(!sendWindow.acquire(length)) return;
+				} catch(InterruptedException exception) {
+					return;
+				}
+				proxy.sendMessage(client, data, true, () -> sendWindow.release(length));
+			}
+		}
+	}
+}
\ No newline at end of file
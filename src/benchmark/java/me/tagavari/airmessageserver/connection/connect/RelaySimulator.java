@@ -0,0 +1,259 @@
+package me.tagavari.airmessageserver.connection.connect;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for the Connect relay, for exercising the Connect proxy without the real service
+ * The simulator accepts a single server connection, and relays messages between it and simulated clients that are driven from the same process
+ * Relay messages are framed with the relay's protocol ({@link NHT}), and client message bodies are passed through unchanged
+ */
+public class RelaySimulator extends WebSocketServer {
+	private final CountDownLatch startLatch = new CountDownLatch(1);
+	private final Object serverLock = new Object();
+	private WebSocket serverConnection = null;
+	
+	private final Map<Integer, SimulatedClient> clients = new ConcurrentHashMap<>();
+	private final AtomicInteger nextConnectionID = new AtomicInteger(1);
+	
+	//Creating the statistics values
+	private final LongAdder bytesToServer = new LongAdder();
+	private final LongAdder bytesFromServer = new LongAdder();
+	private final LongAdder pushNotificationCount = new LongAdder();
+	
+	/**
+	 * Creates a new relay simulator, which listens on the loopback address
+	 * @param port The port to listen on
+	 */
+	public RelaySimulator(int port) {
+		super(new InetSocketAddress("127.0.0.1", port));
+		setReuseAddr(true);
+	}
+	
+	/**
+	 * Waits for the simulator to start listening
+	 * @return TRUE if the simulator started before the timeout
+	 */
+	public boolean awaitStart(long timeout, TimeUnit unit) throws InterruptedException {
+		return startLatch.await(timeout, unit);
+	}
+	
+	/**
+	 * Waits for a server to connect
+	 * @return TRUE if a server is connected
+	 */
+	public boolean awaitServer(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized(serverLock) {
+			while(serverConnection == null) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) return false;
+				TimeUnit.NANOSECONDS.timedWait(serverLock, remaining);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Connects a new simulated client to the server
+	 */
+	public SimulatedClient openClient() {
+		SimulatedClient client = new SimulatedClient(nextConnectionID.getAndIncrement());
+		clients.put(client.connectionID, client);
+		
+		ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES * 2);
+		byteBuffer.putInt(NHT.nhtServerOpen);
+		byteBuffer.putInt(client.connectionID);
+		sendToServer(byteBuffer.array());
+		
+		return client;
+	}
+	
+	/**
+	 * Gets the amount of bytes relayed from clients to the server
+	 */
+	public long getBytesToServer() {
+		return bytesToServer.sum();
+	}
+	
+	/**
+	 * Gets the amount of bytes received from the server, including relay framing
+	 */
+	public long getBytesFromServer() {
+		return bytesFromServer.sum();
+	}
+	
+	/**
+	 * Gets the amount of push notifications the server has requested
+	 */
+	public long getPushNotificationCount() {
+		return pushNotificationCount.sum();
+	}
+	
+	@Override
+	public void onStart() {
+		startLatch.countDown();
+	}
+	
+	@Override
+	public void onOpen(WebSocket connection, ClientHandshake handshake) {
+		synchronized(serverLock) {
+			//Only accepting one server at a time
+			if(serverConnection != null) {
+				connection.close(NHT.closeCodeOtherLocation);
+				return;
+			}
+			
+			serverConnection = connection;
+			serverLock.notifyAll();
+		}
+		
+		ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES);
+		byteBuffer.putInt(NHT.nhtConnectionOK);
+		connection.send(byteBuffer.array());
+	}
+	
+	@Override
+	public void onClose(WebSocket connection, int code, String reason, boolean remote) {
+		synchronized(serverLock) {
+			if(connection != serverConnection) return;
+			serverConnection = null;
+		}
+		
+		//Disconnecting all clients along with the server
+		for(SimulatedClient client : clients.values()) client.closed = true;
+		clients.clear();
+	}
+	
+	@Override
+	public void onMessage(WebSocket connection, String message) {
+	
+	}
+	
+	@Override
+	public void onMessage(WebSocket connection, ByteBuffer message) {
+		bytesFromServer.add(message.remaining());
+		
+		try {
+			int type = message.getInt();
+			switch(type) {
+				case NHT.nhtServerProxy -> {
+					SimulatedClient client = clients.get(message.getInt());
+					if(client != null) client.deliver(readContent(message));
+				}
+				case NHT.nhtServerProxyBroadcast -> {
+					byte[] content = readContent(message);
+					for(SimulatedClient client : clients.values()) client.deliver(content);
+				}
+				case NHT.nhtServerClose -> {
+					SimulatedClient client = clients.remove(message.getInt());
+					if(client != null) client.closed = true;
+				}
+				case NHT.nhtServerNotifyPush -> pushNotificationCount.increment();
+			}
+		} catch(BufferUnderflowException exception) {
+			exception.printStackTrace();
+		}
+	}
+	
+	@Override
+	public void onError(WebSocket connection, Exception exception) {
+		exception.printStackTrace();
+	}
+	
+	/**
+	 * Reads a message body, skipping over the encryption marker
+	 */
+	private static byte[] readContent(ByteBuffer message) {
+		message.get();
+		byte[] content = new byte[message.remaining()];
+		message.get(content);
+		return content;
+	}
+	
+	private void sendToServer(byte[] data) {
+		WebSocket connection;
+		synchronized(serverLock) {
+			connection = serverConnection;
+		}
+		if(connection == null || !connection.isOpen()) return;
+		
+		bytesToServer.add(data.length);
+		connection.send(data);
+	}
+	
+	/**
+	 * A client connected through the simulated relay
+	 * Messages are sent unencrypted, as a client that has encryption disabled
+	 */
+	public class SimulatedClient {
+		private final int connectionID;
+		private final BlockingQueue<byte[]> inbox = new LinkedBlockingQueue<>();
+		private volatile boolean closed = false;
+		
+		private SimulatedClient(int connectionID) {
+			this.connectionID = connectionID;
+		}
+		
+		public int getConnectionID() {
+			return connectionID;
+		}
+		
+		/**
+		 * Sends a message to the server
+		 * @param content The message's body
+		 */
+		public void send(byte[] content) {
+			if(closed) return;
+			
+			ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES * 2 + 1 + content.length);
+			byteBuffer.putInt(NHT.nhtServerProxy);
+			byteBuffer.putInt(connectionID);
+			byteBuffer.put((byte) -102); //The client has encryption disabled
+			byteBuffer.put(content);
+			sendToServer(byteBuffer.array());
+		}
+		
+		/**
+		 * Waits for the next message from the server
+		 * @return The message's body, or NULL if no message arrived before the timeout
+		 */
+		public byte[] receive(long timeout, TimeUnit unit) throws InterruptedException {
+			return inbox.poll(timeout, unit);
+		}
+		
+		/**
+		 * Gets whether this client has been disconnected
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
+		
+		/**
+		 * Disconnects this client from the server
+		 */
+		public void close() {
+			if(closed) return;
+			closed = true;
+			clients.remove(connectionID);
+			
+			ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES * 2);
+			byteBuffer.putInt(NHT.nhtServerClose);
+			byteBuffer.putInt(connectionID);
+			sendToServer(byteBuffer.array());
+		}
+		
+		private void deliver(byte[] content) {
+			inbox.add(content);
+		}
+	}
+}
\ No newline at end of file
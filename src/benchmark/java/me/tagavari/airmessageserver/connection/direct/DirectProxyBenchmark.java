@@ -0,0 +1,178 @@
+package me.tagavari.airmessageserver.connection.direct;
+
+import me.tagavari.airmessageserver.connection.ClientRegistration;
+import me.tagavari.airmessageserver.connection.DataProxy;
+import me.tagavari.airmessageserver.connection.DataProxyListener;
+import me.tagavari.airmessageserver.server.ServerState;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a local echo server on a direct connection proxy, and measures round trip latency and throughput with many simulated clients
+ * Usage: DirectProxyBenchmark [nio|threaded] [client count] [messages per client] [message size] [port]
+ */
+public class DirectProxyBenchmark {
+	private static final String clientThreadPrefix = "Benchmark client ";
+	
+	public static void main(String[] args) throws Exception {
+		String transport = args.length > 0 ? args[0] : "nio";
+		int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int messageCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int messageSize = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+		int port = args.length > 4 ? Integer.parseInt(args[4]) : 1360;
+		
+		//Quieting the logger
+		Logger.getGlobal().setLevel(Level.WARNING);
+		
+		int baselineThreads = countServerThreads(false);
+		int baselineTimerThreads = countServerThreads(true);
+		
+		//Starting the server
+		DataProxy<? extends ClientRegistration> proxy = "threaded".equals(transport) ? new DataProxyTCP(port) : new DataProxyNIO(port);
+		CountDownLatch startLatch = new CountDownLatch(1);
+		CountDownLatch connectLatch = new CountDownLatch(clientCount);
+		addEchoListener(proxy, startLatch, connectLatch);
+		proxy.startServer();
+		if(!startLatch.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("Server failed to start");
+		
+		//Connecting the clients
+		List<Socket> sockets = new ArrayList<>(clientCount);
+		for(int i = 0; i < clientCount; i++) {
+			Socket socket = new Socket("127.0.0.1", port);
+			socket.setTcpNoDelay(true);
+			sockets.add(socket);
+		}
+		if(!connectLatch.await(30, TimeUnit.SECONDS)) throw new IllegalStateException("Clients failed to connect");
+		
+		//Running the clients
+		long[][] latencies = new long[clientCount][messageCount];
+		CountDownLatch readyLatch = new CountDownLatch(clientCount);
+		CountDownLatch goLatch = new CountDownLatch(1);
+		CountDownLatch finishLatch = new CountDownLatch(clientCount);
+		for(int i = 0; i < clientCount; i++) {
+			Socket socket = sockets.get(i);
+			long[] clientLatencies = latencies[i];
+			Thread thread = new Thread(() -> {
+				try {
+					readyLatch.countDown();
+					goLatch.await();
+					runClient(socket, messageSize, clientLatencies);
+				} catch(IOException | InterruptedException exception) {
+					exception.printStackTrace();
+				} finally {
+					finishLatch.countDown();
+				}
+			}, clientThreadPrefix + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		readyLatch.await();
+		
+		int serverThreads = countServerThreads(false) - baselineThreads;
+		int timerThreads = countServerThreads(true) - baselineTimerThreads;
+		
+		long startTime = System.nanoTime();
+		goLatch.countDown();
+		finishLatch.await();
+		long elapsed = System.nanoTime() - startTime;
+		
+		//Printing the results
+		long[] sortedLatencies = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+		long totalMessages = (long) clientCount * messageCount;
+		double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+		System.out.println("Transport: " + proxy.getClass().getSimpleName());
+		System.out.println("Clients: " + clientCount + ", messages per client: " + messageCount + ", message size: " + messageSize + " bytes");
+		System.out.println("Server threads: " + serverThreads + " (plus " + timerThreads + " client timer threads)");
+		System.out.printf("Throughput: %.0f messages/s, %.2f MiB/s%n", totalMessages / seconds, totalMessages * messageSize * 2 / seconds / (1024 * 1024));
+		System.out.printf("Round trip latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", percentile(sortedLatencies, 0.5), percentile(sortedLatencies, 0.99), percentile(sortedLatencies, 1));
+		
+		//Cleaning up
+		for(Socket socket : sockets) socket.close();
+		proxy.stopServer();
+		System.exit(0);
+	}
+	
+	private static <C extends ClientRegistration> void addEchoListener(DataProxy<C> proxy, CountDownLatch startLatch, CountDownLatch connectLatch) {
+		proxy.addMessageListener(new DataProxyListener<>() {
+			@Override
+			public void onStart() {
+				startLatch.countDown();
+			}
+			
+			@Override
+			public void onPause(ServerState code) {
+			
+			}
+			
+			@Override
+			public void onStop(ServerState code) {
+				if(code != ServerState.STOPPED) System.err.println("Server stopped: " + code);
+			}
+			
+			@Override
+			public void onOpen(C client) {
+				connectLatch.countDown();
+			}
+			
+			@Override
+			public void onClose(C client) {
+			
+			}
+			
+			@Override
+			public void onMessage(C client, byte[] content, boolean wasEncrypted) {
+				proxy.sendMessage(client, content, false);
+			}
+		});
+	}
+	
+	private static void runClient(Socket socket, int messageSize, long[] latencies) throws IOException {
+		DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+		DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+		byte[] payload = new byte[messageSize];
+		
+		for(int i = 0; i < latencies.length; i++) {
+			long startTime = System.nanoTime();
+			
+			//Writing the message
+			outputStream.writeInt(payload.length);
+			outputStream.writeBoolean(false);
+			outputStream.write(payload);
+			outputStream.flush();
+			
+			//Waiting for the echo
+			int contentLen = inputStream.readInt();
+			inputStream.readBoolean();
+			inputStream.readFully(new byte[contentLen]);
+			
+			latencies[i] = System.nanoTime() - startTime;
+		}
+	}
+	
+	/**
+	 * Counts the threads that aren't simulated clients
+	 * @param timers TRUE to count the threads of {@link java.util.Timer}s, or FALSE to count all other threads
+	 */
+	private static int countServerThreads(boolean timers) {
+		return (int) Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> !thread.getName().startsWith(clientThreadPrefix))
+				.filter(thread -> thread.getName().startsWith("Timer-") == timers)
+				.count();
+	}
+	
+	private static double percentile(long[] sortedValues, double percentile) {
+		if(sortedValues.length == 0) return 0;
+		int index = Math.min((int) Math.ceil(percentile * sortedValues.length) - 1, sortedValues.length - 1);
+		return sortedValues[Math.max(index, 0)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
\ No newline at end of file
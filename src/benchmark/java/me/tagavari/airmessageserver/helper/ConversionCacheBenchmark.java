@@ -0,0 +1,235 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks the conversion cache with a stand-in converter, so that it can run on systems without the macOS conversion tools
+ * Files are converted through {@link ConversionHelper}, checking that concurrent requests for the same file share one conversion,
+ * that the least recently used conversions are evicted once the cache grows past its budget, that files that are being read are never evicted,
+ * and that unfinished conversions left behind by an earlier run are cleaned up
+ * Usage: ConversionCacheBenchmark [waiter count] [conversion time]
+ */
+public class ConversionCacheBenchmark {
+	private static final int fileSize = 64 * 1024; //64 KiB
+	private static final int budgetFiles = 3; //The amount of converted files that fit in the cache's budget
+	
+	public static void main(String[] args) throws Exception {
+		int waiterCount = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		long conversionTime = args.length > 1 ? Long.parseLong(args[1]) : 200;
+		
+		//Quieting the logger, which reports every conversion
+		Logger.getGlobal().setLevel(Level.WARNING);
+		
+		File directory = Files.createTempDirectory("airmessage-conversion-cache").toFile();
+		File sourceDirectory = new File(directory, "source");
+		File cacheDirectory = new File(directory, "cache");
+		sourceDirectory.mkdir();
+		cacheDirectory.mkdir();
+		
+		StandInBackend backend = new StandInBackend(conversionTime);
+		AtomicLong budget = new AtomicLong(fileSize * budgetFiles);
+		ConversionHelper.setBackend(backend);
+		ConversionHelper.setCache(new ConversionCache(cacheDirectory, budget::get));
+		
+		List<String> failures = new ArrayList<>();
+		try {
+			checkDeduplication(sourceDirectory, backend, waiterCount, failures);
+			checkEviction(sourceDirectory, cacheDirectory, backend, failures);
+			checkPinning(sourceDirectory, cacheDirectory, failures);
+			checkLeftovers(cacheDirectory, budget, failures);
+		} finally {
+			deleteRecursively(directory);
+		}
+		
+		//Printing the results
+		System.out.println("Waiters: " + waiterCount + ", conversion time: " + conversionTime + " ms, budget: " + budgetFiles + " files");
+		if(failures.isEmpty()) {
+			System.out.println("All checks passed");
+		} else {
+			for(String failure : failures) System.out.println("Failed: " + failure);
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Requests the same file from many threads at once, and checks that it is only converted once
+	 */
+	private static void checkDeduplication(File sourceDirectory, StandInBackend backend, int waiterCount, List<String> failures) throws Exception {
+		File sourceFile = createSourceFile(sourceDirectory, "shared");
+		int conversionsBefore = backend.conversionCount.get();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(waiterCount);
+		CountDownLatch goLatch = new CountDownLatch(1);
+		List<Future<ConversionHelper.ConvertedFile>> results = new ArrayList<>();
+		for(int i = 0; i < waiterCount; i++) {
+			results.add(executor.submit(() -> {
+				goLatch.await();
+				return ConversionHelper.convert(sourceFile);
+			}));
+		}
+		
+		long startTime = System.nanoTime();
+		goLatch.countDown();
+		List<ConversionHelper.ConvertedFile> convertedFiles = new ArrayList<>();
+		for(Future<ConversionHelper.ConvertedFile> result : results) convertedFiles.add(result.get());
+		long elapsed = System.nanoTime() - startTime;
+		executor.shutdown();
+		
+		int conversionCount = backend.conversionCount.get() - conversionsBefore;
+		System.out.printf("Concurrent requests: %d conversion(s) for %d waiters in %.0f ms%n", conversionCount, waiterCount, elapsed / (double) TimeUnit.MILLISECONDS.toNanos(1));
+		if(conversionCount != 1) failures.add("concurrent requests ran " + conversionCount + " conversions");
+		
+		for(ConversionHelper.ConvertedFile convertedFile : convertedFiles) {
+			if(!convertedFile.converted() || !convertedFile.file().equals(convertedFiles.get(0).file())) {
+				failures.add("concurrent requests got different files");
+				break;
+			}
+		}
+		if(!isConversionOf(convertedFiles.get(0).file(), sourceFile)) failures.add("the shared conversion has the wrong content");
+		
+		for(ConversionHelper.ConvertedFile convertedFile : convertedFiles) convertedFile.close();
+	}
+	
+	/**
+	 * Converts more files than fit in the budget, and checks that the least recently used one is evicted
+	 */
+	private static void checkEviction(File sourceDirectory, File cacheDirectory, StandInBackend backend, List<String> failures) throws Exception {
+		//Filling the cache, and then using the first file again so that the second one is the least recently used
+		File[] sourceFiles = new File[budgetFiles + 1];
+		File[] convertedFiles = new File[sourceFiles.length];
+		for(int i = 0; i < sourceFiles.length; i++) sourceFiles[i] = createSourceFile(sourceDirectory, "evict" + i);
+		for(int i = 0; i < budgetFiles; i++) convertedFiles[i] = convertAndClose(sourceFiles[i]);
+		
+		int conversionsBefore = backend.conversionCount.get();
+		convertAndClose(sourceFiles[0]);
+		if(backend.conversionCount.get() != conversionsBefore) failures.add("a cached file was converted again");
+		
+		//Going over the budget
+		convertedFiles[budgetFiles] = convertAndClose(sourceFiles[budgetFiles]);
+		
+		boolean[] exists = new boolean[convertedFiles.length];
+		for(int i = 0; i < convertedFiles.length; i++) exists[i] = convertedFiles[i].exists();
+		System.out.println("Eviction: converted files kept " + Arrays.toString(exists) + ", cache size " + getCacheSize(cacheDirectory) / 1024 + " KiB");
+		if(exists[1]) failures.add("the least recently used file wasn't evicted");
+		if(!exists[0] || !exists[2] || !exists[budgetFiles]) failures.add("a recently used file was evicted");
+		if(getCacheSize(cacheDirectory) > (long) fileSize * budgetFiles) failures.add("the cache is larger than its budget");
+		
+		//Requesting the evicted file again
+		conversionsBefore = backend.conversionCount.get();
+		convertAndClose(sourceFiles[1]);
+		if(backend.conversionCount.get() != conversionsBefore + 1) failures.add("an evicted file wasn't converted again");
+	}
+	
+	/**
+	 * Keeps a converted file open while the cache goes over its budget, and checks that it isn't evicted until it is closed
+	 */
+	private static void checkPinning(File sourceDirectory, File cacheDirectory, List<String> failures) throws Exception {
+		File pinnedSourceFile = createSourceFile(sourceDirectory, "pinned");
+		ConversionHelper.ConvertedFile pinnedFile = ConversionHelper.convert(pinnedSourceFile);
+		
+		//Pushing every other file out of the cache
+		for(int i = 0; i < budgetFiles * 2; i++) convertAndClose(createSourceFile(sourceDirectory, "pressure" + i));
+		
+		boolean keptWhileOpen = pinnedFile.file().exists() && isConversionOf(pinnedFile.file(), pinnedSourceFile);
+		pinnedFile.close();
+		
+		//Pushing the file out now that it has been closed
+		for(int i = 0; i < budgetFiles; i++) convertAndClose(createSourceFile(sourceDirectory, "after" + i));
+		boolean evictedAfterClose = !pinnedFile.file().exists();
+		
+		System.out.println("Pinning: kept while open " + keptWhileOpen + ", evicted after close " + evictedAfterClose + ", cache size " + getCacheSize(cacheDirectory) / 1024 + " KiB");
+		if(!keptWhileOpen) failures.add("an open file was evicted");
+		if(!evictedAfterClose) failures.add("a closed file was never evicted");
+	}
+	
+	/**
+	 * Leaves an unfinished conversion in the cache directory, and checks that a new cache deletes it and keeps the finished conversions
+	 */
+	private static void checkLeftovers(File cacheDirectory, AtomicLong budget, List<String> failures) throws IOException {
+		File leftoverFile = new File(cacheDirectory, "unfinished.tmp");
+		Files.write(leftoverFile.toPath(), new byte[fileSize]);
+		long finishedSize = getCacheSize(cacheDirectory) - fileSize;
+		
+		ConversionCache cache = new ConversionCache(cacheDirectory, budget::get);
+		System.out.println("Leftovers: unfinished conversion deleted " + !leftoverFile.exists() + ", cache size " + cache.getTotalBytes() / 1024 + " KiB");
+		if(leftoverFile.exists()) failures.add("an unfinished conversion wasn't deleted");
+		if(cache.getTotalBytes() != finishedSize) failures.add("finished conversions weren't picked up");
+	}
+	
+	private static File createSourceFile(File sourceDirectory, String name) throws IOException {
+		File file = new File(sourceDirectory, name + ".heic");
+		byte[] data = new byte[fileSize];
+		Arrays.fill(data, (byte) name.hashCode());
+		Files.write(file.toPath(), data);
+		return file;
+	}
+	
+	private static File convertAndClose(File sourceFile) throws IOException {
+		try(ConversionHelper.ConvertedFile convertedFile = ConversionHelper.convert(sourceFile)) {
+			return convertedFile.file();
+		}
+	}
+	
+	private static boolean isConversionOf(File convertedFile, File sourceFile) throws IOException {
+		return Arrays.equals(Files.readAllBytes(convertedFile.toPath()), StandInBackend.convert(Files.readAllBytes(sourceFile.toPath())));
+	}
+	
+	private static long getCacheSize(File cacheDirectory) {
+		long size = 0;
+		File[] files = cacheDirectory.listFiles();
+		if(files != null) for(File file : files) size += file.length();
+		return size;
+	}
+	
+	private static void deleteRecursively(File file) {
+		File[] files = file.listFiles();
+		if(files != null) for(File child : files) deleteRecursively(child);
+		file.delete();
+	}
+	
+	/**
+	 * Converts files by inverting their bytes after a delay, standing in for the system's conversion tools
+	 */
+	private static class StandInBackend implements ConversionHelper.Backend {
+		final long conversionTime;
+		final AtomicInteger conversionCount = new AtomicInteger();
+		
+		StandInBackend(long conversionTime) {
+			this.conversionTime = conversionTime;
+		}
+		
+		static byte[] convert(byte[] data) {
+			byte[] result = new byte[data.length];
+			for(int i = 0; i < data.length; i++) result[i] = (byte) ~data[i];
+			return result;
+		}
+		
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+		
+		@Override
+		public void convertImage(String format, File input, File output) throws IOException, InterruptedException {
+			conversionCount.incrementAndGet();
+			Thread.sleep(conversionTime);
+			Files.write(output.toPath(), convert(Files.readAllBytes(input.toPath())));
+		}
+		
+		@Override
+		public void convertAudio(String fileFormat, String dataFormat, File input, File output) throws IOException, InterruptedException {
+			convertImage(fileFormat, input, output);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,97 @@
+package me.tagavari.airmessageserver.server;
+
+import org.jooq.DSLContext;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.jooq.impl.DSL.field;
+
+/**
+ * Measures how quickly attachment records are loaded for pages of messages, comparing the batched query that the database manager uses
+ * against the previous approach of running one query per message
+ * Run it against a database made by {@link ChatDatabaseGenerator}
+ * Usage: AttachmentFetchBenchmark [database file] [message count] [page size]
+ */
+public class AttachmentFetchBenchmark {
+	private static final int passCount = 3; //Each approach is run this many times, and the fastest pass is reported
+	
+	public static void main(String[] args) throws Exception {
+		File databaseFile = new File(args.length > 0 ? args[0] : "chat.db");
+		int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		
+		if(!databaseFile.isFile()) {
+			System.err.println("Database file " + databaseFile.getPath() + " doesn't exist, generate one with ChatDatabaseGenerator");
+			System.exit(1);
+		}
+		
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		try(Connection connection = config.createConnection("jdbc:sqlite:" + databaseFile.getPath())) {
+			DSLContext context = DSL.using(connection, SQLDialect.SQLITE);
+			
+			//Picking the most recent regular messages, split into pages like the database manager's fetches
+			List<Long> messageRowIDs = context.select(field("message.ROWID", Long.class))
+					.from(DSL.table("message"))
+					.where(field("message.item_type").eq(0))
+					.orderBy(field("message.ROWID").desc())
+					.limit(messageCount)
+					.fetch(field("message.ROWID", Long.class));
+			List<List<Long>> pages = new ArrayList<>();
+			for(int i = 0; i < messageRowIDs.size(); i += pageSize) pages.add(messageRowIDs.subList(i, Math.min(i + pageSize, messageRowIDs.size())));
+			
+			long batchedTime = Long.MAX_VALUE, perMessageTime = Long.MAX_VALUE;
+			long batchedRows = 0, perMessageRows = 0;
+			for(int pass = 0; pass < passCount; pass++) {
+				long startTime = System.nanoTime();
+				long rows = 0;
+				for(List<Long> page : pages) {
+					Map<Long, List<DatabaseManager.AttachmentRecord>> records = DatabaseManager.fetchAttachmentRecords(context, page, true);
+					for(List<DatabaseManager.AttachmentRecord> list : records.values()) rows += list.size();
+				}
+				batchedTime = Math.min(batchedTime, System.nanoTime() - startTime);
+				batchedRows = rows;
+				
+				startTime = System.nanoTime();
+				rows = 0;
+				for(List<Long> page : pages) {
+					for(long rowID : page) rows += fetchPerMessage(context, rowID).size();
+				}
+				perMessageTime = Math.min(perMessageTime, System.nanoTime() - startTime);
+				perMessageRows = rows;
+			}
+			
+			//Printing the results
+			System.out.println("Messages: " + messageRowIDs.size() + " in pages of " + pageSize + ", attachment rows: " + batchedRows);
+			if(batchedRows != perMessageRows) System.out.println("Warning: the per-message queries loaded " + perMessageRows + " rows");
+			printResult("Per-message queries", perMessageTime, messageRowIDs.size(), perMessageRows);
+			printResult("Batched query", batchedTime, messageRowIDs.size(), batchedRows);
+			System.out.printf("Batched loading is %.1fx faster%n", (double) perMessageTime / batchedTime);
+		}
+	}
+	
+	/**
+	 * Loads the attachments of a single message, the way they were loaded before the batched query
+	 */
+	private static Result<?> fetchPerMessage(DSLContext context, long messageRowID) {
+		return context.select(field("attachment.ROWID", Long.class), field("attachment.guid", String.class), field("attachment.filename", String.class), field("attachment.transfer_name", String.class), field("attachment.mime_type", String.class), field("attachment.total_bytes", Long.class), field("attachment.hide_attachment", Boolean.class))
+				.from(DSL.table("message_attachment_join"))
+				.join(DSL.table("attachment")).on(field("message_attachment_join.attachment_id").eq(field("attachment.ROWID")))
+				.where(field("message_attachment_join.message_id").eq(messageRowID))
+				.fetch();
+	}
+	
+	private static void printResult(String name, long time, int messageCount, long rowCount) {
+		double seconds = time / (double) TimeUnit.SECONDS.toNanos(1);
+		System.out.printf("%s: %.0f ms, %.0f messages/s, %.0f attachment rows/s%n", name, seconds * 1000, messageCount / seconds, rowCount / seconds);
+	}
+}
\ No newline at end of file
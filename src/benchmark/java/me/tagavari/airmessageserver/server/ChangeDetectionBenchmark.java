@@ -0,0 +1,140 @@
+package me.tagavari.airmessageserver.server;
+
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the database change detector notices rows written by another connection within its check interval
+ * A temporary WAL database is written to at random times, and the time from each commit until the detector reports a change is measured
+ * The detector is run twice, once with its directory watcher and once relying only on its periodic file checks
+ * Usage: ChangeDetectionBenchmark [write count] [check interval]
+ */
+public class ChangeDetectionBenchmark {
+	private static final long dataVersionInterval = TimeUnit.MINUTES.toMillis(1); //Long enough that only file changes can cause a detection
+	private static final long schedulingAllowance = 50; //Extra time allowed for thread scheduling and the data version query, in milliseconds
+	
+	public static void main(String[] args) throws Exception {
+		int writeCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		long checkInterval = args.length > 1 ? Long.parseLong(args[1]) : 250;
+		
+		File directory = Files.createTempDirectory("airmessage-change-detection").toFile();
+		File databaseFile = new File(directory, "chat.db");
+		
+		boolean passed;
+		try(Connection writeConnection = new SQLiteConfig().createConnection("jdbc:sqlite:" + databaseFile.getPath())) {
+			try(Statement statement = writeConnection.createStatement()) {
+				statement.execute("PRAGMA journal_mode = WAL");
+				statement.execute("CREATE TABLE message (ROWID INTEGER PRIMARY KEY AUTOINCREMENT, text TEXT)");
+			}
+			
+			Result watched = run(writeConnection, databaseFile, writeCount, checkInterval, true);
+			Result polled = run(writeConnection, databaseFile, writeCount, checkInterval, false);
+			
+			//Printing the results
+			long limit = checkInterval + schedulingAllowance;
+			System.out.println("Writes: " + writeCount + ", check interval: " + checkInterval + " ms, limit: " + limit + " ms");
+			printResult("Directory watcher", watched, writeCount);
+			printResult("File checks only", polled, writeCount);
+			passed = watched.isWithin(limit) && polled.isWithin(limit);
+		} finally {
+			File[] files = directory.listFiles();
+			if(files != null) for(File file : files) file.delete();
+			directory.delete();
+		}
+		
+		if(!passed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+	
+	private static Result run(Connection writeConnection, File databaseFile, int writeCount, long checkInterval, boolean watch) throws Exception {
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		try(Connection readConnection = config.createConnection("jdbc:sqlite:" + databaseFile.getPath());
+			DatabaseChangeDetector changeDetector = new DatabaseChangeDetector(readConnection, databaseFile, checkInterval, dataVersionInterval)) {
+			if(watch) changeDetector.start();
+			
+			//The first check always reports a change, as there is no previous state to compare against
+			changeDetector.awaitChange();
+			
+			//Recording the time of every detected change on a separate thread
+			BlockingQueue<Long> detectionTimes = new LinkedBlockingQueue<>();
+			Thread detectorThread = new Thread(() -> {
+				try {
+					while(!Thread.currentThread().isInterrupted()) {
+						if(changeDetector.awaitChange()) detectionTimes.add(System.nanoTime());
+					}
+				} catch(InterruptedException exception) {
+					//Returning
+				} catch(Exception exception) {
+					exception.printStackTrace();
+				}
+			}, "Change detector");
+			detectorThread.start();
+			
+			Random random = new Random(0);
+			long[] latencies = new long[writeCount];
+			int missedCount = 0;
+			int spuriousCount = 0;
+			try(PreparedStatement statement = writeConnection.prepareStatement("INSERT INTO message (text) VALUES (?)")) {
+				for(int i = 0; i < writeCount; i++) {
+					//Waiting a random time, so that writes land at different points of the check interval
+					Thread.sleep(random.nextInt((int) checkInterval * 2));
+					
+					//Changes detected without a write shouldn't happen, as the data version only changes when another connection commits
+					spuriousCount += detectionTimes.size();
+					detectionTimes.clear();
+					
+					statement.setString(1, "Message " + i);
+					statement.executeUpdate();
+					long commitTime = System.nanoTime();
+					
+					Long detectionTime = detectionTimes.poll(checkInterval * 4, TimeUnit.MILLISECONDS);
+					if(detectionTime == null) {
+						latencies[i] = -1;
+						missedCount++;
+					} else {
+						latencies[i] = detectionTime - commitTime;
+					}
+				}
+			} finally {
+				detectorThread.interrupt();
+				detectorThread.join();
+			}
+			
+			return new Result(latencies, missedCount, spuriousCount);
+		}
+	}
+	
+	private static void printResult(String name, Result result, int writeCount) {
+		System.out.printf("%s: average %.1f ms, maximum %.1f ms, %d missed, %d spurious%n", name, result.getAverage(writeCount), result.getMaximum(), result.missedCount, result.spuriousCount);
+	}
+	
+	private record Result(long[] latencies, int missedCount, int spuriousCount) {
+		double getAverage(int writeCount) {
+			long total = 0;
+			for(long latency : latencies) if(latency >= 0) total += latency;
+			return total / (double) Math.max(writeCount - missedCount, 1) / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+		
+		double getMaximum() {
+			long maximum = 0;
+			for(long latency : latencies) maximum = Math.max(maximum, latency);
+			return maximum / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+		
+		boolean isWithin(long limit) {
+			return missedCount == 0 && spuriousCount == 0 && getMaximum() <= limit;
+		}
+	}
+}
\ No newline at end of file
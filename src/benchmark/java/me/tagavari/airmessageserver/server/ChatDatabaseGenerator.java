@@ -0,0 +1,480 @@
+package me.tagavari.airmessageserver.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates a synthetic Messages database, for reproducing database benchmarks on machines without a real chat.db
+ * The schema contains the tables and columns that the server reads, along with the indexes the real database has on its join tables
+ * Generated data follows a fixed seed, so the same arguments always produce the same database
+ * Dates are in Mac absolute time (nanoseconds since 2001), so the server's time helper should be set to {@link TimeHelper#MAC_ABSOLUTE_TIME}
+ * Pass the generated file to {@link DatabaseManager#start(File, long)} to run the server against it
+ *
+ * Usage: ChatDatabaseGenerator [output file] [chat count] [message count] [attachment count] [attachment directory]
+ * If an attachment directory is given, a dummy file is written for each attachment and the database references it
+ */
+public class ChatDatabaseGenerator {
+	private static final long seed = 1361;
+	private static final int batchSize = 10000; //The amount of rows to insert per batch
+	private static final long historyLength = TimeUnit.DAYS.toMillis(3 * 365); //How far back messages go
+	
+	//Creating the distribution values
+	private static final double groupChatRatio = 0.25;
+	private static final int groupChatMinMembers = 3;
+	private static final int groupChatMaxMembers = 8;
+	private static final double groupChatNamedRatio = 0.5;
+	private static final double smsRatio = 0.15;
+	private static final double chatActivitySkew = 3; //Higher values concentrate more messages in fewer chats
+	private static final double fromMeRatio = 0.45;
+	private static final double tapbackRatio = 0.06;
+	private static final double stickerRatio = 0.005;
+	private static final double groupEventRatio = 0.01; //The ratio of messages in group chats that are renames or membership changes
+	private static final double sendStyleRatio = 0.005;
+	private static final double multipleAttachmentRatio = 0.15; //The ratio of attachment messages with more than one attachment
+	private static final double hiddenAttachmentRatio = 0.05;
+	private static final int dummyFileMaxSize = 256 * 1024; //The maximum size of dummy attachment files (256 KiB)
+	
+	private static final String[][] attachmentTypes = {
+			//MIME type, extension, name prefix, weight
+			{"image/jpeg", "jpeg", "IMG_", "60"},
+			{"image/heic", "heic", "IMG_", "15"},
+			{"image/png", "png", "Screenshot ", "8"},
+			{"video/quicktime", "mov", "IMG_", "8"},
+			{"application/pdf", "pdf", "Document ", "3"},
+			{"audio/x-m4a", "caf", "Audio Message ", "3"},
+			{"text/vcard", "vcf", "Contact ", "3"}
+	};
+	private static final String objectReplacementCharacter = "\uFFFC"; //Stands in for attachments in message text
+	private static final String[] tapbackVerbs = {"Loved", "Liked", "Disliked", "Laughed at", "Emphasized", "Questioned"};
+	private static final String[] sampleWords = {"hey", "are", "you", "coming", "tonight", "lol", "sounds", "good", "see", "there", "what", "time", "dinner", "ok", "thanks", "just", "got", "home", "running", "late", "the", "meeting", "tomorrow", "yes", "no", "maybe", "call", "me", "later", "love", "it"};
+	
+	private final Random random = new Random(seed);
+	private final int chatCount;
+	private final int messageCount;
+	private final int attachmentCount;
+	private final File attachmentDirectory;
+	
+	//Creating the generated chat values
+	private int handleCount;
+	private int[][] chatMembers; //The handle row IDs of each chat's members
+	private boolean[] chatIsSMS;
+	private String[] chatLastMessageGUID; //The GUID of each chat's latest regular message, for tapbacks to target
+	
+	public static void main(String[] args) throws Exception {
+		File outputFile = new File(args.length > 0 ? args[0] : "chat.db");
+		int chatCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int messageCount = args.length > 2 ? Integer.parseInt(args[2]) : 5000000;
+		int attachmentCount = args.length > 3 ? Integer.parseInt(args[3]) : 500000;
+		File attachmentDirectory = args.length > 4 ? new File(args[4]) : null;
+		
+		//Starting from an empty database
+		if(outputFile.exists()) {
+			System.err.println("Output file " + outputFile.getPath() + " already exists");
+			System.exit(1);
+		}
+		if(attachmentDirectory != null && !attachmentDirectory.isDirectory() && !attachmentDirectory.mkdirs()) {
+			System.err.println("Couldn't create attachment directory " + attachmentDirectory.getPath());
+			System.exit(1);
+		}
+		
+		long startTime = System.currentTimeMillis();
+		try(Connection connection = DriverManager.getConnection("jdbc:sqlite:" + outputFile.getPath())) {
+			new ChatDatabaseGenerator(chatCount, messageCount, attachmentCount, attachmentDirectory).generate(connection);
+		}
+		System.out.println("Generated " + outputFile.getPath() + " in " + (System.currentTimeMillis() - startTime) / 1000 + " s");
+	}
+	
+	private ChatDatabaseGenerator(int chatCount, int messageCount, int attachmentCount, File attachmentDirectory) {
+		this.chatCount = chatCount;
+		this.messageCount = messageCount;
+		this.attachmentCount = attachmentCount;
+		this.attachmentDirectory = attachmentDirectory;
+	}
+	
+	private void generate(Connection connection) throws SQLException, IOException {
+		//Writing quickly, as the database can be regenerated if anything goes wrong
+		try(Statement statement = connection.createStatement()) {
+			statement.execute("PRAGMA journal_mode = OFF");
+			statement.execute("PRAGMA synchronous = OFF");
+		}
+		
+		createTables(connection);
+		
+		connection.setAutoCommit(false);
+		generateChats(connection);
+		connection.commit();
+		generateMessages(connection);
+		connection.commit();
+		connection.setAutoCommit(true);
+		
+		createIndexes(connection);
+		
+		//Switching to the write-ahead log like the real database, so that change detection watches the same files
+		try(Statement statement = connection.createStatement()) {
+			statement.execute("PRAGMA journal_mode = WAL");
+			statement.execute("ANALYZE");
+		}
+	}
+	
+	private static void createTables(Connection connection) throws SQLException {
+		try(Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE handle (ROWID INTEGER PRIMARY KEY AUTOINCREMENT UNIQUE, id TEXT NOT NULL, country TEXT, service TEXT NOT NULL, uncanonicalized_id TEXT, UNIQUE (id, service))");
+			statement.execute("CREATE TABLE chat (ROWID INTEGER PRIMARY KEY AUTOINCREMENT, guid TEXT UNIQUE NOT NULL, style INTEGER, state INTEGER, account_id TEXT, chat_identifier TEXT, service_name TEXT, room_name TEXT, display_name TEXT, is_archived INTEGER DEFAULT 0)");
+			statement.execute("CREATE TABLE message (ROWID INTEGER PRIMARY KEY AUTOINCREMENT, guid TEXT UNIQUE NOT NULL, text TEXT, handle_id INTEGER DEFAULT 0, subject TEXT, service TEXT, error INTEGER DEFAULT 0, date INTEGER DEFAULT 0, date_read INTEGER DEFAULT 0, date_delivered INTEGER DEFAULT 0, is_delivered INTEGER DEFAULT 0, is_from_me INTEGER DEFAULT 0, is_read INTEGER DEFAULT 0, is_sent INTEGER DEFAULT 0, cache_has_attachments INTEGER DEFAULT 0, item_type INTEGER DEFAULT 0, other_handle INTEGER DEFAULT 0, group_title TEXT, group_action_type INTEGER DEFAULT 0, associated_message_guid TEXT, associated_message_type INTEGER DEFAULT 0, balloon_bundle_id TEXT, expressive_send_style_id TEXT, associated_message_range_location INTEGER DEFAULT 0, associated_message_range_length INTEGER DEFAULT 0)");
+			statement.execute("CREATE TABLE attachment (ROWID INTEGER PRIMARY KEY AUTOINCREMENT, guid TEXT UNIQUE NOT NULL, created_date INTEGER DEFAULT 0, filename TEXT, uti TEXT, mime_type TEXT, transfer_state INTEGER DEFAULT 0, is_outgoing INTEGER DEFAULT 0, transfer_name TEXT, total_bytes INTEGER DEFAULT 0, is_sticker INTEGER DEFAULT 0, hide_attachment INTEGER DEFAULT 0)");
+			statement.execute("CREATE TABLE chat_handle_join (chat_id INTEGER REFERENCES chat (ROWID) ON DELETE CASCADE, handle_id INTEGER REFERENCES handle (ROWID) ON DELETE CASCADE, UNIQUE (chat_id, handle_id))");
+			statement.execute("CREATE TABLE chat_message_join (chat_id INTEGER REFERENCES chat (ROWID) ON DELETE CASCADE, message_id INTEGER REFERENCES message (ROWID) ON DELETE CASCADE, message_date INTEGER DEFAULT 0, PRIMARY KEY (chat_id, message_id))");
+			statement.execute("CREATE TABLE message_attachment_join (message_id INTEGER REFERENCES message (ROWID) ON DELETE CASCADE, attachment_id INTEGER REFERENCES attachment (ROWID) ON DELETE CASCADE, UNIQUE (message_id, attachment_id))");
+		}
+	}
+	
+	private static void createIndexes(Connection connection) throws SQLException {
+		try(Statement statement = connection.createStatement()) {
+			statement.execute("CREATE INDEX chat_message_join_idx_message_id_only ON chat_message_join (message_id)");
+			statement.execute("CREATE INDEX chat_message_join_idx_message_date_id_chat_id ON chat_message_join (chat_id, message_date, message_id)");
+			statement.execute("CREATE INDEX chat_handle_join_idx_handle_id ON chat_handle_join (handle_id)");
+			statement.execute("CREATE INDEX message_attachment_join_idx_message_id ON message_attachment_join (message_id)");
+			statement.execute("CREATE INDEX message_idx_handle ON message (handle_id, date)");
+			statement.execute("CREATE INDEX message_idx_other_handle ON message (other_handle)");
+			statement.execute("CREATE INDEX message_idx_associated_message ON message (associated_message_guid)");
+		}
+	}
+	
+	private void generateChats(Connection connection) throws SQLException {
+		//Creating a handle for each one-on-one chat, and a pool of contacts that group chat members are drawn from
+		handleCount = Math.max(chatCount, groupChatMaxMembers);
+		chatMembers = new int[chatCount][];
+		chatIsSMS = new boolean[chatCount];
+		chatLastMessageGUID = new String[chatCount];
+		
+		try(PreparedStatement handleStatement = connection.prepareStatement("INSERT INTO handle (ROWID, id, country, service, uncanonicalized_id) VALUES (?, ?, 'us', ?, ?)")) {
+			for(int i = 0; i < handleCount; i++) {
+				int rowID = i + 1;
+				String address = getHandleAddress(rowID);
+				handleStatement.setInt(1, rowID);
+				handleStatement.setString(2, address);
+				handleStatement.setString(3, "iMessage");
+				handleStatement.setString(4, address.startsWith("+") ? address.substring(2) : null);
+				handleStatement.addBatch();
+				if(rowID % batchSize == 0) handleStatement.executeBatch();
+			}
+			handleStatement.executeBatch();
+		}
+		
+		try(PreparedStatement chatStatement = connection.prepareStatement("INSERT INTO chat (ROWID, guid, style, state, account_id, chat_identifier, service_name, room_name, display_name) VALUES (?, ?, ?, 3, ?, ?, ?, ?, ?)");
+			PreparedStatement joinStatement = connection.prepareStatement("INSERT INTO chat_handle_join (chat_id, handle_id) VALUES (?, ?)")) {
+			for(int i = 0; i < chatCount; i++) {
+				int rowID = i + 1;
+				boolean isGroup = random.nextDouble() < groupChatRatio;
+				boolean isSMS = !isGroup && random.nextDouble() < smsRatio;
+				String service = isSMS ? "SMS" : "iMessage";
+				chatIsSMS[i] = isSMS;
+				
+				if(isGroup) {
+					//Picking distinct members from the contact pool
+					int memberCount = groupChatMinMembers + random.nextInt(groupChatMaxMembers - groupChatMinMembers + 1);
+					int[] members = new int[memberCount];
+					for(int j = 0; j < memberCount; j++) {
+						int handle;
+						do {
+							handle = 1 + random.nextInt(handleCount);
+						} while(contains(members, j, handle));
+						members[j] = handle;
+					}
+					chatMembers[i] = members;
+					
+					String identifier = "chat" + Math.abs(random.nextLong());
+					chatStatement.setString(2, service + ";+;" + identifier);
+					chatStatement.setInt(3, 43);
+					chatStatement.setString(5, identifier);
+					chatStatement.setString(7, identifier);
+					chatStatement.setString(8, random.nextDouble() < groupChatNamedRatio ? "Group " + rowID : null);
+				} else {
+					chatMembers[i] = new int[]{rowID};
+					
+					String identifier = getHandleAddress(rowID);
+					chatStatement.setString(2, service + ";-;" + identifier);
+					chatStatement.setInt(3, 45);
+					chatStatement.setString(5, identifier);
+					chatStatement.setNull(7, Types.VARCHAR);
+					chatStatement.setNull(8, Types.VARCHAR);
+				}
+				chatStatement.setInt(1, rowID);
+				chatStatement.setString(4, createGUID());
+				chatStatement.setString(6, service);
+				chatStatement.addBatch();
+				
+				for(int handle : chatMembers[i]) {
+					joinStatement.setInt(1, rowID);
+					joinStatement.setInt(2, handle);
+					joinStatement.addBatch();
+				}
+				
+				if(rowID % batchSize == 0) {
+					chatStatement.executeBatch();
+					joinStatement.executeBatch();
+				}
+			}
+			chatStatement.executeBatch();
+			joinStatement.executeBatch();
+		}
+	}
+	
+	private void generateMessages(Connection connection) throws SQLException, IOException {
+		long endTime = System.currentTimeMillis();
+		long startTime = endTime - historyLength;
+		
+		//Spreading attachments over regular messages, with some messages having several
+		double attachmentsPerMessage = 1 + multipleAttachmentRatio * 2;
+		double regularMessageRatio = 1 - tapbackRatio - stickerRatio - groupChatRatio * groupEventRatio;
+		int attachmentsRemaining = attachmentCount;
+		int attachmentRowID = 0;
+		
+		int totalTypeWeight = 0;
+		for(String[] type : attachmentTypes) totalTypeWeight += Integer.parseInt(type[3]);
+		
+		try(PreparedStatement messageStatement = connection.prepareStatement("INSERT INTO message (ROWID, guid, text, handle_id, service, date, date_read, date_delivered, is_delivered, is_from_me, is_read, is_sent, cache_has_attachments, item_type, other_handle, group_title, group_action_type, associated_message_guid, associated_message_type, balloon_bundle_id, expressive_send_style_id, associated_message_range_location, associated_message_range_length) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			PreparedStatement chatJoinStatement = connection.prepareStatement("INSERT INTO chat_message_join (chat_id, message_id, message_date) VALUES (?, ?, ?)");
+			PreparedStatement attachmentStatement = connection.prepareStatement("INSERT INTO attachment (ROWID, guid, created_date, filename, uti, mime_type, transfer_state, is_outgoing, transfer_name, total_bytes, is_sticker, hide_attachment) VALUES (?, ?, ?, ?, ?, ?, 5, ?, ?, ?, ?, ?)");
+			PreparedStatement attachmentJoinStatement = connection.prepareStatement("INSERT INTO message_attachment_join (message_id, attachment_id) VALUES (?, ?)")) {
+			for(int i = 0; i < messageCount; i++) {
+				int rowID = i + 1;
+				
+				//Spacing messages out evenly over the history, so that row IDs increase with date like the real database
+				long date = TimeHelper.MAC_ABSOLUTE_TIME.toDatabaseTime(startTime + (endTime - startTime) * i / Math.max(messageCount, 1));
+				
+				//Picking a chat, favoring a few busy chats
+				int chatIndex = (int) (chatCount * Math.pow(random.nextDouble(), chatActivitySkew));
+				int[] members = chatMembers[chatIndex];
+				boolean isGroup = members.length > 1;
+				boolean isFromMe = random.nextDouble() < fromMeRatio;
+				String guid = createGUID();
+				
+				//Picking the message's sender (in one-on-one chats, the other participant's handle is set on both sides of the conversation)
+				int handle;
+				if(!isGroup) handle = members[0];
+				else if(isFromMe) handle = 0;
+				else handle = members[random.nextInt(members.length)];
+				
+				//Picking the message's kind
+				String text;
+				int itemType = 0;
+				int otherHandle = 0;
+				String groupTitle = null;
+				int groupActionType = 0;
+				String associatedGUID = null;
+				int associatedType = 0;
+				String balloonBundleID = null;
+				String sendStyle = null;
+				int rangeLength = 0;
+				int messageAttachments = 0;
+				boolean isSticker = false;
+				
+				double kind = random.nextDouble();
+				String targetGUID = chatLastMessageGUID[chatIndex];
+				if(isGroup && kind < groupEventRatio) {
+					//Renaming the group, or adding or removing a member
+					text = null;
+					if(random.nextBoolean()) {
+						itemType = 2;
+						groupTitle = "Group " + random.nextInt(chatCount);
+					} else {
+						itemType = 1;
+						groupActionType = random.nextInt(2);
+						otherHandle = members[random.nextInt(members.length)];
+					}
+				} else if(targetGUID != null && !chatIsSMS[chatIndex] && (kind -= groupEventRatio) < tapbackRatio) {
+					//Reacting to the chat's latest message
+					int tapback = random.nextInt(tapbackVerbs.length);
+					associatedGUID = "p:0/" + targetGUID;
+					associatedType = 2000 + tapback;
+					text = tapbackVerbs[tapback] + " \u201Csomething\u201D";
+					rangeLength = 9;
+				} else if(targetGUID != null && !chatIsSMS[chatIndex] && (kind -= tapbackRatio) < stickerRatio) {
+					//Placing a sticker on the chat's latest message
+					associatedGUID = "bp:" + targetGUID;
+					associatedType = 1000;
+					text = objectReplacementCharacter;
+					balloonBundleID = "com.apple.messages.MSMessageExtensionBalloonPlugin:0000000000:com.apple.Stickers.UserGenerated.MessagesExtension";
+					messageAttachments = 1;
+					isSticker = true;
+				} else {
+					//Sending a regular message, possibly with attachments
+					text = createText();
+					if(!chatIsSMS[chatIndex] && random.nextDouble() < sendStyleRatio) sendStyle = "com.apple.MobileSMS.expressivesend.impact";
+					if(attachmentsRemaining > 0 && random.nextDouble() < getAttachmentMessageRatio(attachmentsRemaining, messageCount - i, attachmentsPerMessage, regularMessageRatio)) {
+						messageAttachments = random.nextDouble() < multipleAttachmentRatio ? 2 + random.nextInt(3) : 1;
+						text = objectReplacementCharacter.repeat(messageAttachments) + (random.nextBoolean() ? text : "");
+					}
+					chatLastMessageGUID[chatIndex] = guid;
+				}
+				messageAttachments = Math.min(messageAttachments, attachmentsRemaining);
+				attachmentsRemaining -= messageAttachments;
+				
+				//Marking incoming messages as read, and some outgoing one-on-one iMessages as read by the recipient
+				long dateRead;
+				if(!isFromMe || (!isGroup && !chatIsSMS[chatIndex] && random.nextBoolean())) dateRead = date + TimeUnit.MINUTES.toNanos(random.nextInt(60));
+				else dateRead = 0;
+				
+				messageStatement.setInt(1, rowID);
+				messageStatement.setString(2, guid);
+				messageStatement.setString(3, text);
+				messageStatement.setInt(4, handle);
+				messageStatement.setString(5, chatIsSMS[chatIndex] ? "SMS" : "iMessage");
+				messageStatement.setLong(6, date);
+				messageStatement.setLong(7, dateRead);
+				messageStatement.setLong(8, isFromMe ? date + TimeUnit.SECONDS.toNanos(1) : 0);
+				messageStatement.setBoolean(9, isFromMe);
+				messageStatement.setBoolean(10, isFromMe);
+				messageStatement.setBoolean(11, !isFromMe);
+				messageStatement.setBoolean(12, isFromMe);
+				messageStatement.setBoolean(13, messageAttachments > 0);
+				messageStatement.setInt(14, itemType);
+				messageStatement.setInt(15, otherHandle);
+				messageStatement.setString(16, groupTitle);
+				messageStatement.setInt(17, groupActionType);
+				messageStatement.setString(18, associatedGUID);
+				messageStatement.setInt(19, associatedType);
+				messageStatement.setString(20, balloonBundleID);
+				messageStatement.setString(21, sendStyle);
+				messageStatement.setInt(22, 0);
+				messageStatement.setInt(23, rangeLength);
+				messageStatement.addBatch();
+				
+				chatJoinStatement.setInt(1, chatIndex + 1);
+				chatJoinStatement.setInt(2, rowID);
+				chatJoinStatement.setLong(3, date);
+				chatJoinStatement.addBatch();
+				
+				//Adding the message's attachments
+				for(int j = 0; j < messageAttachments; j++) {
+					attachmentRowID++;
+					
+					String[] type;
+					boolean isHidden = !isSticker && random.nextDouble() < hiddenAttachmentRatio;
+					if(isSticker) type = new String[]{"image/png", "png", "Sticker "};
+					else if(isHidden) type = new String[]{null, "pluginPayloadAttachment", "Link Preview "};
+					else type = pickAttachmentType(totalTypeWeight);
+					
+					String attachmentGUID = createGUID();
+					String transferName = type[2] + (1000 + random.nextInt(9000)) + "." + type[1];
+					long totalBytes;
+					String fileName;
+					if(attachmentDirectory != null) {
+						//Writing a small dummy file in place of the attachment
+						File file = new File(attachmentDirectory, attachmentGUID.substring(0, 2) + File.separator + attachmentGUID + File.separator + transferName);
+						totalBytes = writeDummyFile(file);
+						fileName = file.getAbsolutePath();
+					} else {
+						totalBytes = (long) Math.exp(Math.log(10 * 1024) + random.nextDouble() * (Math.log(20 * 1024 * 1024) - Math.log(10 * 1024))); //Between 10 KiB and 20 MiB, favoring smaller files
+						fileName = "~/Library/Messages/Attachments/" + attachmentGUID.substring(0, 2).toLowerCase(Locale.ROOT) + "/" + attachmentGUID.substring(2, 4) + "/" + attachmentGUID + "/" + transferName;
+					}
+					
+					attachmentStatement.setInt(1, attachmentRowID);
+					attachmentStatement.setString(2, attachmentGUID);
+					attachmentStatement.setLong(3, date / TimeUnit.SECONDS.toNanos(1));
+					attachmentStatement.setString(4, fileName);
+					attachmentStatement.setString(5, type[0] == null ? "dyn.unknown" : "public.data");
+					attachmentStatement.setString(6, type[0]);
+					attachmentStatement.setBoolean(7, isFromMe);
+					attachmentStatement.setString(8, transferName);
+					attachmentStatement.setLong(9, totalBytes);
+					attachmentStatement.setBoolean(10, isSticker);
+					attachmentStatement.setBoolean(11, isHidden);
+					attachmentStatement.addBatch();
+					
+					attachmentJoinStatement.setInt(1, rowID);
+					attachmentJoinStatement.setInt(2, attachmentRowID);
+					attachmentJoinStatement.addBatch();
+				}
+				
+				if(rowID % batchSize == 0) {
+					messageStatement.executeBatch();
+					chatJoinStatement.executeBatch();
+					attachmentStatement.executeBatch();
+					attachmentJoinStatement.executeBatch();
+					
+					//Printing the progress every 10%
+					if(messageCount >= 10 && rowID % (messageCount / 10) < batchSize) System.out.println("Generated " + rowID + " of " + messageCount + " messages");
+				}
+			}
+			messageStatement.executeBatch();
+			chatJoinStatement.executeBatch();
+			attachmentStatement.executeBatch();
+			attachmentJoinStatement.executeBatch();
+		}
+	}
+	
+	/**
+	 * Gets the chance that a regular message has attachments, so that the remaining attachments are spread evenly over the remaining messages
+	 * Stickers take attachments too, so their expected share is set aside first
+	 */
+	private static double getAttachmentMessageRatio(int attachmentsRemaining, int messagesRemaining, double attachmentsPerMessage, double regularMessageRatio) {
+		double regularAttachments = attachmentsRemaining - messagesRemaining * stickerRatio;
+		return Math.max(Math.min(regularAttachments / attachmentsPerMessage / Math.max(messagesRemaining * regularMessageRatio, 1), 1), 0);
+	}
+	
+	private String[] pickAttachmentType(int totalWeight) {
+		int value = random.nextInt(totalWeight);
+		for(String[] type : attachmentTypes) {
+			value -= Integer.parseInt(type[3]);
+			if(value < 0) return type;
+		}
+		return attachmentTypes[0];
+	}
+	
+	/**
+	 * Writes a dummy attachment file filled with random data
+	 * @return The file's size
+	 */
+	private long writeDummyFile(File file) throws IOException {
+		File parentFile = file.getParentFile();
+		if(!parentFile.isDirectory() && !parentFile.mkdirs()) throw new IOException("Couldn't create directory " + parentFile.getPath());
+		
+		byte[] data = new byte[1024 + random.nextInt(dummyFileMaxSize - 1024)];
+		random.nextBytes(data);
+		try(OutputStream outputStream = new FileOutputStream(file)) {
+			outputStream.write(data);
+		}
+		return data.length;
+	}
+	
+	private String createText() {
+		int wordCount = 1 + random.nextInt(12);
+		StringBuilder stringBuilder = new StringBuilder();
+		for(int i = 0; i < wordCount; i++) {
+			if(i > 0) stringBuilder.append(' ');
+			stringBuilder.append(sampleWords[random.nextInt(sampleWords.length)]);
+		}
+		return stringBuilder.toString();
+	}
+	
+	private String createGUID() {
+		return new UUID(random.nextLong(), random.nextLong()).toString().toUpperCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Gets the address of a handle, mixing phone numbers and email addresses
+	 */
+	private static String getHandleAddress(int rowID) {
+		if(rowID % 5 == 0) return "contact" + rowID + "@example.com";
+		else return "+1555" + String.format("%07d", rowID);
+	}
+	
+	private static boolean contains(int[] array, int length, int value) {
+		for(int i = 0; i < length; i++) if(array[i] == value) return true;
+		return false;
+	}
+}
\ No newline at end of file
@@ -1,40 +1,71 @@
 package me.tagavari.airmessageserver.common;
 
+import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Serializes values into a growable buffer
+ * Instances are leased from a shared pool with {@link #get()}, and returned to it with {@link #close()},
+ * so every thread (and every nested use on the same thread) writes into its own buffer
+ */
 public class AirPacker implements AutoCloseable {
-	//50 MiB
-	private static final int bufferSize = 50 * 1024 * 1024;
-	//Shared instance for write operations
-	private static final AirPacker instance = new AirPacker(ByteBuffer.allocate(bufferSize));
-	
+	//The capacity new buffers start at
+	private static final int initialCapacity = 4 * 1024; //4 KiB
+	//Buffers larger than this are replaced with a small buffer when they are returned to the pool
+	private static final int retainedCapacity = 2 * 1024 * 1024; //2 MiB
+	//The largest packet that can be packed
+	private static final int maxCapacity = 50 * 1024 * 1024; //50 MiB
+	//The maximum amount of idle packers to keep around
+	private static final int maxPoolSize = 16;
+	
+	//Idle instances for write operations
+	private static final Queue<AirPacker> pool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger poolSize = new AtomicInteger(0);
+	
+	/**
+	 * Leases a packer from the pool
+	 * Use in a try-with-resources block, so that the packer is returned when it's no longer needed
+	 */
 	public static AirPacker get() {
-		return instance;
+		AirPacker packer = pool.poll();
+		if(packer == null) packer = new AirPacker(initialCapacity, true);
+		else poolSize.decrementAndGet();
+		
+		packer.leased = true;
+		return packer;
 	}
 	
-	private final ByteBuffer byteBuffer;
+	private ByteBuffer byteBuffer;
+	private final boolean pooled;
+	private boolean leased = false;
 	
-	private AirPacker(ByteBuffer byteBuffer) {
-		this.byteBuffer = byteBuffer;
-		byteBuffer.mark();
+	private AirPacker(int capacity, boolean pooled) {
+		this.byteBuffer = ByteBuffer.allocate(capacity);
+		this.pooled = pooled;
 	}
 	
 	public AirPacker(int capacity) {
-		this(ByteBuffer.allocate(capacity));
+		this(capacity, false);
 	}
 	
 	public void packBoolean(boolean value) throws BufferOverflowException {
+		ensureCapacity(1);
 		byteBuffer.put((byte) (value ? 1 : 0));
 	}
 	
 	public void packShort(short value) throws BufferOverflowException {
+		ensureCapacity(Short.BYTES);
 		byteBuffer.putShort(value);
 	}
 	
 	public void packInt(int value) throws BufferOverflowException {
+		ensureCapacity(Integer.BYTES);
 		byteBuffer.putInt(value);
 	}
 	
@@ -43,10 +74,12 @@ public class AirPacker implements AutoCloseable {
 	}
 	
 	public void packLong(long value) throws BufferOverflowException {
+		ensureCapacity(Long.BYTES);
 		byteBuffer.putLong(value);
 	}
 	
 	public void packDouble(double value) throws BufferOverflowException {
+		ensureCapacity(Double.BYTES);
 		byteBuffer.putDouble(value);
 	}
 	
@@ -68,10 +101,43 @@ public class AirPacker implements AutoCloseable {
 	}
 	
 	public void packPayload(byte[] bytes, int length) throws BufferOverflowException {
+		ensureCapacity(Integer.BYTES + length);
 		packInt(length);
 		byteBuffer.put(bytes, 0, length);
 	}
 	
+	/**
+	 * Packs a payload that is written straight into this packer's buffer, so that it doesn't have to be copied in from another array
+	 * @param maxLength The maximum amount of bytes the writer can write
+	 * @param writer Writes the payload into a buffer with room for the maximum amount of bytes
+	 * @return The writer's result
+	 */
+	public <T> T packPayload(int maxLength, PayloadWriter<T> writer) throws BufferOverflowException, IOException {
+		ensureCapacity(Integer.BYTES + maxLength);
+		int lengthPosition = byteBuffer.position();
+		int payloadPosition = lengthPosition + Integer.BYTES;
+		
+		//Letting the writer fill the space after the length
+		ByteBuffer payloadBuffer = byteBuffer.duplicate();
+		payloadBuffer.position(payloadPosition).limit(payloadPosition + maxLength);
+		T result = writer.write(payloadBuffer);
+		
+		//Filling in the length
+		int length = payloadBuffer.position() - payloadPosition;
+		byteBuffer.putInt(lengthPosition, length);
+		byteBuffer.position(payloadPosition + length);
+		
+		return result;
+	}
+	
+	/**
+	 * Overwrites a boolean that has already been packed, for values that aren't known until later values have been packed
+	 * @param position The position the boolean was packed at, which is this packer's size before it was packed
+	 */
+	public void setBoolean(int position, boolean value) {
+		byteBuffer.put(position, (byte) (value ? 1 : 0));
+	}
+	
 	public void packNullablePayload(byte[] bytes) throws BufferOverflowException {
 		if(bytes == null) {
 			packBoolean(false);
@@ -81,16 +147,79 @@ public class AirPacker implements AutoCloseable {
 		}
 	}
 	
+	/**
+	 * Copies the written bytes into a new array
+	 */
 	public byte[] toByteArray() {
 		return Arrays.copyOfRange(byteBuffer.array(), 0, byteBuffer.position());
 	}
 	
+	/**
+	 * Gets a read-only view of the written bytes, without copying them
+	 * The view is only valid until this packer is written to again, reset or closed
+	 */
+	public ByteBuffer toByteBuffer() {
+		ByteBuffer view = byteBuffer.asReadOnlyBuffer();
+		view.flip();
+		return view;
+	}
+	
+	/**
+	 * Gets the amount of bytes written so far
+	 */
+	public int size() {
+		return byteBuffer.position();
+	}
+	
 	public void reset() {
-		byteBuffer.reset();
+		byteBuffer.clear();
 	}
 	
 	@Override
 	public void close() {
 		reset();
+		
+		//Returning the packer to the pool
+		if(!pooled || !leased) return;
+		leased = false;
+		if(byteBuffer.capacity() > retainedCapacity) byteBuffer = ByteBuffer.allocate(initialCapacity);
+		if(poolSize.incrementAndGet() <= maxPoolSize) {
+			pool.add(this);
+		} else {
+			poolSize.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Grows the buffer to the next size class if it can't fit the requested amount of bytes
+	 * @param length The amount of bytes about to be written
+	 * @throws BufferOverflowException If the packet would exceed the maximum capacity
+	 */
+	private void ensureCapacity(int length) throws BufferOverflowException {
+		if(byteBuffer.remaining() >= length) return;
+		
+		long required = (long) byteBuffer.position() + length;
+		if(required > maxCapacity) throw new BufferOverflowException();
+		
+		//Doubling the capacity until the data fits
+		long capacity = byteBuffer.capacity();
+		while(capacity < required) capacity *= 2;
+		
+		ByteBuffer newBuffer = ByteBuffer.allocate((int) Math.min(capacity, maxCapacity));
+		byteBuffer.flip();
+		newBuffer.put(byteBuffer);
+		byteBuffer = newBuffer;
+	}
+	
+	/**
+	 * Writes a payload directly into a packer's buffer
+	 */
+	public interface PayloadWriter<T> {
+		/**
+		 * Writes a payload
+		 * @param buffer The buffer to write to, starting at its position and ending at its limit
+		 * @return A value to pass back to the caller
+		 */
+		T write(ByteBuffer buffer) throws IOException;
 	}
 }
\ No newline at end of file
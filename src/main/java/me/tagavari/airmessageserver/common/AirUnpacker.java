@@ -64,6 +64,13 @@ public class AirUnpacker {
 		return data;
 	}
 	
+	/**
+	 * Checks if there is any more data to unpack, for reading optional trailing fields
+	 */
+	public boolean hasRemaining() {
+		return byteBuffer.hasRemaining();
+	}
+	
 	public byte[] unpackNullablePayload() throws BufferUnderflowException, LargeAllocationException {
 		if(unpackBoolean()) {
 			return unpackPayload();
@@ -1,8 +1,10 @@
 package me.tagavari.airmessageserver.connection;
 
+import me.tagavari.airmessageserver.helper.TimerService;
+import me.tagavari.airmessageserver.server.PreferencesManager;
+
 import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -48,9 +50,15 @@ public class ClientRegistration {
 	 */
 	private final AtomicBoolean isConnected = new AtomicBoolean(true);
 	
+	/**
+	 * Limits the amount of bulk data that can be queued for this client, in framed bytes
+	 * The window is half of the outbound queue limit, so that bulk transfers alone can't push a client over the limit that the direct proxies disconnect it at
+	 */
+	private final SendWindow sendWindow = new SendWindow(PreferencesManager.getPrefOutboundQueueLimit() / 2);
+	
 	//Creating the timer values
-	private volatile Timer handshakeExpiryTimer;
-	private Timer pingResponseTimer = new Timer();
+	private volatile ScheduledFuture<?> handshakeExpiryTimer;
+	private ScheduledFuture<?> pingResponseTimer = null;
 	private final Lock pingResponseTimerLock = new ReentrantLock();
 	
 	public String getInstallationID() {
@@ -80,22 +88,18 @@ public class ClientRegistration {
 	}
 	
 	public void startHandshakeExpiryTimer(long timeout, Runnable runnable) {
-		Timer timer = new Timer();
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				//Invalidating the registration timer
-				handshakeExpiryTimer = null;
-				
-				//Calling the runnable
-				runnable.run();
-			}
+		handshakeExpiryTimer = TimerService.schedule(() -> {
+			//Invalidating the registration timer
+			handshakeExpiryTimer = null;
+			
+			//Calling the runnable
+			runnable.run();
 		}, timeout);
-		handshakeExpiryTimer = timer;
 	}
 	
 	public void cancelHandshakeExpiryTimer() {
-		handshakeExpiryTimer.cancel();
+		ScheduledFuture<?> timer = handshakeExpiryTimer;
+		if(timer != null) timer.cancel(false);
 		handshakeExpiryTimer = null;
 	}
 	
@@ -103,19 +107,15 @@ public class ClientRegistration {
 		pingResponseTimerLock.lock();
 		try {
 			if(pingResponseTimer == null) {
-				pingResponseTimer = new Timer();
-				pingResponseTimer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						pingResponseTimerLock.lock();
-						try {
-							pingResponseTimer = null;
-						} finally {
-							pingResponseTimerLock.unlock();
-						}
-						
-						runnable.run();
+				pingResponseTimer = TimerService.schedule(() -> {
+					pingResponseTimerLock.lock();
+					try {
+						pingResponseTimer = null;
+					} finally {
+						pingResponseTimerLock.unlock();
 					}
+					
+					runnable.run();
 				}, timeout);
 			}
 		} finally {
@@ -127,7 +127,7 @@ public class ClientRegistration {
 		pingResponseTimerLock.lock();
 		try {
 			if(pingResponseTimer != null) {
-				pingResponseTimer.cancel();
+				pingResponseTimer.cancel(false);
 				pingResponseTimer = null;
 			}
 		} finally {
@@ -137,21 +137,10 @@ public class ClientRegistration {
 	
 	public void cancelAllTimers() {
 		//Cancelling the handshake expiry timer
-		if(handshakeExpiryTimer != null) {
-			handshakeExpiryTimer.cancel();
-			handshakeExpiryTimer = null;
-		}
+		cancelHandshakeExpiryTimer();
 		
 		//Cancelling the ping response timer
-		pingResponseTimerLock.lock();
-		try {
-			if(pingResponseTimer != null) {
-				pingResponseTimer.cancel();
-				pingResponseTimer = null;
-			}
-		} finally {
-			pingResponseTimerLock.unlock();
-		}
+		cancelPingExpiryTimer();
 	}
 	
 	public void setTransmissionCheck(byte[] value) {
@@ -170,5 +159,28 @@ public class ClientRegistration {
 	
 	public void setConnected(boolean connected) {
 		isConnected.set(connected);
+		
+		//Waking up any senders waiting on this client
+		if(!connected) sendWindow.close();
+	}
+	
+	public SendWindow getSendWindow() {
+		return sendWindow;
+	}
+	
+	/**
+	 * Gets the amount of messages that are queued to be written to this client
+	 * Proxies that don't queue messages per client always return 0
+	 */
+	public int getOutboundQueueDepth() {
+		return 0;
+	}
+	
+	/**
+	 * Gets the amount of bytes that are queued to be written to this client
+	 * Proxies that don't queue messages per client always return 0
+	 */
+	public long getOutboundQueueBytes() {
+		return 0;
 	}
 }
\ No newline at end of file
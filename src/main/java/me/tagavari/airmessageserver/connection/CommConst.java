@@ -3,7 +3,12 @@ package me.tagavari.airmessageserver.connection;
 public class CommConst {
 	//Transmission header values
 	public static final int mmCommunicationsVersion = 5;
-	public static final int mmCommunicationsSubVersion = 4;
+	//Sub-version 5 adds the following, which clients must only use once the server's nhtInformation reports sub-version 5 or later:
+	//nhtAttachmentReq requests can end with a credit window and attachmentReqFlag flags, followed by the range's offset, length and validator if attachmentReqFlagRange is set
+	//The first nhtAttachmentReq chunk then carries the range's offset, length and validator if a range was requested, and whether the file is deflated if attachmentReqFlagUncompressed was set
+	//nhtAttachmentReqCredit grants more credits, and nhtAttachmentReqFail with nstAttachmentReqTimeout ends a download that ran out of credits
+	//nhtMassRetrieval requests can carry a packet index to resume after
+	public static final int mmCommunicationsSubVersion = 5;
 	
 	//NHT - Net header type
 	public static final int nhtClose = 0;
@@ -25,6 +30,7 @@ public class CommConst {
 	public static final int nhtAttachmentReqConfirm = 209;
 	public static final int nhtAttachmentReqFail = 210;
 	public static final int nhtIDUpdate = 211;
+	public static final int nhtAttachmentReqCredit = 212;
 	
 	public static final int nhtLiteConversationRetrieval = 300;
 	public static final int nhtLiteThreadRetrieval = 301;
@@ -38,6 +44,14 @@ public class CommConst {
 	
 	public static final String hashAlgorithm = "MD5";
 	
+	//Options for nhtAttachmentReq requests
+	public static final int attachmentReqFlagRange = 1 << 0; //The request carries a byte range
+	public static final int attachmentReqFlagUncompressed = 1 << 1; //The client accepts files that aren't deflated
+	
+	//The range of attachment chunk sizes clients can request
+	public static final int minAttachmentChunkSize = 1024; //1 KiB
+	public static final int maxAttachmentChunkSize = 2 * 1024 * 1024; //2 MiB
+	
 	//NST - Net subtype
 	public static final int nstAuthenticationOK = 0;
 	public static final int nstAuthenticationUnauthorized = 1;
@@ -54,6 +68,7 @@ public class CommConst {
 	public static final int nstAttachmentReqNotSaved = 2; //File (on disk) not found
 	public static final int nstAttachmentReqUnreadable = 3; //No access to file
 	public static final int nstAttachmentReqIO = 4; //IO error
+	public static final int nstAttachmentReqTimeout = 5; //No credits were received in time
 	
 	public static final int nstCreateChatOK = 0;
 	public static final int nstCreateChatScriptError = 1; //Some unknown AppleScript error
@@ -64,6 +79,7 @@ public class CommConst {
 	public static final long handshakeTimeout = 10 * 1000; //10 seconds
 	public static final long pingTimeout = 30 * 1000; //30 seconds
 	public static final long keepAliveMillis = 30 * 60 * 1000; //30 minutes
+	public static final long attachmentCreditTimeout = 60 * 1000; //1 minute, how long a credit-paced download waits for more credits
 	
 	public static final long maxPacketAllocation = 50 * 1024 * 1024; //50 MB
 	
@@ -6,16 +6,21 @@ import me.tagavari.airmessageserver.common.AirPacker;
 import me.tagavari.airmessageserver.common.AirUnpacker;
 import me.tagavari.airmessageserver.common.Blocks;
 import me.tagavari.airmessageserver.exception.LargeAllocationException;
+import me.tagavari.airmessageserver.helper.FileChunkReader;
 import me.tagavari.airmessageserver.helper.StringHelper;
+import me.tagavari.airmessageserver.helper.TimerService;
 import me.tagavari.airmessageserver.request.*;
 import me.tagavari.airmessageserver.server.*;
 import org.eclipse.swt.widgets.Display;
 import org.jooq.impl.DSL;
 
+import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
@@ -24,7 +29,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 	protected final DataProxy<ClientRegistration> dataProxy;
 	
 	//Creating the state values
-	private final Timer keepAliveTimer = new Timer();
+	private ScheduledFuture<?> keepAliveTimer = null;
 	
 	public CommunicationsManager(DataProxy<ClientRegistration> dataProxy) {
 		this.dataProxy = dataProxy;
@@ -43,6 +48,9 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		//Setting the server as running
 		isRunning.set(true);
 		
+		//Starting a new encryption epoch for this session
+		EncryptionHelper.rotateSenderKey();
+		
 		//Registering a listener
 		dataProxy.addMessageListener(this);
 		
@@ -78,20 +86,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		
 		//Starting the keepalive timer
 		if(dataProxy.requiresPersistence()) {
-			keepAliveTimer.scheduleAtFixedRate(new TimerTask() {
-				@Override
-				public void run() {
-					//Sending a ping to all connected clients
-					boolean result = sendMessageHeaderOnly(null, CommConst.nhtPing, false);
-					
-					//Starting ping response timers
-					if(result) {
-						for(ClientRegistration connection : dataProxy.getConnections()) {
-							connection.startPingExpiryTimer(CommConst.pingTimeout, () -> initiateClose(connection));
-						}
-					}
-				}
-			}, CommConst.keepAliveMillis, CommConst.keepAliveMillis);
+			startKeepAliveTimer();
 		}
 		
 		Main.getLogger().info("Server started");
@@ -106,9 +101,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		});
 		
 		//Cancelling the keepalive timer
-		if(dataProxy.requiresPersistence()) {
-			keepAliveTimer.cancel();
-		}
+		cancelKeepAliveTimer();
 		
 		Main.getLogger().info("Server paused");
 	}
@@ -125,13 +118,33 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		isRunning.set(false);
 		
 		//Cancelling the keepalive timer
-		if(dataProxy.requiresPersistence()) {
-			keepAliveTimer.cancel();
-		}
+		cancelKeepAliveTimer();
 		
 		Main.getLogger().info("Server stopped");
 	}
 	
+	private synchronized void startKeepAliveTimer() {
+		cancelKeepAliveTimer();
+		keepAliveTimer = TimerService.scheduleAtFixedRate(() -> {
+			//Sending a ping to all connected clients
+			boolean result = sendMessageHeaderOnly(null, CommConst.nhtPing, false);
+			
+			//Starting ping response timers
+			if(result) {
+				for(ClientRegistration connection : dataProxy.getConnections()) {
+					connection.startPingExpiryTimer(CommConst.pingTimeout, () -> initiateClose(connection));
+				}
+			}
+		}, CommConst.keepAliveMillis, CommConst.keepAliveMillis);
+	}
+	
+	private synchronized void cancelKeepAliveTimer() {
+		if(keepAliveTimer != null) {
+			keepAliveTimer.cancel(false);
+			keepAliveTimer = null;
+		}
+	}
+	
 	@Override
 	public void onOpen(ClientRegistration client) {
 		if(dataProxy.requiresAuthentication()) {
@@ -150,8 +163,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 				packer.packBoolean(true); //Transmission check required
 				packer.packPayload(transmissionCheck);
 				
-				byte[] data = packer.toByteArray();
-				dataProxy.sendMessage(client, data, false);
+				dataProxy.sendMessage(client, packer.toByteBuffer(), false);
 			} catch(BufferOverflowException exception) {
 				exception.printStackTrace();
 			}
@@ -165,7 +177,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 				
 				packer.packBoolean(false); //Transmission check not required
 				
-				dataProxy.sendMessage(client, packer.toByteArray(), false);
+				dataProxy.sendMessage(client, packer.toByteBuffer(), false);
 			} catch(BufferOverflowException exception) {
 				exception.printStackTrace();
 			}
@@ -243,6 +255,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			case CommConst.nhtMassRetrieval -> handleMessageMassRetrieval(client, unpacker);
 			case CommConst.nhtConversationUpdate -> handleMessageConversationUpdate(client, unpacker);
 			case CommConst.nhtAttachmentReq -> handleMessageAttachmentRequest(client, unpacker);
+			case CommConst.nhtAttachmentReqCredit -> handleMessageAttachmentCredit(client, unpacker);
 			
 			case CommConst.nhtLiteConversationRetrieval -> handleMessageLiteConversationRetrieval(client, unpacker);
 			case CommConst.nhtLiteThreadRetrieval -> handleMessageLiteThreadRetrieval(client, unpacker);
@@ -287,7 +300,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 				try(AirPacker packer = AirPacker.get()) {
 					packer.packInt(CommConst.nhtAuthentication);
 					packer.packInt(CommConst.nstAuthenticationUnauthorized);
-					dataProxy.sendMessage(client, packer.toByteArray(), false, () -> initiateClose(client));
+					dataProxy.sendMessage(client, packer.toByteBuffer(), false, () -> initiateClose(client));
 				}
 				
 				return;
@@ -299,7 +312,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 				try(AirPacker packer = AirPacker.get()) {
 					packer.packInt(CommConst.nhtAuthentication);
 					packer.packInt(CommConst.nstAuthenticationBadRequest);
-					dataProxy.sendMessage(client, packer.toByteArray(), false, () -> initiateClose(client));
+					dataProxy.sendMessage(client, packer.toByteBuffer(), false, () -> initiateClose(client));
 				}
 				
 				return;
@@ -311,7 +324,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 				try(AirPacker packer = AirPacker.get()) {
 					packer.packInt(CommConst.nhtAuthentication);
 					packer.packInt(CommConst.nstAuthenticationUnauthorized);
-					dataProxy.sendMessage(client, packer.toByteArray(), false, () -> initiateClose(client));
+					dataProxy.sendMessage(client, packer.toByteBuffer(), false, () -> initiateClose(client));
 				}
 				
 				//Returning
@@ -346,7 +359,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packString(System.getProperty("os.version")); //System version
 			packer.packString(Constants.SERVER_VERSION); //Software version
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 		}
 		
 		//Sending the client the latest database entry ID
@@ -414,8 +427,11 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			attachmentFilterDLOther = unpacker.unpackBoolean();
 		}
 		
+		//Reading the packet to resume from (only sent by clients on sub-version 5 or later)
+		int resumePacketIndex = unpacker.hasRemaining() ? unpacker.unpackInt() : -1;
+		
 		//Creating a new request and queuing it
-		DatabaseManager.getInstance().addClientRequest(new MassRetrievalRequest(client, requestID, restrictMessages, timeSinceMessages, downloadAttachments, restrictAttachmentsDate, timeSinceAttachments, restrictAttachmentsSize, attachmentsSizeLimit, attachmentFilterWhitelist, attachmentFilterBlacklist, attachmentFilterDLOther));
+		DatabaseManager.getInstance().addClientRequest(new MassRetrievalRequest(client, requestID, restrictMessages, timeSinceMessages, downloadAttachments, restrictAttachmentsDate, timeSinceAttachments, restrictAttachmentsSize, attachmentsSizeLimit, attachmentFilterWhitelist, attachmentFilterBlacklist, attachmentFilterDLOther, resumePacketIndex));
 	}
 	
 	private void handleMessageConversationUpdate(ClientRegistration client, AirUnpacker unpacker) throws BufferUnderflowException, LargeAllocationException {
@@ -431,18 +447,49 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		//Reading the request information
 		short requestID = unpacker.unpackShort(); //The request ID to avoid collisions
 		int chunkSize = unpacker.unpackInt(); //How many bytes to upload per packet
+		chunkSize = Math.max(CommConst.minAttachmentChunkSize, Math.min(chunkSize, CommConst.maxAttachmentChunkSize));
 		String fileGUID = unpacker.unpackString(); //The GUID of the file to download
 		
+		//Reading the download options, which clients on sub-version 5 or later always send together
+		int creditWindow = 0; //How many chunks to send before waiting for credits, or 0 if the client doesn't use credits
+		int flags = 0;
+		if(unpacker.hasRemaining()) {
+			creditWindow = unpacker.unpackInt();
+			flags = unpacker.unpackInt(); //Which of the optional features below the client uses
+		}
+		
+		//Reading the range information, if the client is resuming a download or only wants part of the file
+		boolean rangeRequested = (flags & CommConst.attachmentReqFlagRange) != 0;
+		long rangeOffset = 0;
+		long rangeLength = -1;
+		String rangeValidator = null;
+		if(rangeRequested) {
+			rangeOffset = unpacker.unpackLong(); //The position of the first byte to send
+			rangeLength = unpacker.unpackLong(); //The amount of bytes to send, or -1 to send until the end of the file
+			rangeValidator = unpacker.unpackNullableString(); //The validator of the partial file the client already has
+		}
+		
+		boolean acceptsUncompressed = (flags & CommConst.attachmentReqFlagUncompressed) != 0; //Whether the file can be sent without being deflated
+		
 		//Sending a reply
 		try(AirPacker packer = AirPacker.get()) {
 			packer.packInt(CommConst.nhtAttachmentReqConfirm);
 			packer.packShort(requestID);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 		}
 		
 		//Adding the request
-		DatabaseManager.getInstance().addClientRequest(new FileRequest(client, fileGUID, requestID, chunkSize));
+		DatabaseManager.getInstance().addClientRequest(new FileRequest(client, fileGUID, requestID, chunkSize, creditWindow, rangeRequested, rangeOffset, rangeLength, rangeValidator, acceptsUncompressed));
+	}
+	
+	private void handleMessageAttachmentCredit(ClientRegistration client, AirUnpacker unpacker) throws BufferUnderflowException {
+		//Reading the request information
+		short requestID = unpacker.unpackShort(); //The request ID of the download
+		int credits = unpacker.unpackInt(); //How many more chunks the client is ready to receive
+		
+		//Letting the download continue
+		DatabaseManager.getInstance().addAttachmentCredits(client, requestID, credits);
 	}
 	
 	private void handleMessageLiteConversationRetrieval(ClientRegistration client, AirUnpacker unpacker) throws BufferUnderflowException {
@@ -466,11 +513,11 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		for(int i = 0; i < chatMembers.length; i++) chatMembers[i] = unpacker.unpackString();
 		String service = unpacker.unpackString(); //The service of this conversation
 		
-		//Creating the chat
-		Constants.Tuple<Integer, String> result = AppleScriptManager.createChat(chatMembers, service);
-		
-		//Sending a response
-		sendMessageRequestResponse(client, CommConst.nhtCreateChat, requestID, result.item1, result.item2);
+		//Queuing the chat to be created, and sending a response once it has been
+		boolean queued = AppleScriptManager.getSendQueue().submit(MessageSendQueue.keyNew(chatMembers, service),
+				() -> AppleScriptManager.createChat(chatMembers, service),
+				result -> sendMessageRequestResponse(client, CommConst.nhtCreateChat, requestID, result.item1, result.item2));
+		if(!queued) sendMessageRequestResponse(client, CommConst.nhtCreateChat, requestID, CommConst.nstCreateChatScriptError, AppleScriptManager.sendQueueFullMessage);
 	}
 	
 	private void handleMessageSendTextExisting(ClientRegistration client, AirUnpacker unpacker) throws BufferUnderflowException, LargeAllocationException {
@@ -479,11 +526,11 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		String chatGUID = unpacker.unpackString(); //The GUID of the chat to send a message to
 		String message = unpacker.unpackString(); //The message to send
 		
-		//Sending the message
-		Constants.Tuple<Integer, String> result = AppleScriptManager.sendExistingMessage(chatGUID, message);
-		
-		//Sending the response
-		sendMessageRequestResponse(client, CommConst.nhtSendResult, requestID, result.item1, result.item2);
+		//Queuing the message to be sent, and sending a response once it has been
+		boolean queued = AppleScriptManager.getSendQueue().submit(MessageSendQueue.keyExisting(chatGUID),
+				() -> AppleScriptManager.sendExistingMessage(chatGUID, message),
+				result -> sendMessageRequestResponse(client, CommConst.nhtSendResult, requestID, result.item1, result.item2));
+		if(!queued) sendMessageRequestResponse(client, CommConst.nhtSendResult, requestID, CommConst.nstSendResultScriptError, AppleScriptManager.sendQueueFullMessage);
 	}
 	
 	private void handleMessageSendTextNew(ClientRegistration client, AirUnpacker unpacker) throws BufferUnderflowException, LargeAllocationException {
@@ -494,11 +541,11 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		String service = unpacker.unpackString(); //The service of the chat
 		String message = unpacker.unpackString(); //The message to send
 		
-		//Sending the message
-		Constants.Tuple<Integer, String> result = AppleScriptManager.sendNewMessage(members, message, service);
-		
-		//Sending the response
-		sendMessageRequestResponse(client, CommConst.nhtSendResult, requestID, result.item1, result.item2);
+		//Queuing the message to be sent, and sending a response once it has been
+		boolean queued = AppleScriptManager.getSendQueue().submit(MessageSendQueue.keyNew(members, service),
+				() -> AppleScriptManager.sendNewMessage(members, message, service),
+				result -> sendMessageRequestResponse(client, CommConst.nhtSendResult, requestID, result.item1, result.item2));
+		if(!queued) sendMessageRequestResponse(client, CommConst.nhtSendResult, requestID, CommConst.nstSendResultScriptError, AppleScriptManager.sendQueueFullMessage);
 	}
 	
 	private void handleMessageSendFileExisting(ClientRegistration client, AirUnpacker unpacker) throws BufferUnderflowException, LargeAllocationException {
@@ -537,7 +584,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		try(AirPacker packer = AirPacker.get()) {
 			packer.packInt(CommConst.nhtClose);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), false, () -> dataProxy.disconnectClient(client));
+			dataProxy.sendMessage(client, packer.toByteBuffer(), false, () -> dataProxy.disconnectClient(client));
 		} catch(BufferOverflowException exception) {
 			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
 			
@@ -558,7 +605,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packInt(resultCode); //Result code
 			packer.packNullableString(details);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -574,7 +621,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		try(AirPacker packer = AirPacker.get()) {
 			packer.packInt(header);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), encrypt);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), encrypt);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -592,7 +639,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packArrayHeader(items.size());
 			for(Blocks.Block item : items) item.writeObject(packer);
 			
-			dataProxy.sendMessage(null, packer.toByteArray(), true);
+			dataProxy.sendMessage(null, packer.toByteBuffer(), true);
 		} catch(BufferOverflowException exception) {
 			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
 			Sentry.captureException(exception);
@@ -610,7 +657,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packArrayHeader(items.size());
 			for(Blocks.Block item : items) item.writeObject(packer);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -628,7 +675,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packArrayHeader(items.size());
 			for(Blocks.Block item : items) item.writeObject(packer);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -646,7 +693,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packArrayHeader(items.size());
 			for(Blocks.Block item : items) item.writeObject(packer);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -671,7 +718,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packArrayHeader(items.size());
 			for(Blocks.Block item : items) item.writeObject(packer);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -682,30 +729,36 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		}
 	}
 	
-	public boolean sendFileChunk(ClientRegistration client, short requestID, int requestIndex, String updatedFileName, String updatedFileType, long fileLength, boolean isLast, byte[] chunkData, int chunkDataLength) {
-		try(AirPacker packer = AirPacker.get()) {
-			packer.packInt(CommConst.nhtAttachmentReq);
-			
-			packer.packShort(requestID);
-			packer.packInt(requestIndex);
-			if(requestIndex == 0) {
-				packer.packNullableString(updatedFileName);
-				packer.packNullableString(updatedFileType);
-				packer.packLong(fileLength);
+	/**
+	 * Reads the next chunk of a requested file into a packet, to be sent with {@link #trySendWindowedMessage(ClientRegistration, ByteBuffer)}
+	 * @param packer The packer to write the packet to
+	 * @param range The range of the file that is being sent, or NULL if the client didn't ask for a range
+	 * @param reportCompression Whether to tell the client if the file is deflated, for clients that accept files that aren't
+	 * @param reader The reader to read the chunk from
+	 * @param chunkSize The maximum size of the chunk
+	 */
+	public void packFileChunk(AirPacker packer, short requestID, int requestIndex, String updatedFileName, String updatedFileType, long fileLength, FileRange range, boolean reportCompression, FileChunkReader reader, int chunkSize) throws IOException {
+		packer.packInt(CommConst.nhtAttachmentReq);
+		
+		packer.packShort(requestID);
+		packer.packInt(requestIndex);
+		if(requestIndex == 0) {
+			packer.packNullableString(updatedFileName);
+			packer.packNullableString(updatedFileType);
+			packer.packLong(fileLength);
+			if(range != null) {
+				packer.packLong(range.offset());
+				packer.packLong(range.length());
+				packer.packNullableString(range.validator());
 			}
-			packer.packBoolean(isLast);
-			
-			packer.packPayload(chunkData, chunkDataLength);
-			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
-			
-			return true;
-		} catch(BufferOverflowException exception) {
-			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-			Sentry.captureException(exception);
-			
-			return false;
+			if(reportCompression) packer.packBoolean(reader.isDeflated());
 		}
+		
+		//Reading the chunk straight into the packer, and then filling in whether it was the last one
+		int isLastPosition = packer.size();
+		packer.packBoolean(false);
+		boolean isLast = packer.packPayload(chunkSize, reader::readChunk);
+		packer.setBoolean(isLastPosition, isLast);
 	}
 	
 	public boolean sendMassRetrievalInitial(ClientRegistration client, short requestID, Collection<Blocks.ConversationInfo> conversations, int messageCount) {
@@ -720,7 +773,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			
 			packer.packInt(messageCount);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -741,9 +794,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packArrayHeader(conversationItems.size());
 			for(Blocks.Block item : conversationItems) item.writeObject(packer);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
-			
-			return true;
+			return sendWindowedMessage(client, packer.toByteBuffer());
 		} catch(BufferOverflowException exception) {
 			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
 			Sentry.captureException(exception);
@@ -752,7 +803,12 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		}
 	}
 	
-	public boolean sendMassRetrievalFileChunk(ClientRegistration client, short requestID, int requestIndex, String fileName, String downloadFileName, String downloadFileType, boolean isLast, String fileGUID, byte[] chunkData, int chunkDataLength) {
+	/**
+	 * Reads and sends the next chunk of a mass retrieval file
+	 * @param reader The reader to read the chunk from
+	 * @param chunkSize The maximum size of the chunk
+	 */
+	public boolean sendMassRetrievalFileChunk(ClientRegistration client, short requestID, int requestIndex, String fileName, String downloadFileName, String downloadFileType, String fileGUID, FileChunkReader reader, int chunkSize) throws IOException {
 		try(AirPacker packer = AirPacker.get()) {
 			packer.packInt(CommConst.nhtMassRetrievalFile);
 			
@@ -763,14 +819,14 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 				packer.packNullableString(downloadFileName);
 				packer.packNullableString(downloadFileType);
 			}
-			packer.packBoolean(isLast);
+			int isLastPosition = packer.size();
+			packer.packBoolean(false);
 			
 			packer.packString(fileGUID);
-			packer.packPayload(chunkData, chunkDataLength);
+			boolean isLast = packer.packPayload(chunkSize, reader::readChunk);
+			packer.setBoolean(isLastPosition, isLast);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
-			
-			return true;
+			return sendWindowedMessage(client, packer.toByteBuffer());
 		} catch(BufferOverflowException exception) {
 			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
 			Sentry.captureException(exception);
@@ -779,6 +835,49 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 		}
 	}
 	
+	/**
+	 * Sends an encrypted bulk message to a client, waiting until there is room for it in the client's send window
+	 * @return TRUE if the message was queued, or FALSE if the client disconnected or the wait was interrupted
+	 */
+	private boolean sendWindowedMessage(ClientRegistration client, ByteBuffer content) {
+		SendWindow sendWindow = client.getSendWindow();
+		long length = dataProxy.getFramedLength(content.remaining(), true);
+		
+		try {
+			if(!sendWindow.acquire(length)) return false;
+		} catch(InterruptedException exception) {
+			//Preserving the interrupt for the calling thread
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		
+		dataProxy.sendMessage(client, content, true, () -> sendWindow.release(length));
+		
+		return true;
+	}
+	
+	/**
+	 * Sends an encrypted bulk message to a client if there is room for it in the client's send window right now, without waiting
+	 * @return TRUE if the message was queued, or FALSE if there wasn't enough room or the client disconnected, in which case the content is left untouched
+	 */
+	public boolean trySendWindowedMessage(ClientRegistration client, ByteBuffer content) {
+		SendWindow sendWindow = client.getSendWindow();
+		long length = dataProxy.getFramedLength(content.remaining(), true);
+		
+		if(!sendWindow.tryAcquire(length)) return false;
+		
+		dataProxy.sendMessage(client, content, true, () -> sendWindow.release(length));
+		
+		return true;
+	}
+	
+	/**
+	 * Checks whether a bulk message with a body of the specified length would fit in the client's send window right now
+	 */
+	public boolean canSendWindowedMessage(ClientRegistration client, int contentLength) {
+		return client.getSendWindow().canAcquire(dataProxy.getFramedLength(contentLength, true));
+	}
+	
 	public boolean sendModifierUpdate(ClientRegistration client, Collection<Blocks.ModifierInfo> items) {
 		try(AirPacker packer = AirPacker.get()) {
 			packer.packInt(CommConst.nhtModifierUpdate);
@@ -786,7 +885,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			packer.packArrayHeader(items.size());
 			for(Blocks.Block item : items) item.writeObject(packer);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -803,7 +902,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			
 			packer.packLong(id);
 			
-			dataProxy.sendMessage(client, packer.toByteArray(), true);
+			dataProxy.sendMessage(client, packer.toByteBuffer(), true);
 			
 			return true;
 		} catch(BufferOverflowException exception) {
@@ -827,7 +926,7 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			
 			if(encrypt) {
 				try {
-					data = EncryptionHelper.encrypt(packer.toByteArray());
+					data = EncryptionHelper.encrypt(packer.toByteBuffer());
 				} catch(GeneralSecurityException exception) {
 					Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
 					Sentry.captureException(exception);
@@ -845,4 +944,12 @@ public class CommunicationsManager implements DataProxyListener<ClientRegistrati
 			dataProxy.sendPushNotification(2, packer.toByteArray());
 		}
 	}
+	
+	/**
+	 * The part of a file that is being sent in response to a ranged file request
+	 * @param offset The position of the first byte that is sent
+	 * @param length The amount of bytes that are sent
+	 * @param validator The validator of the file that is sent, to be passed back when resuming the download
+	 */
+	public static record FileRange(long offset, long length, String validator) {}
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package me.tagavari.airmessageserver.connection;
 
 import io.sentry.Sentry;
 import me.tagavari.airmessageserver.connection.connect.DataProxyConnect;
+import me.tagavari.airmessageserver.connection.direct.DataProxyNIO;
 import me.tagavari.airmessageserver.connection.direct.DataProxyTCP;
 import me.tagavari.airmessageserver.server.PreferencesManager;
 
@@ -22,6 +23,8 @@ public class ConnectionManager {
 	public static void assignDataProxy() {
 		if(PreferencesManager.getPrefAccountType() == PreferencesManager.accountTypeConnect) {
 			setDataProxy(new DataProxyConnect(PreferencesManager.getPrefConnectUserID()));
+		} else if(PreferencesManager.getPrefDirectTransport() == PreferencesManager.directTransportNIO) {
+			setDataProxy(new DataProxyNIO(PreferencesManager.getPrefServerPort()));
 		} else {
 			setDataProxy(new DataProxyTCP(PreferencesManager.getPrefServerPort()));
 		}
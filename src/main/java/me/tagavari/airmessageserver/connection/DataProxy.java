@@ -2,6 +2,7 @@ package me.tagavari.airmessageserver.connection;
 
 import me.tagavari.airmessageserver.server.ServerState;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
@@ -38,7 +39,65 @@ public abstract class DataProxy<C extends ClientRegistration> {
 	 *                     Leave NULL to disable this functionality
 	 *                     Please note that this runnable will be called on the writer thread!
 	 */
-	public abstract void sendMessage(C client, byte[] content, boolean encrypt, Runnable sentRunnable);
+	public void sendMessage(C client, byte[] content, boolean encrypt, Runnable sentRunnable) {
+		PreparedFrame frame = new PreparedFrame(content, encrypt);
+		try {
+			sendFrame(client, frame, sentRunnable);
+		} finally {
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Sends a message to the specified client, reading its body from a buffer without copying it
+	 * The buffer is only read until this method returns, so it can be a view of a packer that is closed right after
+	 * @param client A representation of the client object to send the data to
+	 * @param content The message's body, from the buffer's position to its limit
+	 * @param encrypt Whether or not this message should be encrypted
+	 */
+	public void sendMessage(C client, ByteBuffer content, boolean encrypt) {
+		sendMessage(client, content, encrypt, null);
+	}
+	
+	/**
+	 * Sends a message to the specified client, reading its body from a buffer without copying it
+	 * The buffer is only read until this method returns, so it can be a view of a packer that is closed right after
+	 * @param client A representation of the client object to send the data to
+	 * @param content The message's body, from the buffer's position to its limit
+	 * @param encrypt Whether or not this message should be encrypted
+	 * @param sentRunnable A runnable to be executed when the message is sent
+	 *                     Leave NULL to disable this functionality
+	 *                     Please note that this runnable will be called on the writer thread!
+	 */
+	public void sendMessage(C client, ByteBuffer content, boolean encrypt, Runnable sentRunnable) {
+		PreparedFrame frame = PreparedFrame.borrow(content, encrypt);
+		try {
+			sendFrame(client, frame, sentRunnable);
+		} finally {
+			frame.detach();
+			frame.release();
+		}
+	}
+	
+	/**
+	 * Sends a prepared message to the specified client
+	 * The proxy takes its own references to the frame for as long as it needs it, so the caller can release it as soon as this method returns
+	 * @param client A representation of the client object to send the data to, or NULL to send the data to all registered clients
+	 * @param frame The message to send
+	 * @param sentRunnable A runnable to be executed when the message is sent
+	 *                     Leave NULL to disable this functionality
+	 *                     Please note that this runnable will be called on the writer thread!
+	 */
+	public abstract void sendFrame(C client, PreparedFrame frame, Runnable sentRunnable);
+	
+	/**
+	 * Gets the amount of bytes a message to a single client takes up once it has been framed (and encrypted) by this proxy
+	 * This is the unit that outgoing data is queued and limited in
+	 * @param contentLength The length of the message's body
+	 * @param encrypt Whether or not the message should be encrypted
+	 * @return The framed length of the message
+	 */
+	public abstract int getFramedLength(int contentLength, boolean encrypt);
 	
 	/**
 	 * Sends a push notification to notify all disconnected clients of new information
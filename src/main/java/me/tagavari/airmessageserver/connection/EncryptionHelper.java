@@ -14,6 +14,9 @@ import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 public class EncryptionHelper {
 	//Creating the reference values
@@ -25,22 +28,38 @@ public class EncryptionHelper {
 	private static final int keyIterationCount = 10000;
 	private static final int keyLength = 128; //128 bits
 	
+	//Creating the key cache values
+	private static final int keyCacheSize = 64; //The maximum amount of derived keys to keep around for incoming salts
+	private static final long senderKeyMaxUses = 1L << 24; //The amount of packets to encrypt with a single salt before rotating it (well below the GCM random IV limit)
+	
+	private static final Object keyCacheLock = new Object();
+	private static final Map<Long, SecretKeySpec> keyCache = new LinkedHashMap<>(16, 0.75F, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, SecretKeySpec> eldest) {
+			return size() > keyCacheSize;
+		}
+	};
+	private static String keyCachePassword = null; //The password that the cached keys were derived from
+	private static int keyCacheGeneration = 0; //Incremented every time the cache is invalidated
+	private static SenderKey senderKey = null; //The salt and key used for outgoing messages in the current epoch
+	
 	private static String getKey() {
 		return PreferencesManager.getPrefPassword();
 	}
 	
 	public static byte[] encrypt(byte[] inData) throws GeneralSecurityException {
+		return encrypt(ByteBuffer.wrap(inData));
+	}
+	
+	/**
+	 * Encrypts the remaining bytes of a buffer, without copying them out first
+	 * The buffer's position is advanced to its limit
+	 */
+	public static byte[] encrypt(ByteBuffer inData) throws GeneralSecurityException {
 		SecureRandom random = Main.getSecureRandom();
 		
-		//Generating a salt
-		byte[] salt = new byte[saltLen];
-		random.nextBytes(salt);
-		
-		//Creating the key
-		SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(keyFactoryAlgorithm);
-		KeySpec keySpec = new PBEKeySpec(getKey().toCharArray(), salt, keyIterationCount, keyLength);
-		SecretKey secretKey = secretKeyFactory.generateSecret(keySpec);
-		SecretKeySpec secretKeySpec = new SecretKeySpec(secretKey.getEncoded(), keyAlgorithm);
+		//Getting the key for this epoch
+		SenderKey key = getSenderKey();
 		
 		//Generating the IV
 		byte[] iv = new byte[ivLen];
@@ -48,18 +67,25 @@ public class EncryptionHelper {
 		GCMParameterSpec gcmSpec = new GCMParameterSpec(keyLength, iv);
 		
 		Cipher cipher = Cipher.getInstance(cipherTransformation);
-		cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, gcmSpec);
+		cipher.init(Cipher.ENCRYPT_MODE, key.secretKeySpec, gcmSpec);
 		
-		//Encrypting the data
-		byte[] data = cipher.doFinal(inData);
-		
-		//Combining the salt, IV, and data
-		byte[] allByteArray = new byte[saltLen + ivLen + data.length];
+		//Writing the salt and IV, and encrypting the data straight after them
+		byte[] allByteArray = new byte[saltLen + ivLen + cipher.getOutputSize(inData.remaining())];
 		ByteBuffer byteBuffer = ByteBuffer.wrap(allByteArray);
-		byteBuffer.put(salt);
+		byteBuffer.put(key.salt);
 		byteBuffer.put(iv);
-		byteBuffer.put(data);
-		return byteBuffer.array();
+		cipher.doFinal(inData, byteBuffer);
+		
+		//Trimming the array in case the cipher wrote less than it reserved
+		if(byteBuffer.position() == allByteArray.length) return allByteArray;
+		else return Arrays.copyOf(allByteArray, byteBuffer.position());
+	}
+	
+	/**
+	 * Gets the length of the data {@link #encrypt(ByteBuffer)} produces for an input of the specified length
+	 */
+	public static int getEncryptedLength(int length) {
+		return saltLen + ivLen + length + keyLength / 8; //The GCM tag is as long as the key
 	}
 	
 	public static byte[] decrypt(byte[] inData) throws GeneralSecurityException {
@@ -68,11 +94,8 @@ public class EncryptionHelper {
 		byte[] iv = Arrays.copyOfRange(inData, saltLen, saltLen + ivLen);
 		byte[] data = Arrays.copyOfRange(inData, saltLen + ivLen, inData.length);
 		
-		//Creating the key
-		SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(keyFactoryAlgorithm);
-		KeySpec keySpec = new PBEKeySpec(getKey().toCharArray(), salt, keyIterationCount, keyLength);
-		SecretKey secretKey = secretKeyFactory.generateSecret(keySpec);
-		SecretKeySpec secretKeySpec = new SecretKeySpec(secretKey.getEncoded(), keyAlgorithm);
+		//Getting the key
+		SecretKeySpec secretKeySpec = getCachedKey(salt);
 		
 		//Creating the IV
 		GCMParameterSpec gcmSpec = new GCMParameterSpec(keyLength, iv);
@@ -84,4 +107,112 @@ public class EncryptionHelper {
 		//Deciphering the data
 		return cipher.doFinal(data);
 	}
+	
+	/**
+	 * Clears all derived keys, and starts a new sender epoch
+	 * Call this whenever the password changes
+	 */
+	public static void invalidateKeyCache() {
+		synchronized(keyCacheLock) {
+			keyCache.clear();
+			keyCachePassword = null;
+			keyCacheGeneration++;
+			senderKey = null;
+		}
+	}
+	
+	/**
+	 * Discards the current outgoing salt, so that the next encrypted message starts a new sender epoch
+	 */
+	public static void rotateSenderKey() {
+		synchronized(keyCacheLock) {
+			senderKey = null;
+		}
+	}
+	
+	/**
+	 * Gets the key derived from the current password and the provided salt, deriving and caching it if necessary
+	 */
+	private static SecretKeySpec getCachedKey(byte[] salt) throws GeneralSecurityException {
+		long saltID = ByteBuffer.wrap(salt).getLong();
+		
+		String password;
+		int generation;
+		synchronized(keyCacheLock) {
+			password = checkKeyCachePassword();
+			
+			//Returning the cached key
+			SecretKeySpec secretKeySpec = keyCache.get(saltID);
+			if(secretKeySpec != null) return secretKeySpec;
+			
+			generation = keyCacheGeneration;
+		}
+		
+		//Deriving the key outside of the lock, as this is slow
+		SecretKeySpec secretKeySpec = deriveKey(password, salt);
+		
+		//Caching the key, as long as the password wasn't changed in the meantime
+		synchronized(keyCacheLock) {
+			if(generation == keyCacheGeneration) keyCache.put(saltID, secretKeySpec);
+		}
+		
+		return secretKeySpec;
+	}
+	
+	/**
+	 * Gets the key to use for outgoing messages, generating a new salt if there is no active epoch
+	 */
+	private static SenderKey getSenderKey() throws GeneralSecurityException {
+		synchronized(keyCacheLock) {
+			String password = checkKeyCachePassword();
+			
+			//Starting a new epoch if there is no key, or the key has been used too many times
+			if(senderKey == null || senderKey.uses >= senderKeyMaxUses) {
+				byte[] salt = new byte[saltLen];
+				Main.getSecureRandom().nextBytes(salt);
+				
+				SecretKeySpec secretKeySpec = deriveKey(password, salt);
+				senderKey = new SenderKey(salt, secretKeySpec);
+				keyCache.put(ByteBuffer.wrap(salt).getLong(), secretKeySpec);
+			}
+			
+			senderKey.uses++;
+			return senderKey;
+		}
+	}
+	
+	/**
+	 * Invalidates the key cache if the password has changed since the keys were derived
+	 * Must be called while holding {@link #keyCacheLock}
+	 * @return The current password
+	 */
+	private static String checkKeyCachePassword() {
+		String password = getKey();
+		if(!Objects.equals(password, keyCachePassword)) {
+			keyCache.clear();
+			keyCachePassword = password;
+			keyCacheGeneration++;
+			senderKey = null;
+		}
+		
+		return password;
+	}
+	
+	private static SecretKeySpec deriveKey(String password, byte[] salt) throws GeneralSecurityException {
+		SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(keyFactoryAlgorithm);
+		KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, keyIterationCount, keyLength);
+		SecretKey secretKey = secretKeyFactory.generateSecret(keySpec);
+		return new SecretKeySpec(secretKey.getEncoded(), keyAlgorithm);
+	}
+	
+	private static class SenderKey {
+		final byte[] salt;
+		final SecretKeySpec secretKeySpec;
+		long uses = 0;
+		
+		SenderKey(byte[] salt, SecretKeySpec secretKeySpec) {
+			this.salt = salt;
+			this.secretKeySpec = secretKeySpec;
+		}
+	}
 }
\ No newline at end of file
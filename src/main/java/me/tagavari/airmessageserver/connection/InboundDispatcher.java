@@ -0,0 +1,117 @@
+package me.tagavari.airmessageserver.connection;
+
+import io.sentry.Sentry;
+import me.tagavari.airmessageserver.server.Main;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Runs the handling of received messages on a pool of worker threads, so that decrypting and handling one client's message doesn't hold up the proxy's socket thread
+ * Tasks for the same connection are run one at a time in the order they were dispatched, while tasks for different connections can run in parallel
+ * @param <K> the type that identifies a connection
+ */
+public class InboundDispatcher<K> {
+	private static final long keepAliveTime = 60 * 1000; //How long idle worker threads are kept around
+	
+	private final ThreadPoolExecutor executor;
+	private final Semaphore capacity; //NULL if the amount of queued tasks isn't limited
+	
+	//Maps connections to the tasks waiting behind the connection's running task
+	private final Map<K, Deque<Runnable>> connectionQueues = new HashMap<>();
+	
+	/**
+	 * Creates a new inbound dispatcher that never waits when a task is dispatched
+	 * The caller is responsible for limiting how many tasks it dispatches
+	 * @param threadName the name of the worker threads, which are numbered
+	 * @param workerCount the amount of tasks that can run at once
+	 */
+	public InboundDispatcher(String threadName, int workerCount) {
+		this(threadName, workerCount, -1);
+	}
+	
+	/**
+	 * Creates a new inbound dispatcher
+	 * @param threadName the name of the worker threads, which are numbered
+	 * @param workerCount the amount of tasks that can run at once
+	 * @param capacity the maximum amount of tasks that can be queued or running at once, or -1 for no limit
+	 */
+	public InboundDispatcher(String threadName, int workerCount, int capacity) {
+		this.capacity = capacity == -1 ? null : new Semaphore(capacity);
+		
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(workerCount, workerCount, keepAliveTime, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, threadName + " " + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		//Letting worker threads exit while the proxy is idle
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Queues a task for a connection, waiting for space if this dispatcher has a capacity and too many tasks are already queued
+	 * @param connection the connection the task belongs to
+	 * @param task the task to run on a worker thread
+	 */
+	public void dispatch(K connection, Runnable task) {
+		//Waiting for space, so that a proxy that receives faster than messages can be handled is held back
+		if(capacity != null) capacity.acquireUninterruptibly();
+		
+		synchronized(connectionQueues) {
+			Deque<Runnable> connectionQueue = connectionQueues.get(connection);
+			if(connectionQueue != null) {
+				//Waiting for the connection's running task to finish
+				connectionQueue.add(task);
+				return;
+			}
+			
+			connectionQueues.put(connection, new ArrayDeque<>());
+		}
+		
+		executor.execute(() -> run(connection, task));
+	}
+	
+	/**
+	 * Discards all tasks that haven't started running yet
+	 */
+	public void clear() {
+		int discardedCount = 0;
+		synchronized(connectionQueues) {
+			for(Deque<Runnable> connectionQueue : connectionQueues.values()) {
+				discardedCount += connectionQueue.size();
+				connectionQueue.clear();
+			}
+		}
+		if(capacity != null) capacity.release(discardedCount);
+	}
+	
+	private void run(K connection, Runnable task) {
+		//Running the task
+		try {
+			task.run();
+		} catch(RuntimeException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+		}
+		if(capacity != null) capacity.release();
+		
+		//Starting the connection's next task
+		Runnable nextTask;
+		synchronized(connectionQueues) {
+			Deque<Runnable> connectionQueue = connectionQueues.get(connection);
+			nextTask = connectionQueue.poll();
+			if(nextTask == null) connectionQueues.remove(connection);
+		}
+		if(nextTask != null) executor.execute(() -> run(connection, nextTask));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+package me.tagavari.airmessageserver.connection;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable message that is serialized once, and then sent to any number of clients
+ * The encrypted content and any proxy-specific wire forms are computed the first time they are needed and then cached,
+ * so that broadcasting a message costs the same amount of work no matter how many clients receive it
+ *
+ * Frames are reference-counted: whoever creates a frame holds the first reference, and every queue that holds on to the frame
+ * until it is written out takes its own with {@link #retain()}. Once every reference has been released, the cached forms are dropped.
+ *
+ * A frame can also borrow its content from a buffer it doesn't own, such as a packer's view, with {@link #borrow(ByteBuffer, boolean)}.
+ * The borrowed content is only read while the frame is being sent, and {@link #detach()} is called once the send returns,
+ * so the forms and encrypted content that queues hold on to are always copies.
+ */
+public class PreparedFrame {
+	private ByteBuffer content; //Read-only, or NULL once borrowed content has been detached
+	private final boolean encrypt;
+	
+	private final AtomicInteger referenceCount = new AtomicInteger(1);
+	
+	//Creating the cached values, guarded by this frame
+	private byte[] encryptedContent = null;
+	private final Map<Form<?>, Object> forms = new HashMap<>(2);
+	
+	/**
+	 * Creates a new prepared frame, with one reference held by the caller
+	 * @param content The message's body
+	 * @param encrypt Whether or not this message should be encrypted
+	 */
+	public PreparedFrame(byte[] content, boolean encrypt) {
+		this(ByteBuffer.wrap(content).asReadOnlyBuffer(), encrypt);
+	}
+	
+	private PreparedFrame(ByteBuffer content, boolean encrypt) {
+		this.content = content;
+		this.encrypt = encrypt;
+	}
+	
+	/**
+	 * Creates a prepared frame that reads its content from a buffer without copying it, with one reference held by the caller
+	 * The buffer must not change until {@link #detach()} is called
+	 * @param content The message's body, from the buffer's position to its limit
+	 * @param encrypt Whether or not this message should be encrypted
+	 */
+	static PreparedFrame borrow(ByteBuffer content, boolean encrypt) {
+		return new PreparedFrame(content.asReadOnlyBuffer(), encrypt);
+	}
+	
+	/**
+	 * Stops this frame from reading borrowed content, after which only the forms that have already been created are available
+	 */
+	synchronized void detach() {
+		content = null;
+	}
+	
+	/**
+	 * Gets the message's unencrypted body
+	 * @return A read-only buffer from the body's start to its end, which the caller is free to move
+	 */
+	public synchronized ByteBuffer getContent() {
+		if(content == null) throw new IllegalStateException("Frame content is no longer available");
+		return content.duplicate();
+	}
+	
+	/**
+	 * Gets whether this message should be encrypted
+	 */
+	public boolean isEncrypt() {
+		return encrypt;
+	}
+	
+	/**
+	 * Gets the message's encrypted body, encrypting it if it hasn't been encrypted yet
+	 */
+	public synchronized byte[] getEncryptedContent() throws GeneralSecurityException {
+		checkReferenced();
+		if(encryptedContent == null) encryptedContent = EncryptionHelper.encrypt(getContent());
+		return encryptedContent;
+	}
+	
+	/**
+	 * Gets the message's body as it should be sent, which is encrypted if this message should be encrypted
+	 */
+	public ByteBuffer getTransitContent() throws GeneralSecurityException {
+		return encrypt ? ByteBuffer.wrap(getEncryptedContent()) : getContent();
+	}
+	
+	/**
+	 * Gets a proxy-specific form of this message, creating it if it hasn't been created yet
+	 * @param form The form to get, which also identifies the form in the cache
+	 * @return The form's value
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T getForm(Form<T> form) throws GeneralSecurityException {
+		checkReferenced();
+		T value = (T) forms.get(form);
+		if(value == null) {
+			value = form.create(this);
+			forms.put(form, value);
+		}
+		return value;
+	}
+	
+	/**
+	 * Takes another reference to this frame
+	 * @return This frame
+	 */
+	public PreparedFrame retain() {
+		if(referenceCount.getAndIncrement() <= 0) {
+			referenceCount.decrementAndGet();
+			throw new IllegalStateException("Frame has already been released");
+		}
+		return this;
+	}
+	
+	/**
+	 * Releases a reference to this frame, dropping its cached forms if it was the last one
+	 */
+	public void release() {
+		int count = referenceCount.decrementAndGet();
+		if(count < 0) throw new IllegalStateException("Frame has already been released");
+		if(count == 0) {
+			synchronized(this) {
+				encryptedContent = null;
+				forms.clear();
+			}
+		}
+	}
+	
+	private void checkReferenced() {
+		if(referenceCount.get() <= 0) throw new IllegalStateException("Frame has already been released");
+	}
+	
+	/**
+	 * A way of wrapping a message for a specific transport
+	 * Forms are cached by identity, so each form should be a single shared instance
+	 */
+	public interface Form<T> {
+		/**
+		 * Creates this form of a message
+		 * @param frame The message to wrap
+		 * @return The wrapped message
+		 */
+		T create(PreparedFrame frame) throws GeneralSecurityException;
+	}
+}
\ No newline at end of file
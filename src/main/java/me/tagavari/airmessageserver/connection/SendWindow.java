@@ -0,0 +1,191 @@
+package me.tagavari.airmessageserver.connection;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the amount of data that has been queued for a client, but not yet written out
+ * Bulk senders wait in {@link #acquire(long)} until enough queued data has drained, so that a slow client can't make the server buffer an unbounded amount of data
+ * The rate at which queued data drains is measured, so that senders can size their work to the client's link
+ */
+public class SendWindow {
+	private static final long drainSampleInterval = TimeUnit.MILLISECONDS.toNanos(100); //The minimum amount of time to measure the drain rate over
+	private static final double drainRateSmoothing = 0.3; //How much weight to give to the newest drain rate sample
+	
+	private final long capacity;
+	
+	private final Lock lock = new ReentrantLock();
+	private final Condition drained = lock.newCondition();
+	
+	private long inFlightBytes = 0;
+	private long acquiredBytes = 0;
+	private boolean closed = false;
+	
+	private long drainSampleTime;
+	private long drainSampleBytes;
+	private volatile double drainRate = -1;
+	
+	private final List<Runnable> releaseListeners = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * Creates a new send window
+	 * @param capacity the amount of bytes that can be in flight at once
+	 */
+	public SendWindow(long capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Reserves space for a message, waiting until there is enough room
+	 * A message is always let through if nothing else is in flight, so that messages larger than the window can still be sent
+	 * {@link #release(long)} must be called with the same amount once the message has been written out
+	 * @param bytes the size of the message
+	 * @return TRUE if the space was reserved, or FALSE if the window was closed
+	 */
+	public boolean acquire(long bytes) throws InterruptedException {
+		lock.lock();
+		try {
+			while(!closed && inFlightBytes > 0 && inFlightBytes + bytes > capacity) {
+				drained.await();
+			}
+			if(closed) return false;
+			
+			reserve(bytes);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Reserves space for a message if there is enough room right now, without waiting
+	 * As with {@link #acquire(long)}, a message is always let through if nothing else is in flight
+	 * {@link #release(long)} must be called with the same amount once the message has been written out
+	 * @param bytes the size of the message
+	 * @return TRUE if the space was reserved, or FALSE if there wasn't enough room or the window was closed
+	 */
+	public boolean tryAcquire(long bytes) {
+		lock.lock();
+		try {
+			if(closed || (inFlightBytes > 0 && inFlightBytes + bytes > capacity)) return false;
+			
+			reserve(bytes);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	//Must be called while holding the lock
+	private void reserve(long bytes) {
+		//Starting a new drain rate sample if the window was idle
+		if(inFlightBytes == 0) {
+			drainSampleTime = System.nanoTime();
+			drainSampleBytes = 0;
+		}
+		
+		inFlightBytes += bytes;
+		acquiredBytes += bytes;
+	}
+	
+	/**
+	 * Checks whether a message could be reserved right now without waiting
+	 * Returns TRUE if the window is closed, as {@link #acquire(long)} won't wait in that case either
+	 * @param bytes the size of the message
+	 */
+	public boolean canAcquire(long bytes) {
+		lock.lock();
+		try {
+			return closed || inFlightBytes == 0 || inFlightBytes + bytes <= capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Frees space once a message has been written out
+	 * @param bytes the size of the message
+	 */
+	public void release(long bytes) {
+		lock.lock();
+		try {
+			inFlightBytes = Math.max(inFlightBytes - bytes, 0);
+			
+			//Updating the drain rate
+			drainSampleBytes += bytes;
+			long time = System.nanoTime();
+			long elapsed = time - drainSampleTime;
+			if(elapsed >= drainSampleInterval) {
+				double sample = drainSampleBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+				drainRate = drainRate < 0 ? sample : drainRate + (sample - drainRate) * drainRateSmoothing;
+				drainSampleTime = time;
+				drainSampleBytes = 0;
+			}
+			
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		
+		notifyReleaseListeners();
+	}
+	
+	/**
+	 * Closes this window, waking up any waiting senders
+	 * Subsequent calls to {@link #acquire(long)} will fail
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		
+		notifyReleaseListeners();
+	}
+	
+	/**
+	 * Adds a listener that is called whenever space is freed or this window is closed, for senders that don't wait in {@link #acquire(long)}
+	 * The listener is called on the thread that freed the space, so it must return quickly
+	 */
+	public void addReleaseListener(Runnable listener) {
+		releaseListeners.add(listener);
+	}
+	
+	/**
+	 * Removes a listener added with {@link #addReleaseListener(Runnable)}
+	 */
+	public void removeReleaseListener(Runnable listener) {
+		releaseListeners.remove(listener);
+	}
+	
+	private void notifyReleaseListeners() {
+		for(Runnable listener : releaseListeners) listener.run();
+	}
+	
+	/**
+	 * Gets the rate at which queued data has been written out
+	 * @return the drain rate in bytes per second, or -1 if it hasn't been measured yet
+	 */
+	public double getDrainRate() {
+		return drainRate;
+	}
+	
+	/**
+	 * Gets the total amount of bytes that have been acquired from this window
+	 */
+	public long getAcquiredBytes() {
+		lock.lock();
+		try {
+			return acquiredBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
\ No newline at end of file
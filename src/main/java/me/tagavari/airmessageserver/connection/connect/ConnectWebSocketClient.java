@@ -4,6 +4,8 @@ import io.sentry.Sentry;
 import me.tagavari.airmessageserver.server.Main;
 import me.tagavari.airmessageserver.server.PreferencesManager;
 import me.tagavari.airmessageserver.server.PropertiesManager;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.drafts.Draft_6455;
 import org.java_websocket.exceptions.WebsocketNotConnectedException;
@@ -88,6 +90,18 @@ class ConnectWebSocketClient extends WebSocketClient {
 		return true;
 	}
 	
+	/**
+	 * Gets the amount of data that has been sent, but not yet written out to the socket
+	 */
+	long getBufferedAmount() {
+		WebSocket connection = getConnection();
+		if(!(connection instanceof WebSocketImpl)) return 0;
+		
+		long bufferedAmount = 0;
+		for(ByteBuffer buffer : ((WebSocketImpl) connection).outQueue) bufferedAmount += buffer.remaining();
+		return bufferedAmount;
+	}
+	
 	@Override
 	public void onOpen(ServerHandshake handshakeData) {
 		Main.getLogger().log(Level.INFO, "Connection to Connect relay opened");
@@ -4,7 +4,10 @@ import io.sentry.Sentry;
 import me.tagavari.airmessageserver.connection.CommConst;
 import me.tagavari.airmessageserver.connection.DataProxy;
 import me.tagavari.airmessageserver.connection.EncryptionHelper;
+import me.tagavari.airmessageserver.connection.InboundDispatcher;
+import me.tagavari.airmessageserver.connection.PreparedFrame;
 import me.tagavari.airmessageserver.helper.StringHelper;
+import me.tagavari.airmessageserver.helper.TimerService;
 import me.tagavari.airmessageserver.server.Main;
 import me.tagavari.airmessageserver.server.PreferencesManager;
 import me.tagavari.airmessageserver.server.ServerState;
@@ -14,16 +17,21 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 public class DataProxyConnect extends DataProxy<ClientSocket> implements ConnectionListener {
 	private static final Random random = new Random();
 	private static final long handshakeTimeout = 8 * 1000;
 	private static final long disconnectReconnectMaxAttempts = 8; //The max num of attempts before capping the delay time - not before giving up
+	private static final long sentCheckInterval = 50; //How often to check if the WebSocket has written out its buffered data
+	private static final int dispatchWorkerCount = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8)); //The amount of received messages that can be handled at once
+	private static final int dispatchCapacity = 1024; //The maximum amount of received messages waiting to be handled
+	
+	//Broadcast messages wrapped for the Connect proxy, depending on whether a password is set
+	private static final PreparedFrame.Form<byte[]> broadcastFormSecure = frame -> wrapMessage(frame, null, true);
+	private static final PreparedFrame.Form<byte[]> broadcastFormInsecure = frame -> wrapMessage(frame, null, false);
 	
 	//Creating the state values
 	private final Map<Integer, ClientSocket> connectionList = Collections.synchronizedMap(new HashMap<>());
@@ -32,17 +40,30 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 	private final String connectUserID;
 	private String connectRegistrationIDToken;
 	
-	private Timer handshakeTimeoutTimer;
+	private ScheduledFuture<?> handshakeTimeoutTimer;
 	
 	private int disconnectReconnectAttempts = 0;
-	private final ScheduledExecutorService disconnectReconnectService = Executors.newSingleThreadScheduledExecutor();
 	private ScheduledFuture<?> disconnectReconnectFuture = null;
-	private final TimerTask disconnectReconnectTimerTask = new TimerTask() {
+	
+	//Sent runnables waiting for the WebSocket to write out its buffered data
+	private final Queue<Runnable> pendingSentRunnables = new ConcurrentLinkedQueue<>();
+	private ScheduledFuture<?> sentCheckFuture = null;
+	
+	//Handles received messages off of the WebSocket thread
+	private final InboundDispatcher<Integer> inboundDispatcher = new InboundDispatcher<>("Connect dispatch worker", dispatchWorkerCount, dispatchCapacity);
+	
+	//Decides the order messages are sent through the WebSocket in
+	private final OutboundScheduler outboundScheduler = new OutboundScheduler(new OutboundScheduler.Transport() {
 		@Override
-		public void run() {
-			startServer();
+		public void write(byte[] data) {
+			connectClient.sendSafe(data);
 		}
-	};
+		
+		@Override
+		public long getBufferedAmount() {
+			return connectClient.getBufferedAmount();
+		}
+	});
 	
 	/**
 	 * Assumes that this server is already registered, and connects via user ID
@@ -80,8 +101,14 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 	}
 	
 	private void removeClient(int connectionID) {
+		//Dropping messages that are still waiting to be sent to the client
+		outboundScheduler.remove(connectionID);
+		
 		ClientSocket client = connectionList.remove(connectionID);
-		if(client != null) notifyClose(client);
+		if(client != null) {
+			client.setConnected(false);
+			notifyClose(client);
+		}
 		
 		Main.getLogger().info("Client disconnected from Connect proxy" + " (" + connectionID + ")");
 	}
@@ -100,6 +127,12 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 		
 		//Connecting the client
 		connectClient.connect();
+		
+		//Starting the outbound writer
+		outboundScheduler.start();
+		
+		//Starting the sent check timer
+		if(sentCheckFuture == null) sentCheckFuture = TimerService.scheduleWithFixedDelay(this::runPendingSentRunnables, sentCheckInterval, sentCheckInterval);
 	}
 	
 	@Override
@@ -109,30 +142,68 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 		
 		//Stopping the reconnection timer
 		stopReconnectionTimer();
+		
+		//Stopping the outbound writer
+		outboundScheduler.stop();
+		Main.getLogger().log(Level.INFO, "Connect outbound statistics:\n" + getOutboundStatistics());
+		
+		//Stopping the sent check timer
+		if(sentCheckFuture != null) {
+			sentCheckFuture.cancel(false);
+			sentCheckFuture = null;
+		}
+		runPendingSentRunnables();
 	}
 	
 	@Override
-	public void sendMessage(ClientSocket client, byte[] content, boolean encrypt, Runnable sentRunnable) {
-		//Encrypting the content if requested and a password is set
+	public void sendFrame(ClientSocket client, PreparedFrame frame, Runnable sentRunnable) {
+		//Constructing the message, encrypting it if requested and a password is set
 		boolean supportsEncryption = !StringHelper.isNullOrEmpty(PreferencesManager.getPrefPassword());
-		boolean isEncrypted = encrypt && supportsEncryption;
-		if(isEncrypted) {
-			try {
-				content = EncryptionHelper.encrypt(content);
-			} catch(GeneralSecurityException exception) {
-				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-				Sentry.captureException(exception);
-				return;
+		byte[] data;
+		try {
+			if(client == null) {
+				//Broadcasts are the same for every client, so they can be cached
+				data = frame.getForm(supportsEncryption ? broadcastFormSecure : broadcastFormInsecure);
+			} else {
+				data = wrapMessage(frame, client, supportsEncryption);
 			}
+		} catch(GeneralSecurityException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+			return;
 		}
 		
-		//Constructing and sending the message
+		//Queueing the data
+		outboundScheduler.add(client == null ? null : client.getConnectionID(), OutboundScheduler.getPriority(frame.getContent()), data, sentRunnable == null ? null : () -> {
+			//Running the sent runnable once the WebSocket has written out the data
+			pendingSentRunnables.add(sentRunnable);
+			if(!connectClient.hasBufferedData()) runPendingSentRunnables();
+		});
+	}
+	
+	@Override
+	public int getFramedLength(int contentLength, boolean encrypt) {
+		boolean isEncrypted = encrypt && !StringHelper.isNullOrEmpty(PreferencesManager.getPrefPassword());
+		return Integer.BYTES * 2 + 1 + (isEncrypted ? EncryptionHelper.getEncryptedLength(contentLength) : contentLength);
+	}
+	
+	/**
+	 * Wraps a message to be sent through the Connect proxy
+	 * @param frame The message to wrap
+	 * @param client The client to send the message to, or NULL to send the message to all clients
+	 * @param supportsEncryption Whether a password is set, and messages can be encrypted
+	 * @return The wrapped message
+	 */
+	private static byte[] wrapMessage(PreparedFrame frame, ClientSocket client, boolean supportsEncryption) throws GeneralSecurityException {
+		boolean isEncrypted = frame.isEncrypt() && supportsEncryption;
+		ByteBuffer content = isEncrypted ? ByteBuffer.wrap(frame.getEncryptedContent()) : frame.getContent();
+		
 		ByteBuffer byteBuffer;
 		if(client == null) {
-			byteBuffer = ByteBuffer.allocate(Integer.BYTES + 1 + content.length);
+			byteBuffer = ByteBuffer.allocate(Integer.BYTES + 1 + content.remaining());
 			byteBuffer.putInt(NHT.nhtServerProxyBroadcast);
 		} else {
-			byteBuffer = ByteBuffer.allocate(Integer.BYTES * 2 + 1 + content.length);
+			byteBuffer = ByteBuffer.allocate(Integer.BYTES * 2 + 1 + content.remaining());
 			byteBuffer.putInt(NHT.nhtServerProxy);
 			byteBuffer.putInt(client.getConnectionID());
 		}
@@ -141,11 +212,19 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 		else byteBuffer.put((byte) -102); //We don't support encryption
 		byteBuffer.put(content);
 		
-		//Sending the data
-		connectClient.sendSafe(byteBuffer.array());
+		return byteBuffer.array();
+	}
+	
+	/**
+	 * Runs the sent runnables of all messages that have been written out
+	 * The WebSocket doesn't report when individual messages are written out, so waiting runnables are run once its buffer is empty
+	 */
+	private void runPendingSentRunnables() {
+		if(pendingSentRunnables.isEmpty()) return;
+		if(connectClient != null && !connectClient.isClosed() && connectClient.hasBufferedData()) return;
 		
-		//Running the sent runnable immediately
-		if(sentRunnable != null) sentRunnable.run();
+		Runnable runnable;
+		while((runnable = pendingSentRunnables.poll()) != null) runnable.run();
 	}
 	
 	@Override
@@ -158,7 +237,7 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 		byteBuffer.putInt(CommConst.mmCommunicationsSubVersion);
 		byteBuffer.put(payload);
 		
-		connectClient.sendSafe(byteBuffer.array());
+		outboundScheduler.add(null, OutboundScheduler.priorityRealtime, byteBuffer.array(), null);
 	}
 	
 	@Override
@@ -172,10 +251,10 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 		byteBuffer.putInt(NHT.nhtServerClose);
 		byteBuffer.putInt(connectionID);
 		
-		connectClient.sendSafe(byteBuffer.array());
-		
-		//Removing the client
+		//Removing the client, and dropping messages that haven't been sent to it yet
 		removeClient(connectionID);
+		
+		outboundScheduler.add(null, OutboundScheduler.priorityControl, byteBuffer.array(), null);
 	}
 	
 	@Override
@@ -186,19 +265,13 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 	@Override
 	public void handleConnect() {
 		//Starting the timeout timer
-		handshakeTimeoutTimer = new Timer();
-		handshakeTimeoutTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				connectClient.close();
-			}
-		}, handshakeTimeout);
+		handshakeTimeoutTimer = TimerService.schedule(() -> connectClient.close(), handshakeTimeout);
 	}
 	
 	@Override
 	public void handleDisconnect(int code, String reason) {
 		//Cancelling the timeout timer
-		if(handshakeTimeoutTimer != null) handshakeTimeoutTimer.cancel();
+		if(handshakeTimeoutTimer != null) handshakeTimeoutTimer.cancel(false);
 		
 		//Mapping the code
 		ServerState localError = switch(code) {
@@ -212,10 +285,17 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 			default -> ServerState.ERROR_EXTERNAL;
 		};
 		
+		//Discarding messages from the lost connection that haven't been handled or sent yet
+		inboundDispatcher.clear();
+		outboundScheduler.clear();
+		
 		//If there was a connection error, just try to reconnect later
 		if(localError == ServerState.ERROR_INTERNET && !Main.isSetupMode()) {
 			//Clearing connected clients
-			connectionList.clear();
+			synchronized(connectionList) {
+				for(ClientSocket client : connectionList.values()) client.setConnected(false);
+				connectionList.clear();
+			}
 			
 			//Notifying the listeners
 			notifyPause(localError);
@@ -238,7 +318,7 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 			switch(type) {
 				case NHT.nhtConnectionOK -> {
 					//Cancelling the timeout timer
-					if(handshakeTimeoutTimer != null) handshakeTimeoutTimer.cancel();
+					if(handshakeTimeoutTimer != null) handshakeTimeoutTimer.cancel(false);
 					
 					//Notifying the listeners that the connection is now good
 					notifyStart();
@@ -251,14 +331,14 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 					int connectionID = bytes.getInt();
 					
 					//Adding the connection
-					addClient(connectionID);
+					inboundDispatcher.dispatch(connectionID, () -> addClient(connectionID));
 				}
 				case NHT.nhtServerClose -> {
 					//Reading the data
 					int connectionID = bytes.getInt();
 					
 					//Removing the connection
-					removeClient(connectionID);
+					inboundDispatcher.dispatch(connectionID, () -> removeClient(connectionID));
 				}
 				case NHT.nhtServerProxy -> {
 					//Reading the data
@@ -292,29 +372,9 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 					}
 					byte[] data = new byte[bytes.remaining()];
 					bytes.get(data);
-
-					//Decrypting the data
-					if(isEncrypted && !StringHelper.isNullOrEmpty(PreferencesManager.getPrefPassword())) {
-						try {
-							data = EncryptionHelper.decrypt(data);
-						} catch(GeneralSecurityException exception) {
-							Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-							Sentry.captureException(exception);
-							return;
-						}
-					}
-
-					//Getting the client
-					ClientSocket client = connectionList.get(connectionID);
-					
-					//Disconnecting the client if it couldn't be found
-					if(client == null) {
-						disconnectClient(connectionID);
-						return;
-					}
 					
-					//Notifying the communications manager
-					notifyMessage(client, data, isSecure);
+					//Decrypting and handling the message on a worker thread
+					inboundDispatcher.dispatch(connectionID, () -> handleProxyMessage(connectionID, data, isSecure, isEncrypted));
 				}
 			}
 		} catch(BufferUnderflowException exception) {
@@ -322,6 +382,38 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 		}
 	}
 	
+	/**
+	 * Decrypts a message received from a client and passes it on to the listeners
+	 * @param connectionID The ID of the client that sent the message
+	 * @param data The message data
+	 * @param isSecure Whether the client has encryption enabled
+	 * @param isEncrypted Whether the message data is encrypted
+	 */
+	private void handleProxyMessage(int connectionID, byte[] data, boolean isSecure, boolean isEncrypted) {
+		//Decrypting the data
+		if(isEncrypted && !StringHelper.isNullOrEmpty(PreferencesManager.getPrefPassword())) {
+			try {
+				data = EncryptionHelper.decrypt(data);
+			} catch(GeneralSecurityException exception) {
+				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+				Sentry.captureException(exception);
+				return;
+			}
+		}
+		
+		//Getting the client
+		ClientSocket client = connectionList.get(connectionID);
+		
+		//Disconnecting the client if it couldn't be found
+		if(client == null) {
+			disconnectClient(connectionID);
+			return;
+		}
+		
+		//Notifying the communications manager
+		notifyMessage(client, data, isSecure);
+	}
+	
 	@Override
 	public boolean requiresAuthentication() {
 		return !StringHelper.isNullOrEmpty(PreferencesManager.getPrefPassword());
@@ -332,6 +424,13 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 		return false;
 	}
 	
+	/**
+	 * Gets a summary of how long outgoing messages of each priority class waited to be sent
+	 */
+	String getOutboundStatistics() {
+		return outboundScheduler.getStatisticsSummary();
+	}
+	
 	@Override
 	public String getDisplayName() {
 		return "Connect";
@@ -340,7 +439,7 @@ public class DataProxyConnect extends DataProxy<ClientSocket> implements Connect
 	private void startReconnectionTimer() {
 		//Wait an exponentially increasing wait period + a random delay
 		int randomDelay = random.nextInt(1000);
-		disconnectReconnectFuture = disconnectReconnectService.schedule(disconnectReconnectTimerTask, powerN(2, disconnectReconnectAttempts) * 1000 + randomDelay, TimeUnit.MILLISECONDS);
+		disconnectReconnectFuture = TimerService.schedule(this::startServer, powerN(2, disconnectReconnectAttempts) * 1000 + randomDelay);
 		
 		//Adding to the attempt counter
 		if(disconnectReconnectAttempts < disconnectReconnectMaxAttempts) {
@@ -0,0 +1,348 @@
+package me.tagavari.airmessageserver.connection.connect;
+
+import io.sentry.Sentry;
+import me.tagavari.airmessageserver.connection.CommConst;
+import me.tagavari.airmessageserver.server.LatencyStatistics;
+import me.tagavari.airmessageserver.server.Main;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Queues messages to be sent through the Connect relay, which all share a single WebSocket
+ * Messages are handed to the WebSocket by priority class, so that control messages and real-time updates don't wait behind bulk transfers,
+ * and connections take turns within each priority class by the amount of data they send (deficit round robin), so that one connection can't starve the others
+ * Only a limited amount of data is handed to the WebSocket at once, so that newly queued messages can still overtake data that hasn't been written out yet
+ *
+ * Messages to the same connection are sent in order within a priority class, but may be reordered across priority classes
+ */
+class OutboundScheduler {
+	static final int priorityControl = 0;
+	static final int priorityRealtime = 1;
+	static final int priorityInteractive = 2;
+	static final int priorityBulk = 3;
+	private static final String[] priorityNames = {"control", "real-time", "interactive", "bulk"};
+	
+	private static final int quantum = 64 * 1024; //The amount of data a connection can send per turn (64 KiB)
+	private static final long sendBufferLimit = 512 * 1024; //The maximum amount of data to leave buffered in the WebSocket (512 KiB)
+	//How often to check if the WebSocket's buffer has drained, in milliseconds
+	//The WebSocket doesn't report when it writes out data, so the check backs off while the buffer stays full
+	private static final long bufferCheckIntervalMin = 1;
+	private static final long bufferCheckIntervalMax = 32;
+	
+	private final Transport transport;
+	
+	private final Lock lock = new ReentrantLock();
+	private final Condition messageAvailable = lock.newCondition();
+	
+	private final PriorityClass[] priorityClasses = {new PriorityClass(), new PriorityClass(), new PriorityClass(), new PriorityClass()};
+	private final LatencyStatistics[] statistics = {new LatencyStatistics(), new LatencyStatistics(), new LatencyStatistics(), new LatencyStatistics()};
+	
+	private Thread writerThread = null;
+	
+	/**
+	 * Creates a new outbound scheduler
+	 * @param transport the transport to write messages to
+	 */
+	OutboundScheduler(Transport transport) {
+		this.transport = transport;
+	}
+	
+	/**
+	 * Gets the priority class of a message, by its message type
+	 * @param content the message's unencrypted body
+	 */
+	static int getPriority(ByteBuffer content) {
+		if(content.remaining() < Integer.BYTES) return priorityInteractive;
+		
+		return switch(content.getInt(content.position())) {
+			case CommConst.nhtClose, CommConst.nhtPing, CommConst.nhtPong, CommConst.nhtInformation, CommConst.nhtAuthentication -> priorityControl;
+			case CommConst.nhtMessageUpdate, CommConst.nhtModifierUpdate, CommConst.nhtIDUpdate -> priorityRealtime;
+			//Attachment failures are kept behind the attachment's chunks, and the end of a mass retrieval is kept behind its data
+			case CommConst.nhtMassRetrieval, CommConst.nhtMassRetrievalFile, CommConst.nhtMassRetrievalFinish, CommConst.nhtAttachmentReq, CommConst.nhtAttachmentReqFail -> priorityBulk;
+			default -> priorityInteractive;
+		};
+	}
+	
+	/**
+	 * Starts the thread that writes messages to the transport
+	 */
+	void start() {
+		lock.lock();
+		try {
+			if(writerThread != null) return;
+			
+			writerThread = new Thread(this::runWriter, "Connect outbound writer");
+			writerThread.setDaemon(true);
+			writerThread.start();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops the writer thread, and drops all queued messages
+	 */
+	void stop() {
+		lock.lock();
+		try {
+			if(writerThread != null) {
+				writerThread.interrupt();
+				writerThread = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		clear();
+	}
+	
+	/**
+	 * Queues a message
+	 * @param connectionID the connection the message is sent to, or NULL if the message isn't for a specific connection
+	 * @param priority the message's priority class
+	 * @param data the message's wire data
+	 * @param sentRunnable a runnable to be called once the message has been handed to the transport or dropped, or NULL
+	 */
+	void add(Integer connectionID, int priority, byte[] data, Runnable sentRunnable) {
+		lock.lock();
+		try {
+			priorityClasses[priority].add(connectionID, new OutboundMessage(data, sentRunnable, priority, System.nanoTime()));
+			messageAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops the queued messages of a connection
+	 * The sent runnables of the dropped messages are still run
+	 */
+	void remove(int connectionID) {
+		List<OutboundMessage> droppedMessages = new ArrayList<>();
+		lock.lock();
+		try {
+			for(PriorityClass priorityClass : priorityClasses) priorityClass.remove(connectionID, droppedMessages::add);
+		} finally {
+			lock.unlock();
+		}
+		
+		for(OutboundMessage message : droppedMessages) message.finish();
+	}
+	
+	/**
+	 * Drops all queued messages
+	 * The sent runnables of the dropped messages are still run
+	 */
+	void clear() {
+		List<OutboundMessage> droppedMessages = new ArrayList<>();
+		lock.lock();
+		try {
+			for(PriorityClass priorityClass : priorityClasses) priorityClass.clear(droppedMessages::add);
+		} finally {
+			lock.unlock();
+		}
+		
+		for(OutboundMessage message : droppedMessages) message.finish();
+	}
+	
+	/**
+	 * Gets a summary of how long messages of each priority class waited to be sent
+	 */
+	String getStatisticsSummary() {
+		StringBuilder stringBuilder = new StringBuilder();
+		for(int i = 0; i < statistics.length; i++) {
+			if(stringBuilder.length() > 0) stringBuilder.append('\n');
+			stringBuilder.append(priorityNames[i]).append(": ").append(statistics[i]);
+		}
+		return stringBuilder.toString();
+	}
+	
+	private void runWriter() {
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				OutboundMessage message = take();
+				
+				//Writing the message
+				long startTime = System.nanoTime();
+				try {
+					transport.write(message.data);
+				} catch(RuntimeException exception) {
+					Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+					Sentry.captureException(exception);
+				}
+				long endTime = System.nanoTime();
+				message.finish();
+				
+				//Recording the timings
+				statistics[message.priority].record(startTime - message.queueTime, endTime - startTime);
+			}
+		} catch(InterruptedException exception) {
+			//Exiting
+		}
+	}
+	
+	/**
+	 * Waits for the next message to send, and for room in the transport's buffer
+	 */
+	private OutboundMessage take() throws InterruptedException {
+		lock.lock();
+		try {
+			long bufferCheckInterval = bufferCheckIntervalMin;
+			while(true) {
+				//Waiting for a message
+				if(isEmpty()) {
+					messageAvailable.await();
+					continue;
+				}
+				
+				//Waiting for the transport to write out its buffered data
+				if(transport.getBufferedAmount() >= sendBufferLimit) {
+					//Sleeping instead of waiting on the condition, as newly queued messages can't be sent until the buffer drains either
+					lock.unlock();
+					try {
+						Thread.sleep(bufferCheckInterval);
+					} finally {
+						lock.lock();
+					}
+					bufferCheckInterval = Math.min(bufferCheckInterval * 2, bufferCheckIntervalMax);
+					continue;
+				}
+				
+				//Taking a message from the highest priority class that has one
+				for(PriorityClass priorityClass : priorityClasses) {
+					OutboundMessage message = priorityClass.poll();
+					if(message != null) return message;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private boolean isEmpty() {
+		for(PriorityClass priorityClass : priorityClasses) {
+			if(!priorityClass.isEmpty()) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * The connection that messages are written to
+	 */
+	interface Transport {
+		/**
+		 * Writes a message, or drops it if the connection is closed
+		 */
+		void write(byte[] data);
+		
+		/**
+		 * Gets the amount of data that has been written, but not yet sent
+		 */
+		long getBufferedAmount();
+	}
+	
+	private static class OutboundMessage {
+		final byte[] data;
+		final Runnable sentRunnable;
+		final int priority;
+		final long queueTime;
+		
+		OutboundMessage(byte[] data, Runnable sentRunnable, int priority, long queueTime) {
+			this.data = data;
+			this.sentRunnable = sentRunnable;
+			this.priority = priority;
+			this.queueTime = queueTime;
+		}
+		
+		/**
+		 * Runs this message's sent runnable, once it has been written or dropped
+		 */
+		void finish() {
+			if(sentRunnable != null) sentRunnable.run();
+		}
+	}
+	
+	/**
+	 * Holds the waiting messages of a single priority class, and rotates between connections
+	 */
+	private static class PriorityClass {
+		private final Map<Integer, Flow> flows = new HashMap<>();
+		private final Deque<Flow> activeFlows = new ArrayDeque<>(); //Connections with waiting messages, in turn order
+		
+		void add(Integer connectionID, OutboundMessage message) {
+			Flow flow = flows.get(connectionID);
+			if(flow == null) {
+				//Giving the connection a turn
+				flow = new Flow(connectionID);
+				flow.deficit = quantum;
+				flows.put(connectionID, flow);
+				activeFlows.add(flow);
+			}
+			flow.messages.add(message);
+		}
+		
+		boolean isEmpty() {
+			return activeFlows.isEmpty();
+		}
+		
+		OutboundMessage poll() {
+			Flow flow;
+			while((flow = activeFlows.peek()) != null) {
+				//Sending the connection's next message if it fits in the rest of its turn
+				OutboundMessage message = flow.messages.peek();
+				if(message.data.length <= flow.deficit) {
+					flow.messages.poll();
+					flow.deficit -= message.data.length;
+					
+					//Removing the connection once it has no more waiting messages
+					if(flow.messages.isEmpty()) {
+						activeFlows.poll();
+						flows.remove(flow.connectionID);
+					}
+					
+					return message;
+				}
+				
+				//Ending the connection's turn, and sending it to the back of the line with its next turn's allowance
+				activeFlows.poll();
+				flow.deficit += quantum;
+				activeFlows.add(flow);
+			}
+			
+			return null;
+		}
+		
+		void remove(int connectionID, Consumer<OutboundMessage> droppedListener) {
+			Flow flow = flows.remove(connectionID);
+			if(flow == null) return;
+			
+			activeFlows.remove(flow);
+			flow.messages.forEach(droppedListener);
+		}
+		
+		void clear(Consumer<OutboundMessage> droppedListener) {
+			for(Flow flow : activeFlows) flow.messages.forEach(droppedListener);
+			flows.clear();
+			activeFlows.clear();
+		}
+	}
+	
+	/**
+	 * The waiting messages of a single connection
+	 */
+	private static class Flow {
+		final Integer connectionID;
+		final Deque<OutboundMessage> messages = new ArrayDeque<>();
+		long deficit; //The amount of data this connection can still send in its current turn
+		
+		Flow(Integer connectionID) {
+			this.connectionID = connectionID;
+		}
+	}
+}
\ No newline at end of file
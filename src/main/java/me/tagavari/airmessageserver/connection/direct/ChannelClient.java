@@ -0,0 +1,295 @@
+package me.tagavari.airmessageserver.connection.direct;
+
+import me.tagavari.airmessageserver.connection.ClientRegistration;
+import me.tagavari.airmessageserver.connection.CommConst;
+import me.tagavari.airmessageserver.connection.PreparedFrame;
+import me.tagavari.airmessageserver.server.Main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * A client connected over a non-blocking socket channel
+ * Incoming frames are parsed incrementally as data arrives, and outgoing frames are queued until the channel can accept them
+ */
+class ChannelClient extends ClientRegistration {
+	private static final int gatherLimit = 64; //The maximum amount of frames to pass to a single write
+	
+	private final SocketChannel channel;
+	private final String address;
+	private SelectionKey selectionKey;
+	
+	//Creating the read state values
+	private final ByteBuffer headerBuffer = ByteBuffer.allocate(DirectFrame.headerLength);
+	private byte[] payload = null; //The content of the frame being read, or NULL if the header is being read
+	private int payloadPosition;
+	private boolean payloadEncrypted;
+	private boolean readStopped = false; //Set once a frame has been rejected, as the rest of the stream can't be parsed
+	private final AtomicInteger pendingFrames = new AtomicInteger(); //The amount of frames that have been read, but not yet handled
+	
+	//Creating the write state values
+	private final Queue<OutboundFrame> writeQueue = new ArrayDeque<>();
+	private long queuedBytes = 0;
+	private final ByteBuffer[] gatherBuffers = new ByteBuffer[gatherLimit]; //Only used by the selector thread, while holding the write queue lock
+	
+	ChannelClient(SocketChannel channel) {
+		this.channel = channel;
+		
+		SocketAddress socketAddress = channel.socket().getRemoteSocketAddress();
+		this.address = socketAddress instanceof InetSocketAddress ? ((InetSocketAddress) socketAddress).getAddress().getHostAddress() : String.valueOf(socketAddress);
+	}
+	
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	String getAddress() {
+		return address;
+	}
+	
+	SelectionKey getSelectionKey() {
+		return selectionKey;
+	}
+	
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+	
+	/**
+	 * Consumes data read from the channel, passing each completed frame to the listener
+	 * Must only be called from the selector thread
+	 * @param buffer the data that was read, which is consumed entirely unless a frame is rejected
+	 * @param listener the listener to pass completed frames to
+	 * @return FALSE if a frame was rejected for being too large, and the connection should be closed
+	 */
+	boolean consume(ByteBuffer buffer, FrameListener listener) {
+		while(buffer.hasRemaining()) {
+			if(payload == null) {
+				//Reading the header
+				int length = Math.min(buffer.remaining(), headerBuffer.remaining());
+				ByteBuffer slice = buffer.slice();
+				slice.limit(length);
+				headerBuffer.put(slice);
+				buffer.position(buffer.position() + length);
+				if(headerBuffer.hasRemaining()) break;
+				
+				headerBuffer.flip();
+				int contentLen = headerBuffer.getInt();
+				boolean isEncrypted = headerBuffer.get() != 0;
+				headerBuffer.clear();
+				
+				//Checking if the content length is greater than the maximum packet allocation
+				if(contentLen < 0 || contentLen > CommConst.maxPacketAllocation) {
+					readStopped = true;
+					listener.onFrameRejected(contentLen);
+					return false;
+				}
+				
+				payload = new byte[contentLen];
+				payloadPosition = 0;
+				payloadEncrypted = isEncrypted;
+			} else {
+				//Reading the content
+				int length = Math.min(buffer.remaining(), payload.length - payloadPosition);
+				buffer.get(payload, payloadPosition, length);
+				payloadPosition += length;
+			}
+			
+			//Passing on the frame once it is complete
+			if(payload != null && payloadPosition == payload.length) {
+				byte[] content = payload;
+				payload = null;
+				listener.onFrame(content, payloadEncrypted);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets whether this client's frames are no longer being read
+	 */
+	boolean isReadStopped() {
+		return readStopped;
+	}
+	
+	/**
+	 * Records that a frame has been read and is waiting to be handled
+	 * @return the amount of frames waiting to be handled
+	 */
+	int addPendingFrame() {
+		return pendingFrames.incrementAndGet();
+	}
+	
+	/**
+	 * Records that a frame has been handled
+	 * @return the amount of frames still waiting to be handled
+	 */
+	int removePendingFrame() {
+		return pendingFrames.decrementAndGet();
+	}
+	
+	/**
+	 * Gets the amount of frames that have been read, but not yet handled
+	 */
+	int getPendingFrames() {
+		return pendingFrames.get();
+	}
+	
+	/**
+	 * Queues a frame to be written to the channel
+	 * The frame is dropped if the client is disconnected, but its sent runnable is still run
+	 * @param frame The message to send
+	 * @param data The message's framed data
+	 * @param sentRunnable A runnable to be executed when the frame is written, or NULL
+	 */
+	void queueFrame(PreparedFrame frame, byte[] data, Runnable sentRunnable) {
+		OutboundFrame outboundFrame = new OutboundFrame(frame, data, sentRunnable);
+		synchronized(writeQueue) {
+			if(isConnected()) {
+				writeQueue.add(outboundFrame);
+				queuedBytes += data.length;
+				return;
+			}
+		}
+		
+		outboundFrame.finish();
+	}
+	
+	/**
+	 * Writes as much queued data as the channel will accept without blocking
+	 * Queued frames are written together with gathering writes, so that many small frames don't each take a system call
+	 * @return TRUE if all queued data has been written
+	 */
+	boolean flush() throws IOException {
+		List<OutboundFrame> writtenFrames = new ArrayList<>();
+		try {
+			while(true) {
+				synchronized(writeQueue) {
+					if(writeQueue.isEmpty()) return true;
+					
+					//Collecting the buffers of the frames at the front of the queue
+					int count = 0;
+					for(OutboundFrame frame : writeQueue) {
+						gatherBuffers[count++] = frame.buffer;
+						if(count == gatherBuffers.length) break;
+					}
+					
+					channel.write(gatherBuffers, 0, count);
+					boolean writeComplete = !gatherBuffers[count - 1].hasRemaining();
+					Arrays.fill(gatherBuffers, 0, count, null);
+					
+					//Removing the frames that have been written completely
+					while(!writeQueue.isEmpty() && !writeQueue.peek().buffer.hasRemaining()) {
+						OutboundFrame frame = writeQueue.poll();
+						queuedBytes -= frame.buffer.capacity();
+						writtenFrames.add(frame);
+					}
+					
+					//Stopping if the channel didn't accept everything
+					if(!writeComplete) return false;
+				}
+			}
+		} finally {
+			//Finishing the written frames outside of the lock
+			for(OutboundFrame frame : writtenFrames) frame.finish();
+		}
+	}
+	
+	/**
+	 * Closes the channel, and drops any frames that haven't been written yet
+	 */
+	void disconnect() {
+		//Cancelling timers
+		cancelAllTimers();
+		
+		//Setting the connection as closed
+		synchronized(writeQueue) {
+			//Returning if the connection is not open
+			if(!isConnected()) return;
+			
+			setConnected(false);
+		}
+		
+		try {
+			//Closing the channel
+			channel.close();
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		}
+		
+		//Running the sent runnables of the dropped frames
+		OutboundFrame frame;
+		while(true) {
+			synchronized(writeQueue) {
+				frame = writeQueue.poll();
+				if(frame != null) queuedBytes -= frame.buffer.capacity();
+			}
+			if(frame == null) break;
+			frame.finish();
+		}
+		
+		//Logging the connection
+		Main.getLogger().info("Client disconnected from " + address);
+	}
+	
+	@Override
+	public int getOutboundQueueDepth() {
+		synchronized(writeQueue) {
+			return writeQueue.size();
+		}
+	}
+	
+	@Override
+	public long getOutboundQueueBytes() {
+		synchronized(writeQueue) {
+			return queuedBytes;
+		}
+	}
+	
+	interface FrameListener {
+		/**
+		 * Called when a complete frame has been read
+		 * @param data The frame's content
+		 * @param isEncrypted Whether the content is encrypted
+		 */
+		void onFrame(byte[] data, boolean isEncrypted);
+		
+		/**
+		 * Called when a frame's header declares a size that can't be accepted
+		 * @param contentLen The declared content length
+		 */
+		void onFrameRejected(int contentLen);
+	}
+	
+	private static class OutboundFrame {
+		final PreparedFrame frame;
+		final ByteBuffer buffer; //This client's own view of the shared framed data
+		final Runnable sentRunnable;
+		
+		OutboundFrame(PreparedFrame frame, byte[] data, Runnable sentRunnable) {
+			this.frame = frame.retain();
+			this.buffer = ByteBuffer.wrap(data);
+			this.sentRunnable = sentRunnable;
+		}
+		
+		/**
+		 * Releases this frame and runs its sent runnable, once it has been written or dropped
+		 */
+		void finish() {
+			frame.release();
+			if(sentRunnable != null) sentRunnable.run();
+		}
+	}
+}
\ No newline at end of file
@@ -2,6 +2,7 @@ package me.tagavari.airmessageserver.connection.direct;
 
 import io.sentry.Sentry;
 import me.tagavari.airmessageserver.connection.ClientRegistration;
+import me.tagavari.airmessageserver.connection.PreparedFrame;
 import me.tagavari.airmessageserver.server.Constants;
 import me.tagavari.airmessageserver.server.Main;
 
@@ -16,6 +17,7 @@ import java.util.logging.Level;
 class ClientSocket extends ClientRegistration {
 	private final Socket socket;
 	private final ReaderThread readerThread;
+	private final WriterThread writerThread;
 	private final DataOutputStream outputStream;
 	private final ListenerThreadListener callbacks;
 	
@@ -36,19 +38,34 @@ class ClientSocket extends ClientRegistration {
 				listener.cancelConnection(ClientSocket.this, cleanup);
 			}
 		});
-		readerThread.start();
 		outputStream = new DataOutputStream(socket.getOutputStream());
+		writerThread = new WriterThread(this);
+		writerThread.start();
+		readerThread.start();
 		
 		//Logging the connection
 		Main.getLogger().info("Client connected from " + socket.getInetAddress().getHostName() + " (" + socket.getInetAddress().getHostAddress() + ")");
 	}
 	
-	synchronized boolean sendDataSync(byte[] data, boolean isEncrypted) {
+	/**
+	 * Queues a message to be written to this client by its writer thread
+	 * @param frame The message to send
+	 * @param data The message's framed data
+	 * @param sentRunnable A runnable to be executed when the message is written, or NULL
+	 */
+	void sendData(PreparedFrame frame, byte[] data, Runnable sentRunnable) {
+		writerThread.sendPacket(new WriterThread.PacketStruct(frame, data, sentRunnable));
+	}
+	
+	/**
+	 * Writes framed data to this client
+	 * @param data The data to write, already framed with its header
+	 * @return TRUE if the data was written
+	 */
+	synchronized boolean sendDataSync(byte[] data) {
 		if(!isConnected()) return false;
 		
 		try {
-			outputStream.writeInt(data.length);
-			outputStream.writeBoolean(isEncrypted);
 			outputStream.write(data);
 			outputStream.flush();
 			
@@ -88,10 +105,21 @@ class ClientSocket extends ClientRegistration {
 			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
 		}
 		
-		//Finishing the reader thread
+		//Finishing the reader and writer threads
 		readerThread.interrupt();
+		writerThread.interrupt();
 		
 		//Logging the connection
 		Main.getLogger().info("Client disconnected from " + socket.getInetAddress().getHostName() + " (" + socket.getInetAddress().getHostAddress() + ")");
 	}
+	
+	@Override
+	public int getOutboundQueueDepth() {
+		return writerThread.getQueueDepth();
+	}
+	
+	@Override
+	public long getOutboundQueueBytes() {
+		return writerThread.getQueuedBytes();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,387 @@
+package me.tagavari.airmessageserver.connection.direct;
+
+import io.sentry.Sentry;
+import me.tagavari.airmessageserver.connection.ConnectionManager;
+import me.tagavari.airmessageserver.connection.DataProxy;
+import me.tagavari.airmessageserver.connection.EncryptionHelper;
+import me.tagavari.airmessageserver.connection.InboundDispatcher;
+import me.tagavari.airmessageserver.connection.PreparedFrame;
+import me.tagavari.airmessageserver.helper.BufferPool;
+import me.tagavari.airmessageserver.server.Constants;
+import me.tagavari.airmessageserver.server.Main;
+import me.tagavari.airmessageserver.server.ServerState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * A direct connection proxy that serves every client from a single selector thread, using non-blocking socket channels
+ * Unlike {@link DataProxyTCP}, the amount of threads stays the same no matter how many clients are connected
+ * The selector thread only reads, frames, and writes data: received frames are decrypted and handled on a pool of worker threads, in order for each client
+ */
+public class DataProxyNIO extends DataProxy<ChannelClient> {
+	private static final int readBufferSize = 64 * 1024; //64 KiB
+	private static final int readBufferPoolSize = 4;
+	private static final int dispatchWorkerCount = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8)); //The amount of received frames that can be handled at once
+	private static final int pendingFrameLimit = 16; //The amount of received frames a client can have waiting to be handled before it is no longer read from
+	
+	//Creating the state values
+	private volatile boolean serverRunning = false;
+	private final List<ChannelClient> connectionList = Collections.synchronizedList(new ArrayList<>());
+	
+	private final int port; //The port to run the next server on
+	
+	//Creating the selector values
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+	private final BufferPool readBufferPool = new BufferPool(readBufferSize, readBufferPoolSize);
+	private final Queue<ChannelClient> pendingWriteClients = new ConcurrentLinkedQueue<>(); //Clients with newly queued frames, or that can be read from again
+	private final OutboundMonitor<ChannelClient> outboundMonitor = new OutboundMonitor<>(connectionList, this::disconnectClient);
+	private final InboundDispatcher<ChannelClient> inboundDispatcher = new InboundDispatcher<>("Direct dispatch worker", dispatchWorkerCount);
+	
+	public DataProxyNIO(int port) {
+		this.port = port;
+	}
+	
+	@Override
+	public void startServer() {
+		//Returning if the server is already running
+		if(serverRunning) return;
+		
+		//Returning if the requested port is already bound
+		if(!Constants.checkPortAvailability(port)) {
+			notifyStop(ServerState.ERROR_TCP_PORT);
+			return;
+		}
+		
+		try {
+			//Opening the server channel
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+			closeSelector();
+			notifyStop(ServerState.ERROR_INTERNAL);
+			return;
+		}
+		
+		//Starting the selector thread
+		Selector selector = this.selector;
+		selectorThread = new Thread(() -> runSelector(selector), "Direct selector");
+		selectorThread.start();
+		
+		//Starting the outbound monitor
+		outboundMonitor.start();
+		
+		//Updating the server state
+		serverRunning = true;
+		
+		//Notifying the listeners
+		notifyStart();
+	}
+	
+	private void runSelector(Selector selector) {
+		try {
+			while(!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+				selector.select();
+				
+				//Writing out newly queued frames, and updating the interest of clients that can be read from again
+				ChannelClient pendingClient;
+				while((pendingClient = pendingWriteClients.poll()) != null) write(pendingClient);
+				
+				//Handling the ready channels
+				for(Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext();) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					
+					try {
+						if(!key.isValid()) continue;
+						
+						if(key.isAcceptable()) {
+							accept(selector);
+						} else {
+							ChannelClient client = (ChannelClient) key.attachment();
+							if(key.isReadable()) read(client);
+							if(key.isValid() && key.isWritable()) write(client);
+						}
+					} catch(CancelledKeyException exception) {
+						//The client was disconnected from another thread
+					} catch(RuntimeException exception) {
+						Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+						Sentry.captureException(exception);
+					}
+				}
+			}
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+		} finally {
+			//Closing the selector from its own thread, as its key sets aren't safe to use concurrently
+			closeSelector();
+		}
+	}
+	
+	private void accept(Selector selector) {
+		try {
+			SocketChannel channel = serverChannel.accept();
+			if(channel == null) return;
+			
+			channel.configureBlocking(false);
+			ChannelClient client = new ChannelClient(channel);
+			client.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, client));
+			
+			//Adding the client
+			connectionList.add(client);
+			
+			//Logging the connection
+			Main.getLogger().info("Client connected from " + client.getAddress());
+			
+			//Notifying the communications manager (ahead of any of the client's messages)
+			inboundDispatcher.dispatch(client, () -> notifyOpen(client));
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		}
+	}
+	
+	private void read(ChannelClient client) {
+		ByteBuffer buffer = readBufferPool.acquire();
+		try {
+			int count = client.getChannel().read(buffer);
+			if(count == -1) {
+				//The client closed the connection
+				cancelConnection(client, false);
+				return;
+			}
+			
+			buffer.flip();
+			boolean result = client.consume(buffer, new ChannelClient.FrameListener() {
+				@Override
+				public void onFrame(byte[] data, boolean isEncrypted) {
+					client.addPendingFrame();
+					inboundDispatcher.dispatch(client, () -> processData(client, data, isEncrypted));
+				}
+				
+				@Override
+				public void onFrameRejected(int contentLen) {
+					//Logging the error
+					Main.getLogger().log(Level.WARNING, "Rejecting large packet (size " + contentLen + ")");
+					Sentry.addBreadcrumb("Rejecting large packet (size " + contentLen + ")", Constants.sentryBCatPacket);
+				}
+			});
+			
+			//Closing the connection if the client sent an invalid packet
+			if(!result) {
+				client.getSelectionKey().interestOps(getInterestOps(client, true));
+				cancelConnection(client, true);
+				return;
+			}
+			
+			//Not reading any more from the client until its frames have been handled
+			if(client.getPendingFrames() >= pendingFrameLimit) {
+				SelectionKey key = client.getSelectionKey();
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+			
+			//A low-level socket exception occurred, close forcefully
+			cancelConnection(client, false);
+		} finally {
+			readBufferPool.release(buffer);
+		}
+	}
+	
+	private void write(ChannelClient client) {
+		SelectionKey key = client.getSelectionKey();
+		if(!key.isValid()) return;
+		
+		try {
+			//Only waiting for the channel to become writable while there is data left to write
+			boolean flushed = client.flush();
+			key.interestOps(getInterestOps(client, flushed));
+		} catch(CancelledKeyException exception) {
+			//The client was disconnected while its data was being written
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+			cancelConnection(client, false);
+		}
+	}
+	
+	private static int getInterestOps(ChannelClient client, boolean flushed) {
+		int ops = 0;
+		if(!client.isReadStopped() && client.getPendingFrames() < pendingFrameLimit) ops |= SelectionKey.OP_READ;
+		if(!flushed) ops |= SelectionKey.OP_WRITE;
+		return ops;
+	}
+	
+	//Called from a worker thread
+	private void processData(ChannelClient client, byte[] data, boolean isEncrypted) {
+		try {
+			//Decrypting the data
+			if(isEncrypted) {
+				try {
+					data = EncryptionHelper.decrypt(data);
+				} catch(GeneralSecurityException exception) {
+					Main.getLogger().log(Level.WARNING, "Failed to decrypt incoming message / " + exception.getMessage(), exception);
+					return;
+				}
+			}
+			
+			//Notifying the communications manager
+			notifyMessage(client, data, isEncrypted);
+		} finally {
+			//Reading from the client again once enough of its frames have been handled
+			if(client.removePendingFrame() == pendingFrameLimit - 1) wakeSelector(client);
+		}
+	}
+	
+	private void cancelConnection(ChannelClient client, boolean cleanup) {
+		if(cleanup) ConnectionManager.getCommunicationsManager().initiateClose(client);
+		else disconnectClient(client);
+	}
+	
+	@Override
+	public void stopServer() {
+		//Returning if the server isn't running
+		if(!serverRunning) return;
+		
+		//Stopping the threads, and discarding messages that haven't been handled yet
+		outboundMonitor.stop();
+		inboundDispatcher.clear();
+		selectorThread.interrupt();
+		if(Thread.currentThread() != selectorThread) {
+			try {
+				selectorThread.join();
+			} catch(InterruptedException exception) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		//Closing connected client connections
+		for(ChannelClient client : new HashSet<>(connectionList)) client.disconnect();
+		
+		//Updating the server state
+		serverRunning = false;
+		
+		//Notifying the listeners
+		notifyStop(ServerState.STOPPED);
+	}
+	
+	private void closeSelector() {
+		try {
+			if(serverChannel != null) serverChannel.close();
+			if(selector != null) selector.close();
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		}
+	}
+	
+	@Override
+	public void sendFrame(ChannelClient client, PreparedFrame frame, Runnable sentRunnable) {
+		//Framing the message, encrypting it if requested
+		byte[] data;
+		try {
+			data = frame.getForm(DirectFrame.wireForm);
+		} catch(GeneralSecurityException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+			return;
+		}
+		
+		if(client != null) {
+			queueFrame(client, frame, data, sentRunnable);
+		} else {
+			//Sending the message to all registered clients
+			List<ChannelClient> targetList;
+			synchronized(connectionList) {
+				targetList = new ArrayList<>(connectionList);
+			}
+			targetList.removeIf(target -> !target.isClientRegistered());
+			
+			//Running the sent runnable once the message has been written to every client
+			Runnable targetRunnable = null;
+			if(sentRunnable != null) {
+				if(targetList.isEmpty()) {
+					sentRunnable.run();
+				} else {
+					AtomicInteger remainingTargets = new AtomicInteger(targetList.size());
+					targetRunnable = () -> {
+						if(remainingTargets.decrementAndGet() == 0) sentRunnable.run();
+					};
+				}
+			}
+			
+			for(ChannelClient target : targetList) queueFrame(target, frame, data, targetRunnable);
+		}
+	}
+	
+	private void queueFrame(ChannelClient client, PreparedFrame frame, byte[] data, Runnable sentRunnable) {
+		client.queueFrame(frame, data, sentRunnable);
+		
+		//Waking up the selector thread to write the frame
+		wakeSelector(client);
+	}
+	
+	/**
+	 * Wakes up the selector thread to write a client's queued frames and update which operations it is interested in
+	 */
+	private void wakeSelector(ChannelClient client) {
+		pendingWriteClients.add(client);
+		Selector selector = this.selector;
+		if(selector != null) selector.wakeup();
+	}
+	
+	@Override
+	public int getFramedLength(int contentLength, boolean encrypt) {
+		return DirectFrame.getFramedLength(contentLength, encrypt);
+	}
+	
+	@Override
+	public void sendPushNotification(int version, byte[] payload) {
+		//Not supported
+	}
+	
+	@Override
+	public void disconnectClient(ChannelClient client) {
+		//Disconnecting the client
+		client.disconnect();
+		
+		//Unlisting the client's connection
+		boolean removed = connectionList.remove(client);
+		
+		//Notifying the communications manager (after any of the client's messages that are still being handled)
+		if(removed) inboundDispatcher.dispatch(client, () -> notifyClose(client));
+	}
+	
+	@Override
+	public Collection<ChannelClient> getConnections() {
+		return connectionList;
+	}
+	
+	@Override
+	public boolean requiresAuthentication() {
+		return true;
+	}
+	
+	@Override
+	public boolean requiresPersistence() {
+		return true;
+	}
+	
+	@Override
+	public String getDisplayName() {
+		return "Direct";
+	}
+}
\ No newline at end of file
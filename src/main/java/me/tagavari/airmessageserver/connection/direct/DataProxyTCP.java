@@ -4,6 +4,7 @@ import io.sentry.Sentry;
 import me.tagavari.airmessageserver.connection.ConnectionManager;
 import me.tagavari.airmessageserver.connection.DataProxy;
 import me.tagavari.airmessageserver.connection.EncryptionHelper;
+import me.tagavari.airmessageserver.connection.PreparedFrame;
 import me.tagavari.airmessageserver.server.Constants;
 import me.tagavari.airmessageserver.server.Main;
 import me.tagavari.airmessageserver.server.ServerState;
@@ -11,6 +12,7 @@ import me.tagavari.airmessageserver.server.ServerState;
 import java.net.ServerSocket;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 public class DataProxyTCP extends DataProxy<ClientSocket> implements ListenerThreadListener {
@@ -23,7 +25,7 @@ public class DataProxyTCP extends DataProxy<ClientSocket> implements ListenerThr
 	
 	//Creating the thread values
 	private ListenerThread listenerThread;
-	private WriterThread writerThread;
+	private final OutboundMonitor<ClientSocket> outboundMonitor = new OutboundMonitor<>(connectionList, this::disconnectClient);
 	
 	public DataProxyTCP(int port) {
 		this.port = port;
@@ -54,9 +56,8 @@ public class DataProxyTCP extends DataProxy<ClientSocket> implements ListenerThr
 			return;
 		}
 		
-		//Starting the writer thread
-		writerThread = new WriterThread(connectionList);
-		writerThread.start();
+		//Starting the outbound monitor
+		outboundMonitor.start();
 		
 		//Setting the port
 		serverRunning = true;
@@ -104,7 +105,7 @@ public class DataProxyTCP extends DataProxy<ClientSocket> implements ListenerThr
 		
 		//Stopping the threads
 		if(listenerThread != null) listenerThread.closeAndInterrupt();
-		if(writerThread != null) writerThread.interrupt();
+		outboundMonitor.stop();
 		
 		//Closing connected client connections
 		for(ClientSocket client : new HashSet<>(connectionList)) client.disconnect();
@@ -117,20 +118,47 @@ public class DataProxyTCP extends DataProxy<ClientSocket> implements ListenerThr
 	}
 	
 	@Override
-	public void sendMessage(ClientSocket client, byte[] content, boolean encrypt, Runnable sentRunnable) {
-		//Encrypting the content if requested
-		if(encrypt) {
-			try {
-				content = EncryptionHelper.encrypt(content);
-			} catch(GeneralSecurityException exception) {
-				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-				Sentry.captureException(exception);
-				return;
-			}
+	public void sendFrame(ClientSocket client, PreparedFrame frame, Runnable sentRunnable) {
+		//Framing the message, encrypting it if requested
+		byte[] data;
+		try {
+			data = frame.getForm(DirectFrame.wireForm);
+		} catch(GeneralSecurityException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+			return;
 		}
 		
-		//Sending the packet
-		if(writerThread != null) writerThread.sendPacket(new WriterThread.PacketStruct(client, content, encrypt, sentRunnable));
+		if(client != null) {
+			client.sendData(frame, data, sentRunnable);
+		} else {
+			//Sending the message to all registered clients
+			List<ClientSocket> targetList;
+			synchronized(connectionList) {
+				targetList = new ArrayList<>(connectionList);
+			}
+			targetList.removeIf(target -> !target.isClientRegistered());
+			
+			//Running the sent runnable once the message has been written to every client
+			Runnable targetRunnable = null;
+			if(sentRunnable != null) {
+				if(targetList.isEmpty()) {
+					sentRunnable.run();
+				} else {
+					AtomicInteger remainingTargets = new AtomicInteger(targetList.size());
+					targetRunnable = () -> {
+						if(remainingTargets.decrementAndGet() == 0) sentRunnable.run();
+					};
+				}
+			}
+			
+			for(ClientSocket target : targetList) target.sendData(frame, data, targetRunnable);
+		}
+	}
+	
+	@Override
+	public int getFramedLength(int contentLength, boolean encrypt) {
+		return DirectFrame.getFramedLength(contentLength, encrypt);
 	}
 	
 	@Override
@@ -144,10 +172,10 @@ public class DataProxyTCP extends DataProxy<ClientSocket> implements ListenerThr
 		client.disconnect();
 		
 		//Unlisting the client's connection
-		connectionList.remove(client);
+		boolean removed = connectionList.remove(client);
 		
 		//Notifying the communications manager
-		notifyClose(client);
+		if(removed) notifyClose(client);
 	}
 	
 	@Override
@@ -0,0 +1,35 @@
+package me.tagavari.airmessageserver.connection.direct;
+
+import me.tagavari.airmessageserver.connection.EncryptionHelper;
+import me.tagavari.airmessageserver.connection.PreparedFrame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The framing used for messages on direct connections: [int content length][bool encrypted][content]
+ */
+final class DirectFrame {
+	static final int headerLength = Integer.BYTES + 1; //Content length + encryption flag
+	
+	/**
+	 * A message framed for a direct connection, ready to be written to a socket as a single block
+	 */
+	static final PreparedFrame.Form<byte[]> wireForm = frame -> {
+		ByteBuffer content = frame.getTransitContent();
+		
+		ByteBuffer byteBuffer = ByteBuffer.allocate(headerLength + content.remaining());
+		byteBuffer.putInt(content.remaining());
+		byteBuffer.put((byte) (frame.isEncrypt() ? 1 : 0));
+		byteBuffer.put(content);
+		return byteBuffer.array();
+	};
+	
+	/**
+	 * Gets the length of a message once it has been framed with {@link #wireForm}
+	 */
+	static int getFramedLength(int contentLength, boolean encrypt) {
+		return headerLength + (encrypt ? EncryptionHelper.getEncryptedLength(contentLength) : contentLength);
+	}
+	
+	private DirectFrame() {}
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package me.tagavari.airmessageserver.connection.direct;
+
+import me.tagavari.airmessageserver.connection.ClientRegistration;
+import me.tagavari.airmessageserver.helper.TimerService;
+import me.tagavari.airmessageserver.server.Main;
+import me.tagavari.airmessageserver.server.PreferencesManager;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Periodically checks how much data is queued for each client, and disconnects clients that aren't keeping up
+ * A client is disconnected once its queue has stayed above the high-water mark for too long, or immediately if its queue grows far past it
+ */
+class OutboundMonitor<C extends ClientRegistration> {
+	private static final long checkInterval = 5 * 1000; //5 seconds
+	private static final long stallTimeout = 30 * 1000; //30 seconds
+	private static final int hardLimitMultiplier = 4; //How many times the high-water mark a client's queue can grow to before it is disconnected immediately
+	
+	private final Collection<C> connections;
+	private final Consumer<C> disconnectListener;
+	private final long highWaterMark = PreferencesManager.getPrefOutboundQueueLimit();
+	
+	//Maps clients to the time their queue went over the high-water mark, only accessed from the timer thread
+	private final Map<C, Long> overLimitTimes = new HashMap<>();
+	private ScheduledFuture<?> checkFuture;
+	
+	/**
+	 * Creates a new outbound monitor
+	 * @param connections the proxy's synchronized list of connected clients
+	 * @param disconnectListener a listener called from the timer thread to disconnect a client
+	 */
+	OutboundMonitor(Collection<C> connections, Consumer<C> disconnectListener) {
+		this.connections = connections;
+		this.disconnectListener = disconnectListener;
+	}
+	
+	void start() {
+		checkFuture = TimerService.scheduleWithFixedDelay(this::check, checkInterval, checkInterval);
+	}
+	
+	void stop() {
+		if(checkFuture != null) checkFuture.cancel(false);
+		checkFuture = null;
+	}
+	
+	private void check() {
+		List<C> clients;
+		synchronized(connections) {
+			clients = new ArrayList<>(connections);
+		}
+		
+		//Forgetting clients that have disconnected
+		overLimitTimes.keySet().retainAll(clients);
+		
+		long time = System.currentTimeMillis();
+		for(C client : clients) {
+			long queuedBytes = client.getOutboundQueueBytes();
+			if(queuedBytes <= highWaterMark) {
+				overLimitTimes.remove(client);
+				continue;
+			}
+			
+			long overLimitTime = overLimitTimes.computeIfAbsent(client, key -> time);
+			if(queuedBytes > highWaterMark * hardLimitMultiplier || time - overLimitTime >= stallTimeout) {
+				Main.getLogger().log(Level.WARNING, "Disconnecting client " + client.getClientName() + ", it isn't keeping up with outgoing data (" + client.getOutboundQueueDepth() + " messages / " + queuedBytes + " bytes queued)");
+				overLimitTimes.remove(client);
+				disconnectListener.accept(client);
+			} else {
+				Main.getLogger().log(Level.FINE, "Client " + client.getClientName() + " is over the outbound queue limit (" + client.getOutboundQueueDepth() + " messages / " + queuedBytes + " bytes queued)");
+			}
+		}
+	}
+}
\ No newline at end of file
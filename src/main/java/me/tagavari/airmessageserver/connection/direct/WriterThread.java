@@ -1,60 +1,119 @@
 package me.tagavari.airmessageserver.connection.direct;
 
-import java.util.Collection;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import me.tagavari.airmessageserver.connection.PreparedFrame;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Writes queued packets to a single client
+ * Each client has its own writer, so that a client that is slow to receive data doesn't hold up any other clients
+ */
 class WriterThread extends Thread {
-	//Creating the queue
-	private final BlockingQueue<PacketStruct> uploadQueue = new LinkedBlockingQueue<>();
+	private final ClientSocket client;
 	
-	private final Collection<ClientSocket> clientList;
+	//Creating the queue
+	private final Queue<PacketStruct> uploadQueue = new ArrayDeque<>();
+	private long queuedBytes = 0;
+	private boolean finished = false;
 	
-	public WriterThread(Collection<ClientSocket> clientList) {
-		this.clientList = clientList;
+	WriterThread(ClientSocket client) {
+		this.client = client;
 	}
 	
 	@Override
 	public void run() {
 		try {
 			while(!isInterrupted()) {
-				PacketStruct packet = uploadQueue.take();
-				if(packet.target == null) {
-					synchronized(clientList) {
-						for(ClientSocket client : clientList) {
-							if(!client.isClientRegistered()) continue;
-							client.sendDataSync(packet.content, packet.isEncrypted);
-						}
-					}
-				} else {
-					packet.target.sendDataSync(packet.content, packet.isEncrypted);
+				PacketStruct packet;
+				synchronized(uploadQueue) {
+					while(uploadQueue.isEmpty()) uploadQueue.wait();
+					packet = uploadQueue.peek();
 				}
-				if(packet.sentRunnable != null) packet.sentRunnable.run();
+				
+				client.sendDataSync(packet.data);
+				
+				synchronized(uploadQueue) {
+					uploadQueue.poll();
+					queuedBytes -= packet.data.length;
+				}
+				packet.finish();
 			}
 		} catch(InterruptedException exception) {
-			return;
+			//Returning
+		} finally {
+			//Dropping the packets that weren't written
+			PacketStruct packet;
+			while(true) {
+				synchronized(uploadQueue) {
+					finished = true;
+					packet = uploadQueue.poll();
+					if(packet != null) queuedBytes -= packet.data.length;
+				}
+				if(packet == null) break;
+				packet.finish();
+			}
 		}
 	}
 	
+	/**
+	 * Queues a packet to be written to the client
+	 * If the writer has finished, the packet is dropped, but its sent runnable is still run
+	 */
 	void sendPacket(PacketStruct packet) {
-		uploadQueue.add(packet);
+		synchronized(uploadQueue) {
+			if(!finished) {
+				uploadQueue.add(packet);
+				queuedBytes += packet.data.length;
+				uploadQueue.notify();
+				return;
+			}
+		}
+		
+		packet.finish();
+	}
+	
+	/**
+	 * Gets the amount of packets waiting to be written, including the one being written
+	 */
+	int getQueueDepth() {
+		synchronized(uploadQueue) {
+			return uploadQueue.size();
+		}
+	}
+	
+	/**
+	 * Gets the amount of bytes waiting to be written, including the packet being written
+	 */
+	long getQueuedBytes() {
+		synchronized(uploadQueue) {
+			return queuedBytes;
+		}
 	}
 	
 	static class PacketStruct {
-		final ClientSocket target;
-		private final byte[] content;
-		final boolean isEncrypted;
-		Runnable sentRunnable = null;
+		private final PreparedFrame frame;
+		private final byte[] data;
+		private final Runnable sentRunnable;
 		
-		PacketStruct(ClientSocket target, byte[] content, boolean isEncrypted) {
-			this.target = target;
-			this.isEncrypted = isEncrypted;
-			this.content = content;
+		/**
+		 * Creates a new packet, taking a reference to its frame until the packet is finished
+		 * @param frame The message this packet is for
+		 * @param data The message's framed data
+		 * @param sentRunnable A runnable to be executed when the packet is written, or NULL
+		 */
+		PacketStruct(PreparedFrame frame, byte[] data, Runnable sentRunnable) {
+			this.frame = frame.retain();
+			this.data = data;
+			this.sentRunnable = sentRunnable;
 		}
 		
-		PacketStruct(ClientSocket target, byte[] content, boolean isEncrypted, Runnable sentRunnable) {
-			this(target, content, isEncrypted);
-			this.sentRunnable = sentRunnable;
+		/**
+		 * Releases this packet's frame and runs its sent runnable, once it has been written or dropped
+		 */
+		void finish() {
+			frame.release();
+			if(sentRunnable != null) sentRunnable.run();
 		}
 	}
 }
\ No newline at end of file
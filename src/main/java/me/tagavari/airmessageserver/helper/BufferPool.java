@@ -0,0 +1,51 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a pool of equally-sized direct buffers, so that socket and file reads don't allocate a new buffer every time
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final int maxPoolSize;
+	
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger poolSize = new AtomicInteger(0);
+	
+	/**
+	 * Creates a new buffer pool
+	 * @param bufferSize the capacity of each buffer
+	 * @param maxPoolSize the maximum amount of idle buffers to keep around
+	 */
+	public BufferPool(int bufferSize, int maxPoolSize) {
+		this.bufferSize = bufferSize;
+		this.maxPoolSize = maxPoolSize;
+	}
+	
+	/**
+	 * Takes a cleared buffer from the pool, or allocates a new one if the pool is empty
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if(buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+		
+		poolSize.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Returns a buffer to the pool, once it's no longer in use
+	 */
+	public void release(ByteBuffer buffer) {
+		if(poolSize.incrementAndGet() > maxPoolSize) {
+			poolSize.decrementAndGet();
+			return;
+		}
+		
+		pool.add(buffer);
+	}
+}
\ No newline at end of file
@@ -3,6 +3,7 @@ package me.tagavari.airmessageserver.helper;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterOutputStream;
 
@@ -15,10 +16,28 @@ public class CompressionHelper {
 	 * @throws IOException If an I/O error has occurred
 	 */
 	public static byte[] compressDeflate(byte[] data, int length) throws IOException {
-		try(ByteArrayOutputStream fin = new ByteArrayOutputStream(); OutputStream out = new DeflaterOutputStream(fin)) {
+		return compressDeflate(data, length, CompressionPolicy.Method.DEFAULT);
+	}
+	
+	/**
+	 * Deflates a byte array with a pooled deflater
+	 * @param data The data to compress
+	 * @param length The length of the data to read and compress
+	 * @param method How to compress the data, which must produce a deflate stream
+	 * @return The compressed data
+	 * @throws IOException If an I/O error has occurred
+	 */
+	public static byte[] compressDeflate(byte[] data, int length, CompressionPolicy.Method method) throws IOException {
+		long startTime = CompressionStatistics.getThreadTime();
+		Deflater deflater = DeflaterPool.acquire(method.getLevel());
+		try(ByteArrayOutputStream fin = new ByteArrayOutputStream(); OutputStream out = new DeflaterOutputStream(fin, deflater)) {
 			out.write(data, 0, length);
 			out.close();
-			return fin.toByteArray();
+			byte[] result = fin.toByteArray();
+			CompressionPolicy.getStatistics().record(method, length, result.length, CompressionStatistics.getThreadTime() - startTime);
+			return result;
+		} finally {
+			DeflaterPool.release(deflater);
 		}
 	}
 	
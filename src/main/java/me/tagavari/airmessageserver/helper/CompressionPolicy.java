@@ -0,0 +1,144 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how to compress files before they are sent to clients
+ * Files that are already compressed (such as photos and videos) don't get any smaller when they are deflated again,
+ * so they are sent as they are, and other files are compressed with a level that matches how well they compress
+ */
+public class CompressionPolicy {
+	//Types that are already compressed
+	private static final String[] compressedTypes = {
+			"image/jpeg", "image/heic", "image/heif", "image/png", "image/gif", "image/webp",
+			"video/",
+			"audio/mp4", "audio/mpeg", "audio/aac", "audio/x-m4a", "audio/amr",
+			"application/zip", "application/gzip", "application/x-7z-compressed", "application/vnd.rar", "application/x-bzip2"
+	};
+	//Types that compress well
+	private static final String[] compressibleTypes = {
+			"text/",
+			"application/json", "application/xml", "application/rtf", "image/svg+xml", "image/bmp", "image/tiff", "audio/wav", "audio/x-wav"
+	};
+	
+	private static final int sampleSize = 64 * 1024; //The amount of data to test compress for files of an unknown type
+	private static final float incompressibleRatio = 0.9F; //Samples that compress worse than this aren't compressed
+	private static final float compressibleRatio = 0.5F; //Samples that compress better than this are compressed at the default level
+	
+	private static final CompressionStatistics statistics = new CompressionStatistics();
+	
+	/**
+	 * Chooses how to compress a file
+	 * @param mimeType The file's type, or NULL if it isn't known
+	 * @param file The file to read a sample from, if its type doesn't decide the method
+	 * @param allowNone Whether the receiver accepts data that isn't deflated at all
+	 * @return The compression method to use
+	 */
+	public static Method choose(String mimeType, File file, boolean allowNone) {
+		Method method = chooseByType(mimeType);
+		if(method == null) {
+			//Test compressing the start of the file
+			byte[] sample = new byte[sampleSize];
+			int sampleLength = 0;
+			try(InputStream inputStream = new FileInputStream(file)) {
+				int count;
+				while(sampleLength < sample.length && (count = inputStream.read(sample, sampleLength, sample.length - sampleLength)) != -1) sampleLength += count;
+			} catch(IOException exception) {
+				//Falling back to the default, and letting the reader report the error
+				return Method.DEFAULT;
+			}
+			method = chooseBySample(sample, sampleLength);
+		}
+		
+		return method == Method.NONE && !allowNone ? Method.STORED : method;
+	}
+	
+	/**
+	 * Chooses how to compress data that is already in memory
+	 * @param mimeType The data's type, or NULL if it isn't known
+	 * @param data The data to compress
+	 * @return The compression method to use, which is never {@link Method#NONE}
+	 */
+	public static Method choose(String mimeType, byte[] data) {
+		Method method = chooseByType(mimeType);
+		if(method == null) method = chooseBySample(data, Math.min(data.length, sampleSize));
+		return method == Method.NONE ? Method.STORED : method;
+	}
+	
+	/**
+	 * Gets the statistics of the data that has been compressed
+	 */
+	public static CompressionStatistics getStatistics() {
+		return statistics;
+	}
+	
+	private static Method chooseByType(String mimeType) {
+		if(mimeType == null) return null;
+		
+		if(matchesType(mimeType, compressedTypes)) return Method.NONE;
+		if(matchesType(mimeType, compressibleTypes)) return Method.DEFAULT;
+		return null;
+	}
+	
+	private static boolean matchesType(String mimeType, String[] types) {
+		for(String type : types) {
+			//Types ending in a slash match any subtype
+			if(type.endsWith("/") ? mimeType.startsWith(type) : mimeType.equals(type)) return true;
+		}
+		return false;
+	}
+	
+	private static Method chooseBySample(byte[] sample, int length) {
+		if(length == 0) return Method.FAST;
+		
+		Deflater deflater = DeflaterPool.acquire(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			
+			//Counting the compressed size, without keeping the output
+			byte[] buffer = new byte[4096];
+			while(!deflater.finished()) deflater.deflate(buffer);
+			float ratio = (float) deflater.getBytesWritten() / length;
+			
+			if(ratio > incompressibleRatio) return Method.NONE;
+			else if(ratio < compressibleRatio) return Method.DEFAULT;
+			else return Method.FAST;
+		} finally {
+			DeflaterPool.release(deflater);
+		}
+	}
+	
+	public enum Method {
+		NONE(Deflater.NO_COMPRESSION, false), //Sent as is, for receivers that accept data that isn't deflated
+		STORED(Deflater.NO_COMPRESSION, true), //Wrapped in deflate blocks without being compressed, for receivers that inflate everything
+		FAST(Deflater.BEST_SPEED, true),
+		DEFAULT(Deflater.DEFAULT_COMPRESSION, true);
+		
+		private final int level;
+		private final boolean deflated;
+		
+		Method(int level, boolean deflated) {
+			this.level = level;
+			this.deflated = deflated;
+		}
+		
+		/**
+		 * Gets the deflate level for this method
+		 */
+		public int getLevel() {
+			return level;
+		}
+		
+		/**
+		 * Gets whether data compressed with this method is wrapped in a deflate stream
+		 */
+		public boolean isDeflated() {
+			return deflated;
+		}
+	}
+}
\ No newline at end of file
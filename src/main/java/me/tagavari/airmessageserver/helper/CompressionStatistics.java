@@ -0,0 +1,70 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how much data has been compressed with each compression method, how much it shrank, and how much CPU time it took
+ */
+public class CompressionStatistics {
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	
+	private final MethodStatistics[] methodStatistics = new MethodStatistics[CompressionPolicy.Method.values().length];
+	
+	CompressionStatistics() {
+		for(int i = 0; i < methodStatistics.length; i++) methodStatistics[i] = new MethodStatistics();
+	}
+	
+	/**
+	 * Records a compressed stream
+	 * @param method the method the stream was compressed with
+	 * @param inputBytes the amount of bytes that were read
+	 * @param outputBytes the amount of bytes that were written
+	 * @param cpuTime the CPU time spent compressing, in nanoseconds
+	 */
+	public void record(CompressionPolicy.Method method, long inputBytes, long outputBytes, long cpuTime) {
+		MethodStatistics statistics = methodStatistics[method.ordinal()];
+		statistics.count.increment();
+		statistics.inputBytes.add(inputBytes);
+		statistics.outputBytes.add(outputBytes);
+		statistics.cpuTime.add(cpuTime);
+	}
+	
+	/**
+	 * Gets the CPU time used by the current thread, to measure compression work with
+	 * @return the thread's CPU time in nanoseconds, or its wall time if CPU time can't be measured
+	 */
+	static long getThreadTime() {
+		return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder stringBuilder = new StringBuilder();
+		for(CompressionPolicy.Method method : CompressionPolicy.Method.values()) {
+			MethodStatistics statistics = methodStatistics[method.ordinal()];
+			long count = statistics.count.sum();
+			if(count == 0) continue;
+			
+			long inputBytes = statistics.inputBytes.sum();
+			long outputBytes = statistics.outputBytes.sum();
+			if(stringBuilder.length() > 0) stringBuilder.append('\n');
+			stringBuilder.append(method.name().toLowerCase()).append(": ")
+					.append(count).append(" stream(s), ")
+					.append(inputBytes).append(" -> ").append(outputBytes).append(" bytes")
+					.append(" (ratio ").append(inputBytes == 0 ? "n/a" : String.format("%.2f", (double) outputBytes / inputBytes)).append("), ")
+					.append("CPU ").append(TimeUnit.NANOSECONDS.toMillis(statistics.cpuTime.sum())).append(" ms");
+		}
+		
+		return stringBuilder.length() == 0 ? "nothing compressed" : stringBuilder.toString();
+	}
+	
+	private static class MethodStatistics {
+		final LongAdder count = new LongAdder();
+		final LongAdder inputBytes = new LongAdder();
+		final LongAdder outputBytes = new LongAdder();
+		final LongAdder cpuTime = new LongAdder();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,210 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps converted attachments on disk, so that a file is only converted once no matter how many times it is downloaded
+ * Converted files are named after their source file's path, size and modification date and the format they were converted to,
+ * so a source file that changes gets a new conversion, and the least recently used conversions are deleted once the cache grows past its budget
+ *
+ * Files returned by {@link #get(File, String, Converter)} are kept until they are handed back with {@link #release(File)}
+ */
+public class ConversionCache {
+	private static final String tempExtension = ".tmp";
+	
+	private final File directory;
+	private final LongSupplier budget;
+	
+	//Creating the cache state, guarded by this cache
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75F, true); //Ordered from least to most recently used
+	private long totalBytes = 0;
+	private final Map<String, CompletableFuture<File>> pendingConversions = new HashMap<>();
+	
+	/**
+	 * Creates a cache, picking up any conversions left in the directory from earlier runs
+	 * @param directory The directory to store converted files in
+	 * @param budget The maximum amount of bytes to keep in the cache
+	 */
+	public ConversionCache(File directory, LongSupplier budget) {
+		this.directory = directory;
+		this.budget = budget;
+		
+		File[] files = directory.listFiles();
+		if(files == null) return;
+		
+		//Adding existing files from oldest to newest, deleting unfinished conversions
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		synchronized(this) {
+			for(File file : files) {
+				if(!file.isFile()) continue;
+				if(file.getName().endsWith(tempExtension)) {
+					file.delete();
+					continue;
+				}
+				
+				Entry entry = new Entry(file, file.length());
+				entries.put(file.getName(), entry);
+				totalBytes += entry.length;
+			}
+			
+			trim();
+		}
+	}
+	
+	/**
+	 * Gets the converted version of a file, converting it if it isn't in the cache yet
+	 * If the file is already being converted for another request, this waits for that conversion to finish instead of starting another one
+	 * @param sourceFile The file to convert
+	 * @param format The extension of the format to convert to
+	 * @param converter The converter to use if the file hasn't been converted yet
+	 * @return The converted file, which must be released once it is no longer being read
+	 */
+	public File get(File sourceFile, String format, Converter converter) throws IOException, InterruptedException, ExecutionException {
+		String name = getName(sourceFile, format);
+		
+		while(true) {
+			CompletableFuture<File> conversion;
+			boolean startConversion = false;
+			synchronized(this) {
+				//Returning the cached file
+				Entry entry = entries.get(name);
+				if(entry != null) {
+					if(entry.file.exists()) {
+						entry.pinCount++;
+						return entry.file;
+					}
+					
+					//Forgetting files that were deleted from outside of the cache
+					entries.remove(name);
+					totalBytes -= entry.length;
+				}
+				
+				//Starting a new conversion if the file isn't being converted already
+				conversion = pendingConversions.get(name);
+				if(conversion == null) {
+					conversion = new CompletableFuture<>();
+					pendingConversions.put(name, conversion);
+					startConversion = true;
+				}
+			}
+			
+			if(startConversion) {
+				return convert(sourceFile, name, converter, conversion);
+			}
+			
+			//Waiting for the other conversion to finish, and then checking the cache again
+			conversion.get();
+		}
+	}
+	
+	/**
+	 * Hands back a file returned by {@link #get(File, String, Converter)}, allowing it to be evicted
+	 */
+	public synchronized void release(File file) {
+		Entry entry = entries.get(file.getName());
+		if(entry == null || !entry.file.equals(file) || entry.pinCount == 0) return;
+		
+		entry.pinCount--;
+		trim();
+	}
+	
+	/**
+	 * Gets the amount of bytes of converted files in this cache
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+	
+	private File convert(File sourceFile, String name, Converter converter, CompletableFuture<File> conversion) throws IOException, InterruptedException, ExecutionException {
+		File targetFile = new File(directory, name);
+		try {
+			//Creating the directory if it doesn't exist
+			if(directory.isFile()) directory.delete();
+			if(!directory.exists()) directory.mkdirs();
+			
+			//Converting to a temporary file, so that an unfinished conversion is never mistaken for a finished one
+			File tempFile = new File(directory, UUID.randomUUID() + tempExtension);
+			try {
+				converter.convert(sourceFile, tempFile);
+				Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tempFile.delete();
+			}
+			
+			//Adding the file to the cache
+			synchronized(this) {
+				Entry entry = new Entry(targetFile, targetFile.length());
+				entry.pinCount++;
+				Entry oldEntry = entries.put(name, entry);
+				if(oldEntry != null) totalBytes -= oldEntry.length;
+				totalBytes += entry.length;
+				pendingConversions.remove(name);
+				trim();
+			}
+			
+			conversion.complete(targetFile);
+			return targetFile;
+		} catch(IOException | InterruptedException | ExecutionException | RuntimeException exception) {
+			synchronized(this) {
+				pendingConversions.remove(name);
+			}
+			conversion.completeExceptionally(exception);
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Deletes the least recently used files that aren't being read until the cache fits within its budget
+	 * Must be called while holding the lock
+	 */
+	private void trim() {
+		long limit = budget.getAsLong();
+		for(Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext() && totalBytes > limit;) {
+			Entry entry = iterator.next();
+			if(entry.pinCount > 0) continue;
+			
+			iterator.remove();
+			totalBytes -= entry.length;
+			entry.file.delete();
+		}
+	}
+	
+	/**
+	 * Gets the name of the file a conversion of a source file is stored in
+	 */
+	private static String getName(File sourceFile, String format) {
+		String key = sourceFile.getAbsolutePath() + ":" + sourceFile.length() + ":" + sourceFile.lastModified() + ":" + format;
+		return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + "." + format;
+	}
+	
+	private static class Entry {
+		final File file;
+		final long length;
+		int pinCount = 0; //The amount of requests that are reading this file
+		
+		Entry(File file, long length) {
+			this.file = file;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * Converts a file to another format
+	 */
+	public interface Converter {
+		/**
+		 * Converts a file
+		 * @param input The file to convert
+		 * @param output The file to write to
+		 */
+		void convert(File input, File output) throws IOException, InterruptedException, ExecutionException;
+	}
+}
\ No newline at end of file
@@ -3,89 +3,149 @@ package me.tagavari.airmessageserver.helper;
 import io.sentry.Sentry;
 import me.tagavari.airmessageserver.server.Constants;
 import me.tagavari.airmessageserver.server.Main;
+import me.tagavari.airmessageserver.server.PreferencesManager;
 import me.tagavari.airmessageserver.server.SystemAccess;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 
 public class ConversionHelper {
+    private static volatile ConversionCache cache = new ConversionCache(Constants.convertDir, PreferencesManager::getPrefConversionCacheLimit);
+    private static volatile Backend backend = new SystemBackend();
+
     public static ConvertedFile convert(File file) {
         //Getting the file extension
         String fileExtension = FileHelper.getExtensionByStringHandling(file.getName()).orElse(null);
 
-        //Checking if the file is HEIC (and we're running on a system version that supports handling it)
-        if("heic".equals(fileExtension) && Constants.compareVersions(Constants.getSystemVersion(), Constants.macOSHighSierraVersion) >= 0) {
-            Main.getLogger().log(Level.INFO, "Converting file " + file.getPath() + " from HEIC");
-
-            //Creating the convert directory if it doesn't exist
-            if(Constants.convertDir.isFile()) Constants.convertDir.delete();
-            if(!Constants.convertDir.exists()) Constants.convertDir.mkdir();
+        //Checking if we're running on a system that supports converting files
+        Backend backend = ConversionHelper.backend;
+        if(!backend.isAvailable()) {
+            return new ConvertedFile(file, false, null, null);
+        }
 
+        //Checking if the file is HEIC
+        if("heic".equals(fileExtension)) {
             //Converting the file to JPEG
-            File targetFile = new File(Constants.convertDir, UUID.randomUUID() + ".jpeg");
-            try {
-                SystemAccess.convertImage("jpeg", file, targetFile);
-            } catch(IOException | InterruptedException | ExecutionException exception) {
-                //Log exception
-                Sentry.captureException(exception);
-                
-                //Clean up
-                targetFile.delete();
-    
-                //Return the original file
-                return new ConvertedFile(file, false, null, null);
-            }
-
-            //Setting the file data
-            String newFileName = file.getName().substring(0, file.getName().lastIndexOf(".")) + ".jpeg";
-            return new ConvertedFile(targetFile, true, newFileName, "image/jpeg");
+            return convert(file, "jpeg", "image/jpeg", (input, output) -> {
+                Main.getLogger().log(Level.INFO, "Converting file " + file.getPath() + " from HEIC");
+                backend.convertImage("jpeg", input, output);
+            });
         }
-        //Otherwise checking if the file is CAF (and we're running on a system version that supports handling it)
-        else if("caf".equals(fileExtension) && Constants.compareVersions(Constants.getSystemVersion(), Constants.macOSHighSierraVersion) >= 0) {
-            Main.getLogger().log(Level.INFO, "Converting file " + file.getPath() + " from CAF");
-
-            //Creating the convert directory if it doesn't exist
-            if(Constants.convertDir.isFile()) Constants.convertDir.delete();
-            if(!Constants.convertDir.exists()) Constants.convertDir.mkdir();
-
-            //Converting the file
-            File targetFile = new File(Constants.convertDir, UUID.randomUUID() + ".mp4");
-            try {
-                SystemAccess.convertAudio("mp4f", "aac", file, targetFile);
-            } catch(IOException | InterruptedException | ExecutionException exception) {
-                //Log exception
-                Sentry.captureException(exception);
-                
-                //Clean up
-                targetFile.delete();
-    
-                //Return the original file
-                return new ConvertedFile(file, false, null, null);
-            }
-
-            String newFilename = file.getName().substring(0, file.getName().lastIndexOf(".")) + ".mp4";
-            return new ConvertedFile(targetFile, true, newFilename, "audio/mp4");
+        //Otherwise checking if the file is CAF
+        else if("caf".equals(fileExtension)) {
+            //Converting the file to MP4
+            return convert(file, "mp4", "audio/mp4", (input, output) -> {
+                Main.getLogger().log(Level.INFO, "Converting file " + file.getPath() + " from CAF");
+                backend.convertAudio("mp4f", "aac", input, output);
+            });
         } else {
             //No conversion
             return new ConvertedFile(file, false, null, null);
         }
     }
 
+    private static ConvertedFile convert(File file, String extension, String type, ConversionCache.Converter converter) {
+        //Getting the converted file from the cache, converting it if it hasn't been converted yet
+        File targetFile;
+        try {
+            targetFile = cache.get(file, extension, converter);
+        } catch(IOException | InterruptedException | ExecutionException exception) {
+            //Log exception
+            Sentry.captureException(exception);
+
+            //Return the original file
+            return new ConvertedFile(file, false, null, null);
+        }
+
+        //Setting the file data
+        String newFileName = file.getName().substring(0, file.getName().lastIndexOf(".")) + "." + extension;
+        return new ConvertedFile(targetFile, true, newFileName, type);
+    }
+
+    /**
+     * Sets the backend used to convert files
+     */
+    public static void setBackend(Backend backend) {
+        ConversionHelper.backend = backend;
+    }
+
+    /**
+     * Sets the cache that converted files are kept in, so that checks can use a temporary directory
+     * Must be called while no converted files are open, as they are handed back to the current cache
+     */
+    static void setCache(ConversionCache cache) {
+        ConversionHelper.cache = cache;
+    }
+
     public static record ConvertedFile(
             File file, //The file to upload
-            boolean converted, //Whether this file was converted, and the file should be deleted
+            boolean converted, //Whether this file was converted, and should be handed back to the cache
             String updatedName, //The updated name of the converted file
             String updatedType //The updated type of the converted file
     ) implements Closeable {
+        /**
+         * Gets a value that changes whenever the content of this file changes, so that clients can check that a partial download is still valid
+         */
+        public String getValidator() {
+            return Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified());
+        }
+
         @Override
         public void close() throws IOException {
+            //Allowing the cache to evict the converted file
             if(converted) {
-                file.delete();
+                cache.release(file);
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Performs file conversions for a platform
+     */
+    public interface Backend {
+        /**
+         * Gets whether this backend can convert files on this system
+         */
+        boolean isAvailable();
+
+        /**
+         * Converts an image file from one format to another
+         * @param format The format to convert to
+         * @param input The file to convert
+         * @param output The file to write to
+         */
+        void convertImage(String format, File input, File output) throws IOException, InterruptedException, ExecutionException;
+
+        /**
+         * Converts an audio file from one format to another
+         * @param fileFormat The file format to convert to
+         * @param dataFormat The data format to convert to
+         * @param input The file to convert
+         * @param output The file to write to
+         */
+        void convertAudio(String fileFormat, String dataFormat, File input, File output) throws IOException, InterruptedException, ExecutionException;
+    }
+
+    /**
+     * Converts files with the system's command line tools
+     */
+    private static class SystemBackend implements Backend {
+        @Override
+        public boolean isAvailable() {
+            return Constants.compareVersions(Constants.getSystemVersion(), Constants.macOSHighSierraVersion) >= 0;
+        }
+
+        @Override
+        public void convertImage(String format, File input, File output) throws IOException, InterruptedException, ExecutionException {
+            SystemAccess.convertImage(format, input, output);
+        }
+
+        @Override
+        public void convertAudio(String fileFormat, String dataFormat, File input, File output) throws IOException, InterruptedException, ExecutionException {
+            SystemAccess.convertAudio(fileFormat, dataFormat, input, output);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps a pool of deflaters, so that compressing a stream doesn't allocate a new deflater and its native buffers every time
+ */
+public class DeflaterPool {
+	//The maximum amount of idle deflaters to keep around
+	private static final int maxPoolSize = 16;
+	
+	private static final Queue<Deflater> pool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger poolSize = new AtomicInteger(0);
+	
+	/**
+	 * Takes a deflater from the pool, or creates a new one if the pool is empty
+	 * @param level The compression level to use
+	 */
+	public static Deflater acquire(int level) {
+		Deflater deflater = pool.poll();
+		if(deflater == null) return new Deflater(level);
+		
+		poolSize.decrementAndGet();
+		deflater.setLevel(level);
+		return deflater;
+	}
+	
+	/**
+	 * Returns a deflater to the pool, once it's no longer in use
+	 */
+	public static void release(Deflater deflater) {
+		if(poolSize.incrementAndGet() > maxPoolSize) {
+			poolSize.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		
+		deflater.reset();
+		pool.add(deflater);
+	}
+	
+	private DeflaterPool() {}
+}
\ No newline at end of file
@@ -0,0 +1,149 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+/**
+ * Reads a range of a file as a series of chunks, compressed with a {@link CompressionPolicy.Method}
+ * File data is read through a pooled direct buffer and compressed straight into the caller's buffer (or read straight into it if it isn't compressed),
+ * so that reading a chunk doesn't allocate or copy the chunk's data
+ */
+public class FileChunkReader implements Closeable {
+	private static final int inputBufferSize = 64 * 1024; //64 KiB
+	private static final BufferPool inputBufferPool = new BufferPool(inputBufferSize, 16);
+	
+	private final FileChannel channel;
+	private final CompressionPolicy.Method method;
+	private final Deflater deflater; //The deflater compressing this file, or NULL if it isn't being compressed
+	private final ByteBuffer inputBuffer; //The buffer the deflater reads from, or NULL if this file isn't being compressed
+	private long position;
+	private long remaining;
+	private boolean finished = false;
+	private boolean closed = false;
+	
+	//Creating the statistics values
+	private long inputBytes = 0;
+	private long outputBytes = 0;
+	private long compressionTime = 0;
+	
+	/**
+	 * Opens a range of a file for reading
+	 * @param file The file to read
+	 * @param offset The position of the first byte to read
+	 * @param length The amount of bytes to read, which may extend past the end of the file
+	 * @param method How to compress the file's data
+	 */
+	public FileChunkReader(File file, long offset, long length, CompressionPolicy.Method method) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.method = method;
+		if(method.isDeflated()) {
+			deflater = DeflaterPool.acquire(method.getLevel());
+			inputBuffer = inputBufferPool.acquire();
+		} else {
+			deflater = null;
+			inputBuffer = null;
+		}
+		position = offset;
+		remaining = length;
+	}
+	
+	/**
+	 * Gets whether this file's data is wrapped in a deflate stream
+	 */
+	public boolean isDeflated() {
+		return deflater != null;
+	}
+	
+	/**
+	 * Gets whether there is more data to read
+	 */
+	public boolean hasNext() {
+		return !finished;
+	}
+	
+	/**
+	 * Reads the next chunk of the file into a buffer, until the buffer is full or the file has been fully read
+	 * @param target The buffer to write to, starting at its position and ending at its limit
+	 * @return TRUE if this was the last chunk
+	 */
+	public boolean readChunk(ByteBuffer target) throws IOException {
+		int startPosition = target.position();
+		
+		if(deflater == null) {
+			//Reading the file straight into the target, without reading past the end of the range
+			int limit = target.limit();
+			while(target.hasRemaining() && remaining > 0) {
+				if(target.remaining() > remaining) target.limit(target.position() + (int) remaining);
+				int count = channel.read(target, position);
+				if(count == -1) {
+					remaining = 0;
+				} else {
+					position += count;
+					remaining -= count;
+					inputBytes += count;
+				}
+			}
+			target.limit(limit);
+			
+			//Checking whether the file ends here, so that the last chunk isn't followed by an empty one
+			if(remaining > 0 && position >= channel.size()) remaining = 0;
+			finished = remaining == 0;
+		} else {
+			long startTime = CompressionStatistics.getThreadTime();
+			
+			while(target.hasRemaining() && !deflater.finished()) {
+				//Reading more of the file once the deflater has used up the last read
+				if(deflater.needsInput() && remaining > 0) {
+					inputBuffer.clear();
+					if(inputBuffer.remaining() > remaining) inputBuffer.limit((int) remaining);
+					int count = channel.read(inputBuffer, position);
+					inputBuffer.flip(); //The deflater reads from this buffer, so it must never be left with stale data
+					if(count == -1) {
+						//Finishing early if the file is shorter than the range
+						remaining = 0;
+						deflater.finish();
+					} else {
+						position += count;
+						remaining -= count;
+						inputBytes += count;
+						deflater.setInput(inputBuffer);
+						if(remaining == 0) deflater.finish();
+					}
+				} else if(deflater.needsInput()) {
+					deflater.finish();
+				}
+				
+				deflater.deflate(target);
+			}
+			
+			compressionTime += CompressionStatistics.getThreadTime() - startTime;
+			finished = deflater.finished();
+		}
+		
+		outputBytes += target.position() - startPosition;
+		return finished;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		
+		//Recording the statistics
+		CompressionPolicy.getStatistics().record(method, inputBytes, outputBytes, compressionTime);
+		
+		try {
+			channel.close();
+		} finally {
+			if(deflater != null) {
+				DeflaterPool.release(deflater);
+				inputBufferPool.release(inputBuffer);
+			}
+		}
+	}
+}
\ No newline at end of file
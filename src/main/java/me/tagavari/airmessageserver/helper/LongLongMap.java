@@ -0,0 +1,148 @@
+package me.tagavari.airmessageserver.helper;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A hash map of primitive long keys to primitive long values, using open addressing with linear probing
+ * Avoids boxing both the keys and the values, for tracking large amounts of database row IDs
+ */
+public class LongLongMap {
+	private static final long emptyKey = Long.MIN_VALUE;
+	private static final float loadFactor = 0.5F;
+	
+	private long[] keys;
+	private long[] values;
+	private int size = 0;
+	
+	public LongLongMap() {
+		this(16);
+	}
+	
+	public LongLongMap(int initialCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) * 2 - 1);
+		keys = new long[capacity];
+		values = new long[capacity];
+		Arrays.fill(keys, emptyKey);
+	}
+	
+	/**
+	 * Gets the value mapped to a key
+	 * @return the value, or defaultValue if the key isn't in the map
+	 */
+	public long get(long key, long defaultValue) {
+		int index = indexOf(key);
+		return keys[index] == emptyKey ? defaultValue : values[index];
+	}
+	
+	public boolean containsKey(long key) {
+		return keys[indexOf(key)] != emptyKey;
+	}
+	
+	/**
+	 * Maps a key to a value, replacing any existing value
+	 */
+	public void put(long key, long value) {
+		if(key == emptyKey) throw new IllegalArgumentException("Key " + key + " is reserved");
+		
+		int index = indexOf(key);
+		if(keys[index] == emptyKey) {
+			keys[index] = key;
+			size++;
+		}
+		values[index] = value;
+		
+		if(size > keys.length * loadFactor) resize(keys.length * 2);
+	}
+	
+	/**
+	 * Removes a key from the map
+	 * @return whether the key was in the map
+	 */
+	public boolean remove(long key) {
+		int index = indexOf(key);
+		if(keys[index] == emptyKey) return false;
+		
+		//Shifting back the entries that follow, so that probe sequences stay unbroken
+		int mask = keys.length - 1;
+		int gap = index;
+		for(int i = (gap + 1) & mask; keys[i] != emptyKey; i = (i + 1) & mask) {
+			int home = hash(keys[i]) & mask;
+			if(((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		keys[gap] = emptyKey;
+		size--;
+		
+		return true;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(keys, emptyKey);
+		size = 0;
+	}
+	
+	/**
+	 * Passes every key in the map to the consumer, in no particular order
+	 * The map must not be modified while iterating
+	 */
+	public void forEachKey(LongConsumer consumer) {
+		for(long key : keys) {
+			if(key != emptyKey) consumer.accept(key);
+		}
+	}
+	
+	/**
+	 * Gets the smallest key in the map
+	 * @return the smallest key, or defaultValue if the map is empty
+	 */
+	public long minKey(long defaultValue) {
+		long minKey = Long.MAX_VALUE;
+		boolean found = false;
+		for(long key : keys) {
+			if(key != emptyKey && key <= minKey) {
+				minKey = key;
+				found = true;
+			}
+		}
+		return found ? minKey : defaultValue;
+	}
+	
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while(keys[index] != emptyKey && keys[index] != key) index = (index + 1) & mask;
+		return index;
+	}
+	
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		
+		keys = new long[capacity];
+		values = new long[capacity];
+		Arrays.fill(keys, emptyKey);
+		size = 0;
+		
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != emptyKey) put(oldKeys[i], oldValues[i]);
+		}
+	}
+	
+	private static int hash(long key) {
+		//Mixing the bits, as row IDs are sequential
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
\ No newline at end of file
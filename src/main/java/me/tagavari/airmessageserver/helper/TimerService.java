@@ -0,0 +1,80 @@
+package me.tagavari.airmessageserver.helper;
+
+import io.sentry.Sentry;
+import me.tagavari.airmessageserver.server.Main;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A single timer thread shared by the whole server, so that timeouts and periodic tasks don't each need a thread of their own
+ * Tasks run on the timer thread, so they must finish quickly and hand any blocking work off to another thread
+ * Cancelling a task's future removes it from the queue straight away, so timers that are started and cancelled often don't pile up
+ */
+public class TimerService {
+	private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "Timer service");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	static {
+		executor.setRemoveOnCancelPolicy(true);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+	
+	/**
+	 * Runs a task once after a delay
+	 * @param task The task to run
+	 * @param delay The delay in milliseconds
+	 * @return A future that can be used to cancel the task
+	 */
+	public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+		return executor.schedule(wrapTask(task), delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Runs a task repeatedly, with a fixed delay between the end of one run and the start of the next
+	 * @param task The task to run
+	 * @param initialDelay The delay before the first run in milliseconds
+	 * @param delay The delay between runs in milliseconds
+	 * @return A future that can be used to cancel the task
+	 */
+	public static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay) {
+		return executor.scheduleWithFixedDelay(wrapTask(task), initialDelay, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Runs a task repeatedly at a fixed rate
+	 * @param task The task to run
+	 * @param initialDelay The delay before the first run in milliseconds
+	 * @param period The time between the start of each run in milliseconds
+	 * @return A future that can be used to cancel the task
+	 */
+	public static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+		return executor.scheduleAtFixedRate(wrapTask(task), initialDelay, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Gets the amount of tasks that are waiting to run
+	 */
+	public static int getPendingTaskCount() {
+		return executor.getQueue().size();
+	}
+	
+	private static Runnable wrapTask(Runnable task) {
+		//Logging exceptions, rather than letting the executor silently discard them (and stop repeating tasks)
+		return () -> {
+			try {
+				task.run();
+			} catch(Exception exception) {
+				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+				Sentry.captureException(exception);
+			}
+		};
+	}
+	
+	private TimerService() {}
+}
\ No newline at end of file
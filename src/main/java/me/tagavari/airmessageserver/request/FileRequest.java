@@ -6,12 +6,28 @@ public class FileRequest extends DBRequest {
 	public final String fileGuid;
 	public final short requestID;
 	public final int chunkSize;
+	public final int creditWindow; //The amount of chunks the client can receive before it sends credits, or 0 if the client doesn't use credits
+	public final boolean rangeRequested; //Whether the client asked for a range of the file, and expects range information in the response
+	public final long rangeOffset; //The position of the first byte to send
+	public final long rangeLength; //The amount of bytes to send, or -1 to send until the end of the file
+	public final String rangeValidator; //The validator of the file the client already has part of, or NULL to accept any version of the file
+	public final boolean acceptsUncompressed; //Whether the client accepts files that aren't deflated, and expects to be told whether a file is
 	
-	public FileRequest(ClientRegistration connection, String fileGuid, short requestID, int chunkSize) {
+	public FileRequest(ClientRegistration connection, String fileGuid, short requestID, int chunkSize, int creditWindow) {
+		this(connection, fileGuid, requestID, chunkSize, creditWindow, false, 0, -1, null, false);
+	}
+	
+	public FileRequest(ClientRegistration connection, String fileGuid, short requestID, int chunkSize, int creditWindow, boolean rangeRequested, long rangeOffset, long rangeLength, String rangeValidator, boolean acceptsUncompressed) {
 		super(connection);
 		
 		this.fileGuid = fileGuid;
 		this.requestID = requestID;
 		this.chunkSize = chunkSize;
+		this.creditWindow = creditWindow;
+		this.rangeRequested = rangeRequested;
+		this.rangeOffset = rangeOffset;
+		this.rangeLength = rangeLength;
+		this.rangeValidator = rangeValidator;
+		this.acceptsUncompressed = acceptsUncompressed;
 	}
 }
\ No newline at end of file
@@ -14,8 +14,9 @@ public class MassRetrievalRequest extends DBRequest {
 	public String[] attachmentFilterWhitelist;
 	public String[] attachmentFilterBlacklist;
 	public boolean attachmentFilterDLOutside;
+	public final int resumePacketIndex; //The index of the last packet the client received from an interrupted retrieval, or -1 to start over
 	
-	public MassRetrievalRequest(ClientRegistration connection, short requestID, boolean restrictMessages, long timeSinceMessages, boolean downloadAttachments, boolean restrictAttachments, long timeSinceAttachments, boolean restrictAttachmentsSizes, long attachmentSizeLimit, String[] attachmentFilterWhitelist, String[] attachmentFilterBlacklist, boolean attachmentFilterDLOutside) {
+	public MassRetrievalRequest(ClientRegistration connection, short requestID, boolean restrictMessages, long timeSinceMessages, boolean downloadAttachments, boolean restrictAttachments, long timeSinceAttachments, boolean restrictAttachmentsSizes, long attachmentSizeLimit, String[] attachmentFilterWhitelist, String[] attachmentFilterBlacklist, boolean attachmentFilterDLOutside, int resumePacketIndex) {
 		super(connection);
 		this.requestID = requestID;
 		this.restrictMessages = restrictMessages;
@@ -28,5 +29,6 @@ public class MassRetrievalRequest extends DBRequest {
 		this.attachmentFilterWhitelist = attachmentFilterWhitelist;
 		this.attachmentFilterBlacklist = attachmentFilterBlacklist;
 		this.attachmentFilterDLOutside = attachmentFilterDLOutside;
+		this.resumePacketIndex = resumePacketIndex;
 	}
 }
\ No newline at end of file
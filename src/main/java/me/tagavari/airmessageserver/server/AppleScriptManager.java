@@ -4,11 +4,13 @@ import io.sentry.Sentry;
 import me.tagavari.airmessageserver.connection.ClientRegistration;
 import me.tagavari.airmessageserver.connection.CommConst;
 import me.tagavari.airmessageserver.connection.ConnectionManager;
+import me.tagavari.airmessageserver.helper.TimerService;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
@@ -17,6 +19,14 @@ import java.util.regex.Pattern;
 import java.util.zip.InflaterOutputStream;
 
 public class AppleScriptManager {
+	private static final int sendWorkerCount = 2; //The amount of messages that can be sent at once
+	private static final int sendQueueCapacity = 64; //The maximum amount of messages that can be waiting to be sent
+	
+	//Runs AppleScript commands (set the airmessage.osascript system property to run a stand-in script in place of osascript)
+	private static volatile CommandExecutor commandExecutor = new ProcessCommandExecutor(System.getProperty("airmessage.osascript"));
+	private static final MessageSendQueue sendQueue = new MessageSendQueue(sendWorkerCount, sendQueueCapacity);
+	public static final String sendQueueFullMessage = "Too many messages are waiting to be sent";
+	
 	//macOS 10
 	//ARGS: Chat GUID / Message
 	private static final String[] ASTextExisting = {
@@ -241,17 +251,12 @@ public class AppleScriptManager {
 		
 		//Running the command
 		try {
-			Process process = Runtime.getRuntime().exec(command.toArray(new String[0]));
+			CommandExecutor.Result commandResult = commandExecutor.execute(command.toArray(new String[0]));
 			
 			//Recording any errors
 			{
-				BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-				List<String> lineList = new ArrayList<>(1);
-				String lsString;
-				while((lsString = errorReader.readLine()) != null) {
-					Main.getLogger().severe(lsString);
-					lineList.add(lsString);
-				}
+				List<String> lineList = commandResult.errorLines;
+				for(String lsString : lineList) Main.getLogger().severe(lsString);
 				
 				//Identifying the error
 				if(!lineList.isEmpty()) {
@@ -270,13 +275,7 @@ public class AppleScriptManager {
 			
 			{
 				//Reading the message
-				BufferedReader messageReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-				List<String> lineList = new ArrayList<>(1);
-				String lsString;
-				while((lsString = messageReader.readLine()) != null) {
-					//Main.getLogger().info(lsString);
-					lineList.add(lsString);
-				}
+				List<String> lineList = commandResult.outputLines;
 				
 				if(lineList.isEmpty()) {
 					Main.getLogger().log(Level.WARNING, "Failed to create new chat: received no output from chat creation script");
@@ -427,16 +426,11 @@ public class AppleScriptManager {
 	private static Constants.Tuple<Integer, String> runCommandProcessResult(String[] command) {
 		//Running the command
 		try {
-			Process process = Runtime.getRuntime().exec(command);
+			CommandExecutor.Result commandResult = commandExecutor.execute(command);
 			
 			//Recording any errors
-			BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-			List<String> lineList = new ArrayList<>(1);
-			String lsString;
-			while((lsString = errorReader.readLine()) != null) {
-				Main.getLogger().log(Level.SEVERE, lsString);
-				lineList.add(lsString);
-			}
+			List<String> lineList = commandResult.errorLines;
+			for(String lsString : lineList) Main.getLogger().log(Level.SEVERE, lsString);
 			
 			//Identifying the error
 			if(!lineList.isEmpty()) {
@@ -473,13 +467,11 @@ public class AppleScriptManager {
 		
 		//Running the command
 		try {
-			Process process = Runtime.getRuntime().exec(command.toArray(new String[0]));
+			CommandExecutor.Result commandResult = commandExecutor.execute(command.toArray(new String[0]));
 			
 			//Returning false if there was any error
-			BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
 			boolean linesRead = false;
-			String lsString;
-			while ((lsString = errorReader.readLine()) != null) {
+			for(String lsString : commandResult.errorLines) {
 				if(!lsString.endsWith("(" + Constants.asErrorCodeMessagesUnauthorized + ")")) continue; //Error code for unauthorized. Sometimes, the executed command may return an error anyways if there are no messages.
 				Main.getLogger().severe(lsString);
 				linesRead = true;
@@ -585,7 +577,7 @@ public class AppleScriptManager {
 		final String fileName;
 		
 		//Creating the transfer variables
-		private Timer timeoutTimer = null;
+		private ScheduledFuture<?> timeoutTimer = null;
 		private static final int timeout = 10 * 1000; //10 seconds
 		
 		private AttachmentWriter writerThread = null;
@@ -641,18 +633,14 @@ public class AppleScriptManager {
 		}
 		
 		void startTimer() {
-			timeoutTimer = new Timer();
-			timeoutTimer.schedule(new TimerTask() {
-				@Override
-				public void run() {
-					//Failing the request
-					failRequest(CommConst.nstSendResultRequestTimeout, null);
-				}
+			timeoutTimer = TimerService.schedule(() -> {
+				//Failing the request
+				failRequest(CommConst.nstSendResultRequestTimeout, null);
 			}, timeout);
 		}
 		
 		void stopTimer(boolean restart) {
-			if(timeoutTimer != null) timeoutTimer.cancel();
+			if(timeoutTimer != null) timeoutTimer.cancel(false);
 			if(restart) startTimer();
 			else timeoutTimer = null;
 		}
@@ -675,11 +663,12 @@ public class AppleScriptManager {
 			//Removing the request from the list
 			fileUploadRequests.remove(this);
 			
-			//Sending the file
-			Constants.Tuple<Integer, String> result = chatGUID != null ? sendExistingFile(chatGUID, file) : sendNewFile(chatMembers, file, service);
-			
-			//Sending the response
-			ConnectionManager.getCommunicationsManager().sendMessageRequestResponse(connection, CommConst.nhtSendResult, requestID, result.item1, result.item2);
+			//Queuing the file to be sent, after any messages that are already waiting for the same chat
+			String chatKey = chatGUID != null ? MessageSendQueue.keyExisting(chatGUID) : MessageSendQueue.keyNew(chatMembers, service);
+			boolean queued = sendQueue.submit(chatKey,
+					() -> chatGUID != null ? sendExistingFile(chatGUID, file) : sendNewFile(chatMembers, file, service),
+					result -> ConnectionManager.getCommunicationsManager().sendMessageRequestResponse(connection, CommConst.nhtSendResult, requestID, result.item1, result.item2));
+			if(!queued) ConnectionManager.getCommunicationsManager().sendMessageRequestResponse(connection, CommConst.nhtSendResult, requestID, CommConst.nstSendResultScriptError, sendQueueFullMessage);
 		}
 		
 		private class AttachmentWriter extends Thread {
@@ -770,6 +759,28 @@ public class AppleScriptManager {
 		}
 	}
 	
+	/**
+	 * Gets the queue that messages are sent on
+	 */
+	public static MessageSendQueue getSendQueue() {
+		return sendQueue;
+	}
+	
+	/**
+	 * Replaces the executor that AppleScript commands are run with
+	 */
+	public static void setCommandExecutor(CommandExecutor executor) {
+		commandExecutor = executor;
+	}
+	
+	/**
+	 * Stops sending messages, and logs the send statistics
+	 */
+	public static void stop() {
+		sendQueue.stop();
+		Main.getLogger().log(Level.INFO, "Message send statistics: " + sendQueue.getStatisticsSummary());
+	}
+	
 	private static String escapeAppleScriptString(String string) {
 		return string.replace("\\", "\\\\").replace("\"", "\\\"");
 	}
@@ -0,0 +1,98 @@
+package me.tagavari.airmessageserver.server;
+
+import io.sentry.Sentry;
+import me.tagavari.airmessageserver.helper.ConversionHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Prepares new attachments in the background, so that they are ready before a client asks for them
+ * Attachments found by the scanner are converted to a format clients can read, and outgoing attachments are hashed,
+ * without holding up the message updates that announce them
+ */
+class AttachmentPreparer {
+	private static final int workerCount = 2;
+	private static final int capacity = 256; //The maximum amount of attachments that can be waiting to be prepared
+	
+	private final ChecksumCache checksumCache;
+	private final ThreadPoolExecutor executor;
+	private final Set<String> pendingFiles = ConcurrentHashMap.newKeySet(); //The paths of the files that are waiting to be prepared
+	
+	/**
+	 * Creates a new attachment preparer
+	 * @param checksumCache the cache to store calculated checksums in
+	 */
+	AttachmentPreparer(ChecksumCache checksumCache) {
+		this.checksumCache = checksumCache;
+		
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), runnable -> {
+			Thread thread = new Thread(runnable, "Attachment preparer " + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Queues an attachment to be prepared
+	 * If too many attachments are already queued, the attachment is skipped, and will be prepared when it is first requested instead
+	 * @param file the attachment's file
+	 * @param calculateChecksum whether to calculate the attachment's checksum
+	 */
+	void prepare(File file, boolean calculateChecksum) {
+		//Ignoring files that are already queued
+		String path = file.getAbsolutePath();
+		if(!pendingFiles.add(path)) return;
+		
+		try {
+			executor.execute(() -> {
+				try {
+					run(file, calculateChecksum);
+				} finally {
+					pendingFiles.remove(path);
+				}
+			});
+		} catch(RejectedExecutionException exception) {
+			//Skipping the file if the queue is full
+			pendingFiles.remove(path);
+			Main.getLogger().finest("Skipping preparation of " + path + ", " + capacity + " attachments are already queued");
+		}
+	}
+	
+	private void run(File file, boolean calculateChecksum) {
+		//Ignoring files that haven't finished downloading yet
+		if(!file.isFile()) return;
+		
+		try {
+			//Calculating the checksum
+			if(calculateChecksum) checksumCache.get(file);
+			
+			//Converting the file
+			ConversionHelper.convert(file).close();
+		} catch(IOException | NoSuchAlgorithmException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		} catch(RuntimeException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+		}
+	}
+	
+	/**
+	 * Stops preparing attachments, abandoning any that are still queued, and waits briefly for running preparations to stop
+	 */
+	void stop() {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
\ No newline at end of file
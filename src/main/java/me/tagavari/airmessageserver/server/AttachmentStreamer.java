@@ -0,0 +1,340 @@
+package me.tagavari.airmessageserver.server;
+
+import io.sentry.Sentry;
+import me.tagavari.airmessageserver.common.AirPacker;
+import me.tagavari.airmessageserver.connection.ClientRegistration;
+import me.tagavari.airmessageserver.connection.CommConst;
+import me.tagavari.airmessageserver.connection.CommunicationsManager;
+import me.tagavari.airmessageserver.connection.ConnectionManager;
+import me.tagavari.airmessageserver.helper.CompressionPolicy;
+import me.tagavari.airmessageserver.helper.ConversionHelper;
+import me.tagavari.airmessageserver.helper.FileChunkReader;
+import me.tagavari.airmessageserver.request.FileRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Streams requested attachments to clients, taking turns sending a chunk from each active download
+ * Downloads are paced by credits if the client asked for credit-based flow control, and otherwise by how much data is already queued for the client
+ * The streamer never waits for a client's send window, as it is shared by all downloads: a chunk that doesn't fit is held until the window frees space
+ * A credit-paced download that runs out of credits is failed if the client doesn't send more within {@link CommConst#attachmentCreditTimeout}
+ */
+class AttachmentStreamer {
+	static final int maxCredits = 64; //The maximum amount of chunks a download can have unacknowledged
+	private static final long creditTimeout = TimeUnit.MILLISECONDS.toNanos(CommConst.attachmentCreditTimeout);
+	
+	private final Lock lock = new ReentrantLock();
+	private final Condition streamsChanged = lock.newCondition();
+	private final List<AttachmentStream> streams = new ArrayList<>(); //Guarded by the lock
+	private int nextStreamIndex = 0;
+	private volatile boolean waiting = false; //Whether the streamer is looking for or waiting for a download that can send a chunk
+	private final Runnable windowListener = this::onWindowReleased;
+	
+	private final Thread thread;
+	
+	AttachmentStreamer() {
+		thread = new Thread(this::run, "Attachment streamer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Starts streaming a file to a client
+	 * @param request the request to fulfill
+	 * @param convertedData the file to stream, which is closed once the download finishes
+	 * @param fileType the type of the original file, or NULL if it isn't known
+	 */
+	void addStream(FileRequest request, ConversionHelper.ConvertedFile convertedData, String fileType) throws IOException {
+		AttachmentStream stream = new AttachmentStream(request, convertedData, fileType, windowListener);
+		
+		lock.lock();
+		try {
+			streams.add(stream);
+			streamsChanged.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Allows a download to send more chunks
+	 * @param client the client that owns the download
+	 * @param requestID the request ID of the download
+	 * @param credits the amount of chunks the client is ready to receive
+	 */
+	void addCredits(ClientRegistration client, short requestID, int credits) {
+		if(credits <= 0) return;
+		
+		lock.lock();
+		try {
+			for(AttachmentStream stream : streams) {
+				if(stream.request.connection != client || stream.request.requestID != requestID || stream.credits == -1) continue;
+				
+				stream.credits = Math.min(stream.credits + credits, maxCredits);
+				stream.stalledSince = -1;
+				streamsChanged.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops streaming, abandoning all active downloads
+	 */
+	void stop() {
+		thread.interrupt();
+		
+		List<AttachmentStream> remainingStreams;
+		lock.lock();
+		try {
+			remainingStreams = new ArrayList<>(streams);
+			streams.clear();
+		} finally {
+			lock.unlock();
+		}
+		
+		for(AttachmentStream stream : remainingStreams) stream.close();
+	}
+	
+	private void run() {
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				//Waiting for a download that can send its next chunk
+				AttachmentStream stream;
+				List<AttachmentStream> expiredStreams = new ArrayList<>();
+				lock.lock();
+				try {
+					waiting = true;
+					long nextExpiry = removeExpiredStreams(expiredStreams);
+					stream = takeReadyStream();
+					if(stream == null && expiredStreams.isEmpty()) {
+						//Waiting until a download gets credits or send window space, or until the next stalled download expires
+						if(nextExpiry == -1) streamsChanged.await();
+						else streamsChanged.awaitNanos(nextExpiry);
+						continue;
+					}
+					waiting = false;
+				} finally {
+					lock.unlock();
+				}
+				
+				//Failing downloads that ran out of credits
+				for(AttachmentStream expiredStream : expiredStreams) {
+					Main.getLogger().log(Level.INFO, "Cancelling file request, no credits received");
+					if(expiredStream.request.connection.isConnected()) {
+						ConnectionManager.getCommunicationsManager().sendMessageRequestResponse(expiredStream.request.connection, CommConst.nhtAttachmentReqFail, expiredStream.request.requestID, CommConst.nstAttachmentReqTimeout, null);
+					}
+					expiredStream.close();
+				}
+				if(stream == null) continue;
+				
+				//Sending the chunk
+				boolean finished;
+				try {
+					finished = stream.sendChunk();
+				} catch(RuntimeException exception) {
+					Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+					Sentry.captureException(exception);
+					finished = true;
+				}
+				
+				//Cleaning up finished downloads
+				if(finished) {
+					lock.lock();
+					try {
+						streams.remove(stream);
+					} finally {
+						lock.unlock();
+					}
+					stream.close();
+				}
+			}
+		} catch(InterruptedException exception) {
+			//Returning
+		}
+	}
+	
+	/**
+	 * Wakes the streamer when a client's send window frees space, as a download may have been waiting for it
+	 */
+	private void onWindowReleased() {
+		//Skipping the lock while the streamer is busy, as it checks the send windows again before it waits
+		if(!waiting) return;
+		
+		lock.lock();
+		try {
+			streamsChanged.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes the credit-paced downloads that have gone too long without credits
+	 * Must be called while holding the lock
+	 * @param expiredStreams the list to add the removed downloads to
+	 * @return the amount of nanoseconds until the next stalled download expires, or -1 if no download is stalled
+	 */
+	private long removeExpiredStreams(List<AttachmentStream> expiredStreams) {
+		long time = System.nanoTime();
+		long nextExpiry = -1;
+		for(Iterator<AttachmentStream> iterator = streams.iterator(); iterator.hasNext();) {
+			AttachmentStream stream = iterator.next();
+			if(stream.stalledSince == -1 || stream.pendingChunk != null) continue;
+			
+			long remaining = stream.stalledSince + creditTimeout - time;
+			if(remaining <= 0) {
+				iterator.remove();
+				expiredStreams.add(stream);
+			} else if(nextExpiry == -1 || remaining < nextExpiry) {
+				nextExpiry = remaining;
+			}
+		}
+		
+		return nextExpiry;
+	}
+	
+	/**
+	 * Finds the next download that can send a chunk, starting after the last download that sent one
+	 * Must be called while holding the lock
+	 * @return the download, or NULL if no download can send a chunk
+	 */
+	private AttachmentStream takeReadyStream() {
+		int count = streams.size();
+		for(int i = 0; i < count; i++) {
+			int index = (nextStreamIndex + i) % count;
+			AttachmentStream stream = streams.get(index);
+			
+			//Letting disconnected clients' downloads through, so that they can be cleaned up
+			boolean ready;
+			if(!stream.request.connection.isConnected()) ready = true;
+			else if(stream.pendingChunk != null) ready = ConnectionManager.getCommunicationsManager().canSendWindowedMessage(stream.request.connection, stream.pendingChunk.length);
+			else ready = stream.credits != 0 && ConnectionManager.getCommunicationsManager().canSendWindowedMessage(stream.request.connection, stream.request.chunkSize);
+			if(!ready) continue;
+			
+			//Held chunks have already used their credit
+			if(stream.credits > 0 && stream.pendingChunk == null) stream.credits--;
+			//Giving the client the full timeout to send more credits once its last chunk goes out
+			if(stream.credits == 0) stream.stalledSince = System.nanoTime();
+			nextStreamIndex = index + 1;
+			return stream;
+		}
+		
+		return null;
+	}
+	
+	private static class AttachmentStream {
+		final FileRequest request;
+		final ConversionHelper.ConvertedFile convertedData;
+		final FileChunkReader reader;
+		final long fileLength;
+		final CommunicationsManager.FileRange range; //The part of the file that is sent, or NULL if the client didn't ask for a range
+		int requestIndex = 0;
+		int credits; //The amount of chunks the client is ready to receive, or -1 if the client doesn't use credits
+		long stalledSince = -1; //The time this download ran out of credits, or -1 if it has credits or doesn't use them
+		byte[] pendingChunk = null; //A packed chunk that didn't fit in the client's send window, to be sent before reading the next one
+		final Runnable windowListener;
+		
+		AttachmentStream(FileRequest request, ConversionHelper.ConvertedFile convertedData, String fileType, Runnable windowListener) throws IOException {
+			this.request = request;
+			this.convertedData = convertedData;
+			this.windowListener = windowListener;
+			this.fileLength = convertedData.file().length();
+			this.credits = request.creditWindow > 0 ? Math.min(request.creditWindow, maxCredits) : -1;
+			
+			//Finding the part of the file to send
+			long offset = 0;
+			long length = fileLength;
+			if(request.rangeRequested) {
+				//Sending the whole file if it changed since the client started downloading it
+				String validator = convertedData.getValidator();
+				if(request.rangeValidator == null || request.rangeValidator.equals(validator)) {
+					offset = Math.max(0, Math.min(request.rangeOffset, fileLength));
+					length = request.rangeLength < 0 ? fileLength - offset : Math.min(request.rangeLength, fileLength - offset);
+				}
+				range = new CommunicationsManager.FileRange(offset, length, validator);
+			} else {
+				range = null;
+			}
+			
+			//Choosing whether to compress the file
+			CompressionPolicy.Method compression = CompressionPolicy.choose(convertedData.converted() ? convertedData.updatedType() : fileType, convertedData.file(), request.acceptsUncompressed);
+			
+			reader = new FileChunkReader(convertedData.file(), offset, length, compression);
+			
+			//Listening for send window space, so that this download can continue once its held chunk fits
+			request.connection.getSendWindow().addReleaseListener(windowListener);
+		}
+		
+		/**
+		 * Reads and sends the next chunk of this file, or sends the chunk that was held back last time
+		 * If the client's send window has filled up since this download was picked, the chunk is held back instead of waiting
+		 * @return TRUE if this download is finished, either because the file was fully sent or because it can't continue
+		 */
+		boolean sendChunk() {
+			try {
+				//Checking if the connection is still open
+				if(!request.connection.isConnected()) {
+					Main.getLogger().log(Level.INFO, "Ignoring file request, connection not available");
+					return true;
+				}
+				
+				CommunicationsManager communicationsManager = ConnectionManager.getCommunicationsManager();
+				if(pendingChunk != null) {
+					//Sending the held chunk
+					if(!communicationsManager.trySendWindowedMessage(request.connection, ByteBuffer.wrap(pendingChunk))) return false;
+					pendingChunk = null;
+				} else {
+					//Reading and sending the next chunk
+					try(AirPacker packer = AirPacker.get()) {
+						communicationsManager.packFileChunk(packer, request.requestID, requestIndex, convertedData.updatedName(), convertedData.updatedType(), fileLength, range, request.acceptsUncompressed, reader, request.chunkSize);
+						
+						ByteBuffer content = packer.toByteBuffer();
+						if(!communicationsManager.trySendWindowedMessage(request.connection, content)) {
+							//Holding on to the chunk, as the packer is returned to the pool
+							pendingChunk = new byte[content.remaining()];
+							content.get(pendingChunk);
+							return false;
+						}
+					}
+				}
+				
+				//Adding to the request index
+				requestIndex++;
+				
+				return !reader.hasNext();
+			} catch(IOException exception) {
+				//Logging the error
+				Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+				
+				//Notifying the client
+				if(request.connection.isConnected()) {
+					ConnectionManager.getCommunicationsManager().sendMessageRequestResponse(request.connection, CommConst.nhtAttachmentReqFail, request.requestID, CommConst.nstAttachmentReqIO, null);
+				}
+				
+				return true;
+			}
+		}
+		
+		void close() {
+			request.connection.getSendWindow().removeReleaseListener(windowListener);
+			
+			try(convertedData; reader) {
+				//Closing the stream and releasing the converted file
+			} catch(IOException exception) {
+				Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+			}
+		}
+	}
+}
\ No newline at end of file
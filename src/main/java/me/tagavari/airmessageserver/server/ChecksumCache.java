@@ -0,0 +1,192 @@
+package me.tagavari.airmessageserver.server;
+
+import io.sentry.Sentry;
+import me.tagavari.airmessageserver.connection.CommConst;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Remembers the checksums of attachment files, so that a file only has to be read once to calculate its checksum
+ * Checksums are keyed by the file's path, size and modification date, so a file that changes is hashed again
+ *
+ * Recently used checksums are kept in memory, and every checksum is saved to a small database next to the application's other files,
+ * so that checksums survive restarts
+ */
+class ChecksumCache {
+	private static final int capacity = 4096; //The maximum amount of checksums to keep in memory
+	private static final long mapThreshold = 4 * 1024 * 1024; //Files at least this large are hashed by mapping them into memory (4 MiB)
+	private static final long mapWindow = 64 * 1024 * 1024; //The amount of a file to map at once (64 MiB)
+	private static final int bufferSize = 64 * 1024; //The size of the buffer used to hash smaller files (64 KiB)
+	
+	private final Map<String, byte[]> checksums = new LinkedHashMap<>(16, 0.75F, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > capacity;
+		}
+	};
+	
+	private final Connection connection; //The connection to the checksum database, or NULL if checksums aren't being saved
+	
+	/**
+	 * Creates a checksum cache that saves checksums to a database
+	 * If the database can't be opened, checksums are only kept in memory
+	 * @param databaseFile the file to save checksums in
+	 */
+	ChecksumCache(File databaseFile) {
+		connection = openDatabase(databaseFile);
+	}
+	
+	/**
+	 * Gets the checksum of a file if it has already been calculated
+	 * @param file the file to get the checksum of
+	 * @return the file's checksum, or NULL if it hasn't been calculated yet
+	 */
+	byte[] getCached(File file) {
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long modified = file.lastModified();
+		String key = getKey(path, size, modified);
+		synchronized(checksums) {
+			byte[] checksum = checksums.get(key);
+			if(checksum != null) return checksum;
+		}
+		
+		//Checking the database
+		byte[] checksum = loadChecksum(path, size, modified);
+		if(checksum != null) {
+			synchronized(checksums) {
+				checksums.put(key, checksum);
+			}
+		}
+		return checksum;
+	}
+	
+	/**
+	 * Gets the checksum of a file, calculating it if it hasn't been calculated yet
+	 * @param file the file to get the checksum of
+	 * @return the file's checksum, or NULL if the file isn't ready
+	 */
+	byte[] get(File file) throws IOException, NoSuchAlgorithmException {
+		//Returning null if the file isn't ready
+		if(!file.exists() || !file.isFile() || !file.canRead()) return null;
+		
+		byte[] checksum = getCached(file);
+		if(checksum != null) return checksum;
+		
+		//Calculating the checksum
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long modified = file.lastModified();
+		checksum = calculateChecksum(file);
+		
+		synchronized(checksums) {
+			checksums.put(getKey(path, size, modified), checksum);
+		}
+		saveChecksum(path, size, modified, checksum);
+		
+		return checksum;
+	}
+	
+	/**
+	 * Closes the checksum database
+	 */
+	void close() {
+		if(connection == null) return;
+		
+		synchronized(connection) {
+			try {
+				connection.close();
+			} catch(SQLException exception) {
+				Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+			}
+		}
+	}
+	
+	private static Connection openDatabase(File databaseFile) {
+		try {
+			Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
+			try(Statement statement = connection.createStatement()) {
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS checksum (path TEXT PRIMARY KEY, size INTEGER NOT NULL, modified INTEGER NOT NULL, checksum BLOB NOT NULL)");
+			} catch(SQLException exception) {
+				connection.close();
+				throw exception;
+			}
+			return connection;
+		} catch(SQLException exception) {
+			Main.getLogger().log(Level.WARNING, "Couldn't open checksum database, checksums will not be saved", exception);
+			Sentry.captureException(exception);
+			return null;
+		}
+	}
+	
+	private byte[] loadChecksum(String path, long size, long modified) {
+		if(connection == null) return null;
+		
+		synchronized(connection) {
+			try(PreparedStatement statement = connection.prepareStatement("SELECT checksum FROM checksum WHERE path = ? AND size = ? AND modified = ?")) {
+				statement.setString(1, path);
+				statement.setLong(2, size);
+				statement.setLong(3, modified);
+				try(ResultSet resultSet = statement.executeQuery()) {
+					return resultSet.next() ? resultSet.getBytes(1) : null;
+				}
+			} catch(SQLException exception) {
+				Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+				return null;
+			}
+		}
+	}
+	
+	private void saveChecksum(String path, long size, long modified, byte[] checksum) {
+		if(connection == null) return;
+		
+		//Replacing the checksum of an older version of the file
+		synchronized(connection) {
+			try(PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO checksum (path, size, modified, checksum) VALUES (?, ?, ?, ?)")) {
+				statement.setString(1, path);
+				statement.setLong(2, size);
+				statement.setLong(3, modified);
+				statement.setBytes(4, checksum);
+				statement.executeUpdate();
+			} catch(SQLException exception) {
+				Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+			}
+		}
+	}
+	
+	private static String getKey(String path, long size, long modified) {
+		return path + ":" + size + ":" + modified;
+	}
+	
+	private static byte[] calculateChecksum(File file) throws IOException, NoSuchAlgorithmException {
+		MessageDigest messageDigest = MessageDigest.getInstance(CommConst.hashAlgorithm);
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size >= mapThreshold) {
+				//Mapping large files a window at a time, so that they don't have to be copied through a buffer
+				for(long position = 0; position < size; position += mapWindow) {
+					messageDigest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(mapWindow, size - position)));
+				}
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+				while(channel.read(buffer) != -1) {
+					buffer.flip();
+					messageDigest.update(buffer);
+					buffer.clear();
+				}
+			}
+		}
+		
+		return messageDigest.digest();
+	}
+}
\ No newline at end of file
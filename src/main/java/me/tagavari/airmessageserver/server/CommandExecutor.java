@@ -0,0 +1,27 @@
+package me.tagavari.airmessageserver.server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs the commands that AppleScriptManager uses to control Messages
+ * Can be replaced to run the commands with a stand-in script, or without spawning a process at all
+ */
+public interface CommandExecutor {
+	/**
+	 * Runs a command, and waits for it to finish
+	 * @param command the command to run, starting with the program name
+	 * @return the output of the command
+	 */
+	Result execute(String[] command) throws IOException;
+	
+	class Result {
+		public final List<String> outputLines;
+		public final List<String> errorLines;
+		
+		public Result(List<String> outputLines, List<String> errorLines) {
+			this.outputLines = outputLines;
+			this.errorLines = errorLines;
+		}
+	}
+}
\ No newline at end of file
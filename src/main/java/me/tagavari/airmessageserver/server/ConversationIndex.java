@@ -0,0 +1,208 @@
+package me.tagavari.airmessageserver.server;
+
+import me.tagavari.airmessageserver.common.Blocks;
+import org.jooq.Record;
+import org.jooq.*;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import static org.jooq.impl.DSL.*;
+
+/**
+ * Keeps a summary of every conversation in memory, so that conversation lists can be served without querying the database
+ * The index is built once, and then kept up-to-date by the scanner thread, which refreshes every conversation that has received new rows since the last update
+ */
+class ConversationIndex {
+	private final boolean dbSupportsSendStyle;
+	
+	private final Map<String, Blocks.LiteConversationInfo> conversations = new ConcurrentHashMap<>();
+	private volatile boolean built = false;
+	private long rowIDWatermark = -1; //The highest chat message join row that has been indexed
+	
+	ConversationIndex(boolean dbSupportsSendStyle) {
+		this.dbSupportsSendStyle = dbSupportsSendStyle;
+	}
+	
+	/**
+	 * Gets whether the index has been built, and can be used to serve requests
+	 */
+	boolean isBuilt() {
+		return built;
+	}
+	
+	/**
+	 * Gets all conversations, sorted by their latest message
+	 */
+	List<Blocks.LiteConversationInfo> getConversations() {
+		return sortConversations(conversations.values());
+	}
+	
+	/**
+	 * Sorts conversations by their latest message, newest first
+	 */
+	static List<Blocks.LiteConversationInfo> sortConversations(Collection<Blocks.LiteConversationInfo> conversations) {
+		List<Blocks.LiteConversationInfo> list = new ArrayList<>(conversations);
+		list.sort(java.util.Comparator.comparingLong((Blocks.LiteConversationInfo conversation) -> conversation.previewDate).reversed());
+		return list;
+	}
+	
+	/**
+	 * Rebuilds the index from scratch
+	 * Must only be called from the scanner thread
+	 */
+	void rebuild(DSLContext context) throws DataAccessException {
+		long watermark = fetchRowIDWatermark(context);
+		Map<String, Blocks.LiteConversationInfo> results = queryConversations(context, null);
+		
+		conversations.keySet().retainAll(results.keySet());
+		conversations.putAll(results);
+		rowIDWatermark = watermark;
+		built = true;
+		
+		Main.getLogger().log(Level.FINEST, "Built conversation index with " + results.size() + " conversation(s)");
+	}
+	
+	/**
+	 * Refreshes every conversation that has received new messages, actions or modifiers since the last update
+	 * Must only be called from the scanner thread
+	 */
+	void update(DSLContext context) throws DataAccessException {
+		if(!built) {
+			rebuild(context);
+			return;
+		}
+		
+		//Finding the chats that have received new rows
+		Result<Record2<Long, String>> results = context.select(DSL.max(field("chat_message_join.message_id", Long.class)), field("chat.guid", String.class))
+				.from(DSL.table("chat_message_join"))
+				.join(DSL.table("chat")).on(field("chat_message_join.chat_id").eq(field("chat.ROWID")))
+				.where(field("chat_message_join.message_id", Long.class).greaterThan(rowIDWatermark))
+				.groupBy(field("chat.guid"))
+				.fetch();
+		if(results.isEmpty()) return;
+		
+		Set<String> chatGUIDs = new HashSet<>();
+		long watermark = rowIDWatermark;
+		for(Record2<Long, String> result : results) {
+			watermark = Math.max(watermark, result.value1());
+			chatGUIDs.add(result.value2());
+		}
+		
+		//Refreshing the chats
+		conversations.putAll(queryConversations(context, field("chat.guid", String.class).in(chatGUIDs)));
+		rowIDWatermark = watermark;
+	}
+	
+	/**
+	 * Compares the index against the database, and rebuilds it if any conversation doesn't match
+	 * Must only be called from the scanner thread
+	 * @return whether the index was consistent
+	 */
+	boolean verify(DSLContext context) throws DataAccessException {
+		if(!built) {
+			rebuild(context);
+			return true;
+		}
+		
+		Map<String, Blocks.LiteConversationInfo> results = queryConversations(context, null);
+		
+		int mismatchCount = 0;
+		for(Map.Entry<String, Blocks.LiteConversationInfo> entry : results.entrySet()) {
+			if(!conversationEquals(entry.getValue(), conversations.get(entry.getKey()))) mismatchCount++;
+		}
+		for(String guid : conversations.keySet()) {
+			if(!results.containsKey(guid)) mismatchCount++;
+		}
+		
+		if(mismatchCount == 0) return true;
+		
+		Main.getLogger().log(Level.WARNING, "Conversation index was inconsistent with the database (" + mismatchCount + " mismatched conversation(s)), rebuilding");
+		rebuild(context);
+		return false;
+	}
+	
+	/**
+	 * Queries conversation summaries from the database
+	 * @param context the DSL context to access the database with
+	 * @param chatFilter a condition to restrict the chats to query, or NULL to query all chats
+	 * @return a map of chat GUIDs to their conversation summaries
+	 */
+	Map<String, Blocks.LiteConversationInfo> queryConversations(DSLContext context, Condition chatFilter) throws DataAccessException {
+		Collection<Field<?>> fields = new ArrayList<>(Arrays.asList(field("chat.guid", String.class), field("chat.display_name", String.class), field("chat.service_name", String.class), field("message.text", String.class), field("message.date", Long.class), field("handle.id", String.class), field("sub2.participant_list", String.class).as("participant_list"), field("GROUP_CONCAT(attachment.mime_type)", String.class).as("attachment_list")));
+		if(dbSupportsSendStyle) fields.add(field("message.expressive_send_style_id", String.class));
+		
+		Condition messageCondition = field("message.item_type", Integer.class).eq(0);
+		if(chatFilter != null) messageCondition = messageCondition.and(chatFilter);
+		
+		//Querying the database
+		Result<Record> results = context.select(fields)
+			.from(select(field("sub1.*"), field("GROUP_CONCAT(handle.id)", String.class).as("participant_list"))
+				.from(select(field("chat.ROWID", Long.class).as("chat_id"), field("message.ROWID", Long.class).as("message_id"), field("MAX(message.date)", Long.class))
+					.from(table("chat"))
+					.leftJoin(table("chat_message_join")).on(field("chat_message_join.chat_id").eq(field("chat.ROWID")))
+					.leftJoin(table("message")).on(field("chat_message_join.message_id").eq(field("message.ROWID")))
+					.where(messageCondition)
+					.groupBy(field("chat.ROWID"))
+					.asTable("sub1")
+				)
+				.leftJoin(table("chat_handle_join")).on(field("chat_handle_join.chat_id", Long.class).eq(field("sub1.chat_id", Long.class)))
+				.leftJoin(table("handle")).on(field("chat_handle_join.handle_id", Long.class).eq(field("handle.ROWID", Long.class)))
+				.groupBy(field("sub1.chat_id"))
+				.asTable("sub2")
+			)
+			.leftJoin(table("chat")).on(field("chat.ROWID", Long.class).eq(field("sub2.chat_id", Long.class)))
+			.leftJoin(table("message")).on(field("message.ROWID", Long.class).eq(field("sub2.message_id", Long.class)))
+			.leftJoin(table("message_attachment_join")).on(field("message_attachment_join.message_id", Long.class).eq(field("sub2.message_id", Long.class)))
+			.leftJoin(table("attachment")).on(field("message_attachment_join.attachment_id", Long.class).eq(field("attachment.ROWID", Long.class)))
+			.leftJoin(table("handle")).on(field("message.handle_id", Long.class).eq(field("handle.ROWID", Long.class)))
+			.groupBy(field("chat.ROWID", Long.class))
+			.fetch();
+		
+		Map<String, Blocks.LiteConversationInfo> resultMap = new HashMap<>();
+		for(Record result : results) {
+			String guid = result.get("chat.guid", String.class);
+			String service = result.get("chat.service_name", String.class);
+			String name = result.get("chat.display_name", String.class);
+			String membersRaw = result.get("participant_list", String.class);
+			String[] members = membersRaw == null ? new String[0] : membersRaw.split(",");
+			Long date = result.get("message.date", Long.class);
+			String text = result.get("message.text", String.class);
+			if(text != null) {
+				text = text.replace(Character.toString('\uFFFC'), "");
+				text = text.replace(Character.toString('\uFFFD'), "");
+				if(text.isEmpty()) text = null;
+			}
+			String sendStyle = dbSupportsSendStyle ? result.get("message.expressive_send_style_id", String.class) : null;
+			String sender = result.get("handle.id", String.class);
+			String attachmentListRaw = result.get("attachment_list", String.class);
+			String[] attachmentList = attachmentListRaw == null ? null : attachmentListRaw.split(",");
+			
+			resultMap.put(guid, new Blocks.LiteConversationInfo(guid, service, name, members, date != null ? Main.getTimeHelper().toUnixTime(date) : -1, sender, text, sendStyle, attachmentList));
+		}
+		
+		return resultMap;
+	}
+	
+	private static long fetchRowIDWatermark(DSLContext context) {
+		Long maxRowID = context.select(DSL.max(field("chat_message_join.message_id", Long.class))).from(DSL.table("chat_message_join")).fetchOne(0, Long.class);
+		return maxRowID == null ? 0 : maxRowID;
+	}
+	
+	private static boolean conversationEquals(Blocks.LiteConversationInfo a, Blocks.LiteConversationInfo b) {
+		if(a == null || b == null) return a == b;
+		
+		return Objects.equals(a.guid, b.guid) &&
+				Objects.equals(a.service, b.service) &&
+				Objects.equals(a.name, b.name) &&
+				Arrays.equals(a.members, b.members) &&
+				a.previewDate == b.previewDate &&
+				Objects.equals(a.previewSender, b.previewSender) &&
+				Objects.equals(a.previewText, b.previewText) &&
+				Objects.equals(a.previewSendStyle, b.previewSendStyle) &&
+				Arrays.equals(a.previewAttachments, b.previewAttachments);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,239 @@
+package me.tagavari.airmessageserver.server;
+
+import com.sun.nio.file.SensitivityWatchEventModifier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Detects when a SQLite database has been written to by another process, so that it only needs to be queried when there is something new
+ * The database and WAL files are checked with cheap file system calls, and confirmed with PRAGMA data_version, which only changes when another connection commits
+ * A WatchService on the database's directory wakes up {@link #awaitChange()} as soon as one of the files is touched
+ */
+class DatabaseChangeDetector implements Closeable {
+	private static final long initialRecheckDelay = 10; //How long to wait before checking the data version again after the files changed without it, in milliseconds
+	
+	private final Connection connection;
+	private final File databaseFile;
+	private final File walFile;
+	private final long checkInterval;
+	
+	private final Lock lock = new ReentrantLock();
+	private final Condition changeCondition = lock.newCondition();
+	private long dataVersionInterval;
+	private boolean changeSignaled = false;
+	private long lastDataVersionCheck = 0;
+	private long recheckDelay = 0; //How long to wait before checking the data version again if the files changed without it, or 0 if no recheck is pending
+	
+	private WatchService watchService;
+	private Thread watchThread;
+	
+	private long lastDataVersion = -1;
+	private FileState lastDatabaseState = null;
+	private FileState lastWALState = null;
+	
+	/**
+	 * Creates a new change detector
+	 * @param connection the connection to check the data version with, which must not be used to write to the database
+	 * @param databaseFile the database file to watch
+	 * @param checkInterval how often to check the database files for changes, in milliseconds
+	 * @param dataVersionInterval how often to check the data version if no file changes were detected, in milliseconds
+	 */
+	DatabaseChangeDetector(Connection connection, File databaseFile, long checkInterval, long dataVersionInterval) {
+		this.connection = connection;
+		this.databaseFile = databaseFile;
+		this.walFile = new File(databaseFile.getPath() + "-wal");
+		this.checkInterval = checkInterval;
+		this.dataVersionInterval = dataVersionInterval;
+	}
+	
+	/**
+	 * Starts watching the database directory for changes
+	 * If the directory can't be watched, changes will only be picked up every check interval
+	 */
+	void start() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			databaseFile.getAbsoluteFile().getParentFile().toPath().register(watchService, new WatchEvent.Kind<?>[]{StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY}, SensitivityWatchEventModifier.HIGH);
+		} catch(IOException | UnsupportedOperationException exception) {
+			Main.getLogger().log(Level.WARNING, "Couldn't watch database directory: " + exception.getMessage(), exception);
+			closeWatchService();
+			return;
+		}
+		
+		WatchService watchService = this.watchService;
+		watchThread = new Thread(() -> runWatcher(watchService), "Database change watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+	
+	private void runWatcher(WatchService watchService) {
+		String databaseName = databaseFile.getName();
+		
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watchService.take();
+				
+				//Checking if any of the database's files were touched
+				boolean databaseChanged = false;
+				for(WatchEvent<?> event : key.pollEvents()) {
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW || (event.context() instanceof Path && event.context().toString().startsWith(databaseName))) {
+						databaseChanged = true;
+					}
+				}
+				
+				if(databaseChanged) signalChange();
+				
+				//Stopping if the directory can no longer be watched
+				if(!key.reset()) break;
+			}
+		} catch(InterruptedException | ClosedWatchServiceException exception) {
+			//Returning
+		}
+	}
+	
+	//Called from the watcher thread when a database file may have changed
+	private void signalChange() {
+		lock.lock();
+		try {
+			changeSignaled = true;
+			changeCondition.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for the next check, and returns whether another connection has committed to the database since the previous one
+	 * A check happens as soon as the watcher sees one of the database's files being touched, or after the check interval otherwise
+	 * The data version is only queried when the database files have changed, or when it hasn't been queried for the data version interval
+	 * @return true if another connection has committed to the database
+	 */
+	boolean awaitChange() throws InterruptedException, SQLException {
+		//Waiting for a change notification, or until it's time to check the database files again
+		boolean changeSignaled;
+		long dataVersionInterval;
+		lock.lock();
+		try {
+			if(!this.changeSignaled) changeCondition.await(recheckDelay > 0 ? recheckDelay : checkInterval, TimeUnit.MILLISECONDS);
+			changeSignaled = this.changeSignaled;
+			this.changeSignaled = false;
+			dataVersionInterval = this.dataVersionInterval;
+		} finally {
+			lock.unlock();
+		}
+		
+		//Checking if the database files have changed, falling back to checking the data version every data version interval
+		long currentTime = System.currentTimeMillis();
+		boolean filesChanged = checkFiles() || changeSignaled;
+		if(!filesChanged && recheckDelay == 0 && currentTime < lastDataVersionCheck + dataVersionInterval) return false;
+		
+		//Confirming that another connection has committed
+		lastDataVersionCheck = currentTime;
+		boolean dataChanged = checkDataVersion();
+		
+		//The files are written to before the commit completes, so checking the data version again with a growing delay (up to the check interval) in case the commit was still in progress
+		if(dataChanged) recheckDelay = 0;
+		else if(filesChanged) recheckDelay = Math.min(initialRecheckDelay, checkInterval);
+		else if(recheckDelay > 0) recheckDelay = recheckDelay >= checkInterval ? 0 : Math.min(recheckDelay * 2, checkInterval);
+		
+		return dataChanged;
+	}
+	
+	/**
+	 * Sets how often to check the data version if no file changes were detected
+	 */
+	void setDataVersionInterval(long interval) {
+		lock.lock();
+		try {
+			if(interval != dataVersionInterval) {
+				dataVersionInterval = interval;
+				changeCondition.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Checks if the size or modification date of the database or its WAL file has changed since the last check
+	 */
+	private boolean checkFiles() {
+		FileState databaseState = new FileState(databaseFile);
+		FileState walState = new FileState(walFile);
+		
+		boolean changed = !databaseState.equals(lastDatabaseState) || !walState.equals(lastWALState);
+		lastDatabaseState = databaseState;
+		lastWALState = walState;
+		
+		return changed;
+	}
+	
+	/**
+	 * Checks if another connection has committed to the database since the last check
+	 */
+	private boolean checkDataVersion() throws SQLException {
+		long dataVersion;
+		try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("PRAGMA data_version")) {
+			resultSet.next();
+			dataVersion = resultSet.getLong(1);
+		}
+		
+		boolean changed = dataVersion != lastDataVersion;
+		lastDataVersion = dataVersion;
+		
+		return changed;
+	}
+	
+	@Override
+	public void close() {
+		if(watchThread != null) watchThread.interrupt();
+		closeWatchService();
+	}
+	
+	private void closeWatchService() {
+		if(watchService == null) return;
+		
+		try {
+			watchService.close();
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		}
+		watchService = null;
+	}
+	
+	private static class FileState {
+		final long length;
+		final long lastModified;
+		
+		FileState(File file) {
+			//Both values are 0 if the file doesn't exist
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof FileState)) return false;
+			FileState fileState = (FileState) o;
+			return length == fileState.length && lastModified == fileState.lastModified;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Long.hashCode(length) * 31 + Long.hashCode(lastModified);
+		}
+	}
+}
\ No newline at end of file
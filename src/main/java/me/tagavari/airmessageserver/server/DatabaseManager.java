@@ -2,39 +2,39 @@ package me.tagavari.airmessageserver.server;
 
 import io.sentry.Sentry;
 import me.tagavari.airmessageserver.common.Blocks;
+import me.tagavari.airmessageserver.connection.ClientRegistration;
 import me.tagavari.airmessageserver.connection.CommConst;
 import me.tagavari.airmessageserver.connection.ConnectionManager;
+import me.tagavari.airmessageserver.connection.SendWindow;
 import me.tagavari.airmessageserver.helper.CompressionHelper;
+import me.tagavari.airmessageserver.helper.CompressionPolicy;
 import me.tagavari.airmessageserver.helper.ConversionHelper;
 import me.tagavari.airmessageserver.helper.FileHelper;
-import me.tagavari.airmessageserver.helper.LookAheadStreamIterator;
+import me.tagavari.airmessageserver.helper.FileChunkReader;
 import me.tagavari.airmessageserver.request.*;
 import org.jooq.Record;
 import org.jooq.*;
 import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
+import org.sqlite.SQLiteConfig;
 
 import java.io.*;
 import java.io.File;
 import java.nio.file.Files;
-import java.security.DigestInputStream;
 import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
-import java.util.zip.DeflaterInputStream;
 
 import static org.jooq.impl.DSL.*;
 
@@ -42,7 +42,8 @@ public class DatabaseManager {
 	//Creating the reference variables
 	//private static final long checkTime = 5 * 1000;
 	//private static final long pollTime = 100;
-	private static final String databaseLocation = "jdbc:sqlite:" + System.getProperty("user.home") + "/Library/Messages/chat.db";
+	private static final File defaultDatabaseFile = new File(System.getProperty("user.home"), "Library/Messages/chat.db");
+	private static final long changeCheckInterval = 250; //How often to check the database files for changes
 	/* private static final ArrayList<String> validServices = new ArrayList<String>() {{
 		add("iMessage");
 		add("SMS");
@@ -51,6 +52,9 @@ public class DatabaseManager {
 	//Creating the instance value
 	private static DatabaseManager instance;
 	
+	//Creating the database values
+	private final File databaseFile;
+	
 	//Creating the schema support values
 	private final boolean dbSupportsSendStyle;
 	private final boolean dbSupportsAssociation;
@@ -58,17 +62,50 @@ public class DatabaseManager {
 	
 	//Creating the thread values
 	ScannerThread scannerThread;
-	RequestThread requestThread;
+	RequestThread[] requestThreads;
+	private final RequestScheduler requestScheduler = new RequestScheduler();
 	
 	//Creating the other values
-	private final HashMap<String, MessageState> messageStates = new HashMap<>();
+	private final ReadReceiptTracker readReceiptTracker = new ReadReceiptTracker();
+	
+	private static final int attachmentQueryBatchSize = 500; //The maximum amount of messages to fetch attachments for in a single query
 	
 	private static final long creationTargetingAvailabilityUpdateInterval = 60 * 60 * 1000; //1 hour
 	private long lastCreationTargetingAvailabilityUpdate;
 	private boolean creationTargetingUpdateRequired = true;
 	private final AtomicReference<HashMap<String, CreationTargetingChat>> creationTargetingAvailabilityList = new AtomicReference<>(new HashMap<>());
 	
+	private static final long conversationIndexVerifyInterval = 6 * 60 * 60 * 1000; //6 hours
+	private final ConversationIndex conversationIndex;
+	private long lastConversationIndexVerify;
+	private volatile boolean conversationIndexRebuildRequired = true;
+	
+	private static final int massRetrievalChunkSize = 1024 * 1024; //The size of each mass retrieval attachment chunk (1 MiB)
+	private static final int massRetrievalPageSizeMin = 20; //The amount of messages in each mass retrieval page, before the client's drain rate is known
+	private static final int massRetrievalPageSizeMax = 500;
+	private static final long massRetrievalPageTime = 500; //How long each mass retrieval page should take to drain to the client, in milliseconds
+	private final Map<String, MassRetrievalCursor> massRetrievalCursors = new ConcurrentHashMap<>(); //Maps installation IDs to the progress of their latest mass retrieval
+	
+	private final AttachmentStreamer attachmentStreamer = new AttachmentStreamer();
+	private final ChecksumCache checksumCache = new ChecksumCache(new File(Constants.applicationSupportDir, "checksums.db"));
+	private final AttachmentPreparer attachmentPreparer = new AttachmentPreparer(checksumCache);
+	
 	public static boolean start(long scanFrequency) {
+		return start(defaultDatabaseFile, false, scanFrequency);
+	}
+	
+	/**
+	 * Starts the database manager on an alternate Messages database, such as a generated database for benchmarking
+	 * The database's supported features are read from its schema, rather than assumed from the system version
+	 * @param databaseFile the database file to open
+	 * @param scanFrequency how often to check the database for changes, in milliseconds
+	 * @return TRUE if the database manager was started
+	 */
+	public static boolean start(File databaseFile, long scanFrequency) {
+		return start(databaseFile, true, scanFrequency);
+	}
+	
+	private static boolean start(File databaseFile, boolean readSchema, long scanFrequency) {
 		//Checking if there is already an instance
 		if(instance != null) {
 			//Logging the exception
@@ -78,11 +115,22 @@ public class DatabaseManager {
 			return true;
 		}
 		
-		//Creating the database connections
-		Connection[] connections = new Connection[2];
+		//Getting the worker counts
+		int workerCount = Math.max(PreferencesManager.getPrefDatabaseWorkers(), 1);
+		int interactiveWorkerCount = Math.max(Math.min(PreferencesManager.getPrefDatabaseInteractiveWorkers(), workerCount - 1), 0); //At least one worker must accept bulk requests
+		
+		//Creating the database connections (one for the scanner, and a read-only connection for each request worker)
+		Connection[] connections = new Connection[1 + workerCount];
 		int connectionsEstablished = 0;
+		String databaseLocation = "jdbc:sqlite:" + databaseFile.getPath();
 		try {
-			for(; connectionsEstablished < connections.length; connectionsEstablished++) connections[connectionsEstablished] = DriverManager.getConnection(databaseLocation);
+			SQLiteConfig readOnlyConfig = new SQLiteConfig();
+			readOnlyConfig.setReadOnly(true);
+			
+			for(; connectionsEstablished < connections.length; connectionsEstablished++) {
+				if(connectionsEstablished == 0) connections[connectionsEstablished] = DriverManager.getConnection(databaseLocation);
+				else connections[connectionsEstablished] = readOnlyConfig.createConnection(databaseLocation);
+			}
 		} catch(SQLException exception) {
 			//Logging a message
 			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
@@ -103,7 +151,7 @@ public class DatabaseManager {
 		}
 		
 		//Creating the instance
-		instance = new DatabaseManager(connections, scanFrequency);
+		instance = new DatabaseManager(databaseFile, readSchema, connections, interactiveWorkerCount, scanFrequency);
 		
 		//Getting the time variables
 		//connectFetchTime = Main.getTimeHelper().toDatabaseTime(System.currentTimeMillis());
@@ -116,47 +164,73 @@ public class DatabaseManager {
 		//Validating the instance
 		if(instance == null) return;
 		
-		//Interrupting the thread
-		instance.requestThread.interrupt();
+		//Interrupting the threads
+		for(RequestThread requestThread : instance.requestThreads) requestThread.interrupt();
 		instance.scannerThread.interrupt();
+		instance.scannerThread.changeDetector.close();
+		instance.requestScheduler.clear();
+		instance.attachmentStreamer.stop();
+		instance.attachmentPreparer.stop();
+		instance.checksumCache.close();
+		
+		//Logging the request statistics
+		Main.getLogger().log(Level.INFO, "Database request statistics:\n" + instance.requestScheduler.getStatisticsSummary());
+		Main.getLogger().log(Level.INFO, "Attachment compression statistics:\n" + CompressionPolicy.getStatistics());
 		
 		//Invalidating the instance
 		instance = null;
 	}
 	
-	private DatabaseManager(Connection[] connections, long scanFrequency) {
-		//Setting up the capability values
-		dbSupportsSendStyle = dbSupportsAssociation = dbSupportsHiddenAttachments = Constants.compareVersions(Constants.getSystemVersion(), Constants.macOSSierraVersion) >= 0;
-		
-		/* //Reading the schema
-		Connection connection = connections[0];
+	private DatabaseManager(File databaseFile, boolean readSchema, Connection[] connections, int interactiveWorkerCount, long scanFrequency) {
+		this.databaseFile = databaseFile;
 		
-		try {
-			//Checking if the DB supports send styles
-			ResultSet resultSet = connection.getMetaData().getColumns(null, null, "message", "expressive_send_style_id");
-			dbSupportsSendStyle = resultSet.next();
-			resultSet.close();
-			
-			//Checking if the DB supports association (tapback & stickers)
-			resultSet = connection.getMetaData().getColumns(null, null, "message", "associated_message_guid");
-			dbSupportsAssociation = resultSet.next();
-			resultSet.close();
-		} catch(SQLException exception) {
-			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-			Sentry.captureException(exception);
-		} */
+		//Setting up the capability values
+		if(readSchema) {
+			dbSupportsSendStyle = hasColumn(connections[0], "message", "expressive_send_style_id");
+			dbSupportsAssociation = hasColumn(connections[0], "message", "associated_message_guid");
+			dbSupportsHiddenAttachments = hasColumn(connections[0], "attachment", "hide_attachment");
+		} else {
+			dbSupportsSendStyle = dbSupportsAssociation = dbSupportsHiddenAttachments = Constants.compareVersions(Constants.getSystemVersion(), Constants.macOSSierraVersion) >= 0;
+		}
+		conversationIndex = new ConversationIndex(dbSupportsSendStyle);
 		
 		//Creating the threads
 		scannerThread = new ScannerThread(connections[0], scanFrequency);
 		scannerThread.start();
-		requestThread = new RequestThread(connections[1]);
-		requestThread.start();
+		requestThreads = new RequestThread[connections.length - 1];
+		for(int i = 0; i < requestThreads.length; i++) {
+			requestThreads[i] = new RequestThread(connections[1 + i], i < interactiveWorkerCount);
+			requestThreads[i].start();
+		}
+	}
+	
+	/**
+	 * Checks if a table in the database has a column
+	 */
+	private static boolean hasColumn(Connection connection, String table, String column) {
+		try(ResultSet resultSet = connection.getMetaData().getColumns(null, null, table, column)) {
+			return resultSet.next();
+		} catch(SQLException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+			return false;
+		}
 	}
 	
 	public static DatabaseManager getInstance() {
 		return instance;
 	}
 	
+	/**
+	 * Allows an attachment download to send more chunks
+	 * @param client the client that owns the download
+	 * @param requestID the request ID of the download
+	 * @param credits the amount of chunks the client is ready to receive
+	 */
+	public void addAttachmentCredits(ClientRegistration client, short requestID, int credits) {
+		attachmentStreamer.addCredits(client, requestID, credits);
+	}
+	
 	public HashMap<String, CreationTargetingChat> getCreationTargetingAvailabilityList() {
 		return creationTargetingAvailabilityList.get();
 	}
@@ -169,6 +243,10 @@ public class DatabaseManager {
 		creationTargetingUpdateRequired = true;
 	}
 	
+	public void requestConversationIndexRebuild() {
+		conversationIndexRebuildRequired = true;
+	}
+	
 	//The thread that actively scans the database for new messages
 	class ScannerThread extends Thread {
 		//Creating the connection variables
@@ -179,10 +257,8 @@ public class DatabaseManager {
 		private final long creationTime;
 		//private long lastCheckTime;
 		
-		//Creating the lock values
-		private final Lock scanFrequencyLock = new ReentrantLock();
-		private final java.util.concurrent.locks.Condition scanFrequencyCondition = scanFrequencyLock.newCondition();
-		private long scanFrequency;
+		//Creating the change detection values
+		private final DatabaseChangeDetector changeDetector;
 		
 		private ScannerThread(Connection connection, long scanFrequency) {
 			//Setting the values
@@ -190,7 +266,7 @@ public class DatabaseManager {
 			
 			creationTime = Main.getTimeHelper().toDatabaseTime(System.currentTimeMillis());
 			
-			this.scanFrequency = scanFrequency;
+			changeDetector = new DatabaseChangeDetector(connection, databaseFile, changeCheckInterval, scanFrequency);
 		}
 		
 		@Override
@@ -199,22 +275,24 @@ public class DatabaseManager {
 			DataFetchResult dataFetchResult;
 			boolean latestMessageIDUpdated = false;
 			
+			//Watching the database for changes
+			changeDetector.start();
+			
 			//Looping until the thread is interrupted
 			while(!isInterrupted()) {
 				try {
-					//Sleeping for the scan frequency
-					scanFrequencyLock.lock();
-					try {
-						scanFrequencyCondition.await(scanFrequency, TimeUnit.MILLISECONDS);
-					} finally {
-						scanFrequencyLock.unlock();
+					//Waiting for the next check, skipping the scan if no other connection has committed to the database
+					if(!changeDetector.awaitChange()) {
+						updateCreationTargetingIndex();
+						updateConversationIndex(false);
+						continue;
 					}
 					
-					//Fetching new messages
+					//Fetching new messages, leaving their attachments to be prepared in the background
 					dataFetchResult = fetchData(connection,
 							new RetrievalFilter(latestEntryID == -1 ?
 									field("message.date").greaterThan(creationTime) :
-									field("message.ROWID").greaterThan(latestEntryID), -1, null), null);
+									field("message.ROWID").greaterThan(latestEntryID), -1, null), null, false, true);
 					
 					//Updating the latest entry ID
 					if(latestMessageIDUpdated = dataFetchResult.latestMessageID > latestEntryID) {
@@ -265,52 +343,73 @@ public class DatabaseManager {
 					ConnectionManager.getCommunicationsManager().sendIDUpdate(null, latestEntryID);
 				}
 				
-				{
-					//Checking if the targeting availability index needs to be updated
-					long currentTime = System.currentTimeMillis();
-					if(creationTargetingUpdateRequired || currentTime >= lastCreationTargetingAvailabilityUpdate + creationTargetingAvailabilityUpdateInterval) {
-						//Setting the last update time
-						lastCreationTargetingAvailabilityUpdate = currentTime;
-						creationTargetingUpdateRequired = false;
-						
-						//Reindexing
-						try {
-							indexTargetAvailability(connection);
-							
-							Main.getLogger().log(Level.FINEST, "Updated chat creation target index");
-						} catch(SQLException exception) {
-							Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
-							Sentry.captureException(exception);
-						}
-					}
-				}
+				updateCreationTargetingIndex();
+				updateConversationIndex(true);
 			}
 		}
 		
-		void updateScanFrequency(long frequency) {
-			//Updating the value
-			scanFrequencyLock.lock();
+		/**
+		 * Keeps the conversation index up-to-date, rebuilding or verifying it when needed
+		 * @param databaseChanged whether the database has changed since the last update
+		 */
+		private void updateConversationIndex(boolean databaseChanged) {
+			long currentTime = System.currentTimeMillis();
+			
 			try {
-				if(frequency != scanFrequency) {
-					scanFrequency = frequency;
-					scanFrequencyCondition.signal();
+				DSLContext context = DSL.using(connection, SQLDialect.SQLITE);
+				
+				if(conversationIndexRebuildRequired) {
+					conversationIndexRebuildRequired = false;
+					lastConversationIndexVerify = currentTime;
+					conversationIndex.rebuild(context);
+				} else if(currentTime >= lastConversationIndexVerify + conversationIndexVerifyInterval) {
+					lastConversationIndexVerify = currentTime;
+					conversationIndex.verify(context);
+				} else if(databaseChanged) {
+					conversationIndex.update(context);
+				}
+			} catch(DataAccessException exception) {
+				Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+				Sentry.captureException(exception);
+			}
+		}
+		
+		private void updateCreationTargetingIndex() {
+			//Checking if the targeting availability index needs to be updated
+			long currentTime = System.currentTimeMillis();
+			if(creationTargetingUpdateRequired || currentTime >= lastCreationTargetingAvailabilityUpdate + creationTargetingAvailabilityUpdateInterval) {
+				//Setting the last update time
+				lastCreationTargetingAvailabilityUpdate = currentTime;
+				creationTargetingUpdateRequired = false;
+				
+				//Reindexing
+				try {
+					indexTargetAvailability(connection);
+					
+					Main.getLogger().log(Level.FINEST, "Updated chat creation target index");
+				} catch(SQLException exception) {
+					Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+					Sentry.captureException(exception);
 				}
-			} finally {
-				scanFrequencyLock.unlock();
 			}
 		}
+		
+		void updateScanFrequency(long frequency) {
+			changeDetector.setDataVersionInterval(frequency);
+		}
 	}
 	
-	//The thread that handles requests from clients such as file downloads
+	//A worker thread that handles requests from clients such as file downloads
 	class RequestThread extends Thread {
 		//Creating the connection variables
 		private final Connection connection;
 		
-		//Creating the lock values
-		private BlockingQueue<DBRequest> databaseRequests = new LinkedBlockingQueue<>();
+		//Whether this worker is reserved for interactive requests
+		private final boolean interactiveOnly;
 		
-		private RequestThread(Connection connection) {
+		private RequestThread(Connection connection, boolean interactiveOnly) {
 			this.connection = connection;
+			this.interactiveOnly = interactiveOnly;
 		}
 		
 		@Override
@@ -318,45 +417,46 @@ public class DatabaseManager {
 			try {
 				//Looping while the thread is alive
 				while(!isInterrupted()) {
-					//Taking the queue item
-					Object request = databaseRequests.take();
+					//Taking the next request
+					RequestScheduler.ScheduledRequest scheduledRequest = requestScheduler.take(interactiveOnly);
+					DBRequest request = scheduledRequest.request;
 					
-					//Processing the request
-					if(request instanceof ConversationInfoRequest) fulfillConversationRequest(connection, (ConversationInfoRequest) request);
-					else if(request instanceof FileRequest) fulfillFileRequest(connection, (FileRequest) request);
-					else if(request instanceof LiteConversationRequest) fulfillLiteConversationRequest(connection, (LiteConversationRequest) request);
-					else if(request instanceof LiteThreadRequest) fulfillLiteThreadRequest(connection, (LiteThreadRequest) request);
-					else if(request instanceof CustomRetrievalRequest) fulfillCustomRetrievalRequest(connection, (CustomRetrievalRequest) request);
-					else if(request instanceof MassRetrievalRequest) fulfillMassRetrievalRequest(connection, (MassRetrievalRequest) request);
-					else if(request instanceof ReadReceiptRequest) fulfillReadReceiptRequest(connection, (ReadReceiptRequest) request);
+					try {
+						//Processing the request
+						if(request instanceof ConversationInfoRequest) fulfillConversationRequest(connection, (ConversationInfoRequest) request);
+						else if(request instanceof FileRequest) fulfillFileRequest(connection, (FileRequest) request);
+						else if(request instanceof LiteConversationRequest) fulfillLiteConversationRequest(connection, (LiteConversationRequest) request);
+						else if(request instanceof LiteThreadRequest) fulfillLiteThreadRequest(connection, (LiteThreadRequest) request);
+						else if(request instanceof CustomRetrievalRequest) fulfillCustomRetrievalRequest(connection, (CustomRetrievalRequest) request);
+						else if(request instanceof MassRetrievalRequest) fulfillMassRetrievalRequest(connection, (MassRetrievalRequest) request);
+						else if(request instanceof ReadReceiptRequest) fulfillReadReceiptRequest(connection, (ReadReceiptRequest) request);
+					} catch(RuntimeException exception) {
+						//Logging the message
+						Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+						
+						//Capturing the exception
+						Sentry.captureException(exception);
+					} finally {
+						//Releasing the client's turn and recording the timings
+						requestScheduler.complete(scheduledRequest);
+					}
 				}
-			} catch(RuntimeException exception) {
-				//Logging the message
-				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-				
-				//Capturing the exception
-				Sentry.captureException(exception);
 			} catch(InterruptedException exception) {
 				//Logging the message
 				Main.getLogger().log(Level.INFO, exception.getMessage(), exception);
-			}
-		}
-		
-		void addRequest(DBRequest request) {
-			databaseRequests.add(request);
-			/* //Adding the data struct
-			dbRequestsLock.lock();
-			try {
-				databaseRequests.add(request);
-				dbRequestsCondition.signal();
 			} finally {
-				dbRequestsLock.unlock();
-			} */
+				//Closing the connection
+				try {
+					connection.close();
+				} catch(SQLException exception) {
+					Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+				}
+			}
 		}
 	}
 	
 	public void addClientRequest(DBRequest request) {
-		requestThread.addRequest(request);
+		requestScheduler.add(request);
 	}
 	
 	private void fulfillConversationRequest(Connection connection, ConversationInfoRequest request) {
@@ -434,7 +534,7 @@ public class DatabaseManager {
 		DSLContext create = DSL.using(connection, SQLDialect.SQLITE);
 		
 		//Fetching information from the database
-		Result<org.jooq.Record1<String>> results = create.select(field("filename", String.class))
+		Result<org.jooq.Record2<String, String>> results = create.select(field("filename", String.class), field("mime_type", String.class))
 				.from(DSL.table("attachment"))
 				.where(field("guid").equal(request.fileGuid))
 				.fetch();
@@ -452,7 +552,8 @@ public class DatabaseManager {
 
 		//Getting the file
 		String filePath = results.getValue(0, field("filename", String.class));
-
+		String fileType = results.getValue(0, field("mime_type", String.class));
+		
 		//Failing the file check if the path is invalid
 		if(filePath == null) {
 			if(request.connection.isConnected()) {
@@ -478,31 +579,21 @@ public class DatabaseManager {
 		}
 
 		ConversionHelper.ConvertedFile convertedData = ConversionHelper.convert(sourceFile);
-
-		//Preparing to read the data
-		int requestIndex = 0;
-		long fileLength = convertedData.file().length();
-
-		//Streaming the file
-		try(convertedData; InputStream inputStream = new DeflaterInputStream(new BufferedInputStream(new FileInputStream(convertedData.file())))) {
-			for(LookAheadStreamIterator iterator = new LookAheadStreamIterator(request.chunkSize, inputStream); iterator.hasNext();) {
-				LookAheadStreamIterator.ForwardsStreamData data = iterator.next();
-
-				//Sending the data
-				if(request.connection.isConnected()) {
-					ConnectionManager.getCommunicationsManager().sendFileChunk(request.connection, request.requestID, requestIndex, convertedData.updatedName(), convertedData.updatedType(), fileLength, data.isLast(), data.getData(), data.getLength());
-				} else {
-					Main.getLogger().log(Level.INFO, "Ignoring file request, connection not available");
-					break;
-				}
-
-				//Adding to the request index
-				requestIndex++;
-			}
+		
+		//Handing the file off to be streamed alongside any other downloads
+		try {
+			attachmentStreamer.addStream(request, convertedData, fileType);
 		} catch(IOException exception) {
 			//Logging the error
 			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
-
+			
+			//Releasing the converted file
+			try {
+				convertedData.close();
+			} catch(IOException closeException) {
+				Main.getLogger().log(Level.WARNING, closeException.getMessage(), closeException);
+			}
+			
 			//Notifying the client
 			if(request.connection.isConnected()) {
 				ConnectionManager.getCommunicationsManager().sendMessageRequestResponse(request.connection, CommConst.nhtAttachmentReqFail, request.requestID, CommConst.nstAttachmentReqIO, null);
@@ -512,57 +603,15 @@ public class DatabaseManager {
 	
 	private void fulfillLiteConversationRequest(Connection connection, LiteConversationRequest request) {
 		//Creating the result list
-		Collection<Blocks.LiteConversationInfo> resultList = new ArrayList<>();
+		Collection<Blocks.LiteConversationInfo> resultList;
 		
 		try {
-			Collection<Field<?>> fields = new ArrayList<>(Arrays.asList(field("chat.guid", String.class), field("chat.display_name", String.class), field("chat.service_name", String.class), field("message.text", String.class), field("message.date", Long.class), field("handle.id", String.class), field("sub2.participant_list", String.class).as("participant_list"), field("GROUP_CONCAT(attachment.mime_type)", String.class).as("attachment_list")));
-			if(dbSupportsSendStyle) fields.add(field("message.expressive_send_style_id", String.class));
-			
-			//Querying the database
-			DSLContext create = DSL.using(connection, SQLDialect.SQLITE);
-			Result<Record> results = create.select(fields)
-				.from(select(field("sub1.*"), field("GROUP_CONCAT(handle.id)", String.class).as("participant_list"))
-					.from(select(field("chat.ROWID", Long.class).as("chat_id"), field("message.ROWID", Long.class).as("message_id"), field("MAX(message.date)", Long.class))
-						.from(table("chat"))
-						.leftJoin(table("chat_message_join")).on(field("chat_message_join.chat_id").eq(field("chat.ROWID")))
-						.leftJoin(table("message")).on(field("chat_message_join.message_id").eq(field("message.ROWID")))
-						.where(field("message.item_type", Integer.class).eq(0))
-						.groupBy(field("chat.ROWID"))
-						.asTable("sub1")
-					)
-					.leftJoin(table("chat_handle_join")).on(field("chat_handle_join.chat_id", Long.class).eq(field("sub1.chat_id", Long.class)))
-					.leftJoin(table("handle")).on(field("chat_handle_join.handle_id", Long.class).eq(field("handle.ROWID", Long.class)))
-					.groupBy(field("sub1.chat_id"))
-					.asTable("sub2")
-				)
-				.leftJoin(table("chat")).on(field("chat.ROWID", Long.class).eq(field("sub2.chat_id", Long.class)))
-				.leftJoin(table("message")).on(field("message.ROWID", Long.class).eq(field("sub2.message_id", Long.class)))
-				.leftJoin(table("message_attachment_join")).on(field("message_attachment_join.message_id", Long.class).eq(field("sub2.message_id", Long.class)))
-				.leftJoin(table("attachment")).on(field("message_attachment_join.attachment_id", Long.class).eq(field("attachment.ROWID", Long.class)))
-				.leftJoin(table("handle")).on(field("message.handle_id", Long.class).eq(field("handle.ROWID", Long.class)))
-				.groupBy(field("chat.ROWID", Long.class))
-				.orderBy(field("message.date", Long.class).desc())
-				.fetch();
-			
-			for(Record result : results) {
-				String guid = result.get("chat.guid", String.class);
-				String service = result.get("chat.service_name", String.class);
-				String name = result.get("chat.display_name", String.class);
-				String membersRaw = result.get("participant_list", String.class);
-				String[] members = membersRaw == null ? new String[0] : membersRaw.split(",");
-				Long date = result.get("message.date", Long.class);
-				String text = result.get("message.text", String.class);
-				if(text != null) {
-					text = text.replace(Character.toString('\uFFFC'), "");
-					text = text.replace(Character.toString('\uFFFD'), "");
-					if(text.isEmpty()) text = null;
-				}
-				String sendStyle = dbSupportsSendStyle ? result.get("message.expressive_send_style_id", String.class) : null;
-				String sender = result.get("handle.id", String.class);
-				String attachmentListRaw = result.get("attachment_list", String.class);
-				String[] attachmentList = attachmentListRaw == null ? null : attachmentListRaw.split(",");
-				
-				resultList.add(new Blocks.LiteConversationInfo(guid, service, name, members, date != null ? Main.getTimeHelper().toUnixTime(date) : -1, sender, text, sendStyle, attachmentList));
+			if(conversationIndex.isBuilt()) {
+				//Reading the conversations from memory
+				resultList = conversationIndex.getConversations();
+			} else {
+				//Querying the database, if the index isn't ready yet
+				resultList = ConversationIndex.sortConversations(conversationIndex.queryConversations(DSL.using(connection, SQLDialect.SQLITE), null).values());
 			}
 			
 			//Checking if the connection is registered and is still open
@@ -614,73 +663,44 @@ public class DatabaseManager {
 		long lTimeSinceMessages = Main.getTimeHelper().toDatabaseTime(request.timeSinceMessages);
 		long lTimeSinceAttachments = Main.getTimeHelper().toDatabaseTime(request.timeSinceAttachments);
 		
-		try {
-			//Creating the DSL context
-			DSLContext create = DSL.using(connection, SQLDialect.SQLITE);
-			
-			//Fetching the conversation information
-			List<Blocks.ConversationInfo> conversationInfoList = new ArrayList<>();
-			
-			//Fetching the chat info
-			Result<org.jooq.Record3<String, String, String>> conversationResults;
-			if(request.restrictMessages) {
-				conversationResults = create.select(field("chat.guid", String.class), field("chat.display_name", String.class), field("chat.service_name", String.class))
-											.from(DSL.table("chat"))
-											.join(DSL.table("chat_message_join")).on(field("chat.ROWID").eq(field("chat_message_join.chat_id")))
-											.join(DSL.table("message")).on(field("chat_message_join.message_id").eq(field("message.ROWID")))
-											.where(field("message.date").greaterOrEqual(lTimeSinceMessages))
-											.groupBy(field("chat.ROWID"))
-											.fetch();
-			} else {
-				conversationResults = create.select(field("chat.guid", String.class), field("chat.display_name", String.class), field("chat.service_name", String.class))
-											.from(DSL.table("chat"))
-											.fetch();
-			}
+		//Finding the position to resume from
+		String installationID = request.connection.getInstallationID();
+		String filterKey = MassRetrievalCursor.getFilterKey(request);
+		massRetrievalCursors.values().removeIf(MassRetrievalCursor::isExpired);
+		
+		MassRetrievalCursor.Checkpoint startCheckpoint = null;
+		if(request.resumePacketIndex != -1) {
+			MassRetrievalCursor previousCursor = installationID == null ? null : massRetrievalCursors.get(installationID);
+			if(previousCursor != null && previousCursor.filterKey.equals(filterKey)) startCheckpoint = previousCursor.getCheckpoint(request.resumePacketIndex);
 			
-			//Iterating over the results
-			for(int i = 0; i < conversationResults.size(); i++) {
-				//Setting the conversation information
-				String conversationGUID = conversationResults.getValue(i, field("chat.guid", String.class));
-				String conversationTitle = conversationResults.getValue(i, field("chat.display_name", String.class));
-				String conversationService = conversationResults.getValue(i, field("chat.service_name", String.class));
-				
-				//Fetching the conversation members
-				ArrayList<String> conversationMembers = new ArrayList<>();
-				{
-					//Running the SQL
-					Result<org.jooq.Record1<String>> results = create.select(field("handle.id", String.class))
-							.from(DSL.table("handle"))
-							.innerJoin(DSL.table("chat_handle_join")).on(field("handle.ROWID").equal(field("chat_handle_join.handle_id")))
-							.innerJoin(DSL.table("chat")).on(field("chat_handle_join.chat_id").equal(field("chat.ROWID")))
-							.where(field("chat.guid").equal(conversationGUID))
-							.fetch();
-					
-					//Adding the members
-					for(Record1<String> result : results) conversationMembers.add(result.getValue(field("handle.id", String.class)));
-				}
-				
-				//Adding the conversation info
-				conversationInfoList.add(new Blocks.ConversationInfo(conversationGUID, conversationService, conversationTitle, conversationMembers.toArray(new String[0])));
+			if(startCheckpoint != null) Main.getLogger().log(Level.INFO, "Resuming mass retrieval after packet " + request.resumePacketIndex);
+			else Main.getLogger().log(Level.INFO, "Couldn't resume mass retrieval after packet " + request.resumePacketIndex + ", starting over");
+		}
+		int startPacketIndex = startCheckpoint != null ? request.resumePacketIndex + 1 : 1;
+		
+		try {
+			//Sending the conversations (unless the client already has them)
+			if(startCheckpoint == null) {
+				if(!sendMassRetrievalInitial(DSL.using(connection, SQLDialect.SQLITE), request, lTimeSinceMessages)) return;
+				startCheckpoint = MassRetrievalCursor.Checkpoint.start;
 			}
 			
-			//Finding the amount of message entries in the database (roughly, because not all entries are messages)
-			int messagesCount;
-			if(request.restrictMessages) messagesCount = create.selectCount().from(DSL.table("message")).where(field("date").greaterOrEqual(lTimeSinceMessages)).fetchOne(0, int.class);
-			else messagesCount = create.selectCount().from(DSL.table("message")).fetchOne(0, int.class);
-			
-			//Returning if the connection is no longer open
-			if(!request.connection.isConnected()) return;
-			
-			//Sending the conversations and message count
-			ConnectionManager.getCommunicationsManager().sendMassRetrievalInitial(request.connection, request.requestID, conversationInfoList, messagesCount);
+			//Recording the progress of this retrieval
+			MassRetrievalCursor cursor = new MassRetrievalCursor(filterKey);
+			cursor.addCheckpoint(startPacketIndex - 1, startCheckpoint);
+			if(installationID != null) massRetrievalCursors.put(installationID, cursor);
 			
 			//Reading the message data
-			fetchData(connection, request.restrictMessages ? new RetrievalFilter(field("message.date").greaterOrEqual(lTimeSinceMessages), -1, null) : null, new DataFetchListener(request.downloadAttachments) {
+			SendWindow sendWindow = request.connection.getSendWindow();
+			DataFetchListener listener = new DataFetchListener(request.downloadAttachments, startCheckpoint.position) {
 				//Creating the packet index value
-				int packetIndex = 1;
+				int packetIndex = startPacketIndex;
+				
+				//The amount of bytes that had been sent to the client before the current page
+				long lastAcquiredBytes = sendWindow.getAcquiredBytes();
 				
 				@Override
-				void onChunkLoaded(List<Blocks.ConversationItem> conversationItems, List<Blocks.ModifierInfo> isolatedModifiers) {
+				void onChunkLoaded(List<Blocks.ConversationItem> conversationItems, List<Blocks.ModifierInfo> earlierModifiers) {
 					//Checking if the connection is no longer open
 					if(!request.connection.isConnected()) {
 						//Cancelling the fetch and returning
@@ -688,9 +708,16 @@ public class DatabaseManager {
 						return;
 					}
 					
-					//Sending the message group
-					boolean result = ConnectionManager.getCommunicationsManager().sendMassRetrievalMessages(request.connection, request.requestID, packetIndex++, conversationItems);
-					if(!result) cancel(); //Cancelling the fetch if the message couldn't be sent
+					//Sending the message group (waiting if too much data is still queued for the client)
+					boolean result = ConnectionManager.getCommunicationsManager().sendMassRetrievalMessages(request.connection, request.requestID, packetIndex, conversationItems);
+					if(!result) {
+						//Cancelling the fetch if the message couldn't be sent
+						cancel();
+						return;
+					}
+					
+					//Sending the modifiers for messages that were sent in earlier packets
+					if(!earlierModifiers.isEmpty()) ConnectionManager.getCommunicationsManager().sendModifierUpdate(request.connection, earlierModifiers);
 				}
 				
 				@Override
@@ -706,15 +733,17 @@ public class DatabaseManager {
 						ConversionHelper.ConvertedFile convertedData = ConversionHelper.convert(attachment.file);
 
 						//Streaming the file
-						try(convertedData; InputStream inputStream = new DeflaterInputStream(new BufferedInputStream(new FileInputStream(convertedData.file())))) {
+						CompressionPolicy.Method compression = CompressionPolicy.choose(convertedData.converted() ? convertedData.updatedType() : attachment.fileType, convertedData.file(), false);
+						try(convertedData; FileChunkReader reader = new FileChunkReader(convertedData.file(), 0, Long.MAX_VALUE, compression)) {
 							int requestIndex = 0;
-							for(LookAheadStreamIterator iterator = new LookAheadStreamIterator(1024 * 1024, inputStream); iterator.hasNext();) {
-								LookAheadStreamIterator.ForwardsStreamData data = iterator.next();
-								
+							while(reader.hasNext()) {
 								//Checking if the connection is ready
 								if(request.connection.isConnected()) {
-									//Sending the data
-									ConnectionManager.getCommunicationsManager().sendMassRetrievalFileChunk(request.connection, request.requestID, requestIndex, attachment.fileName, convertedData.updatedName(), convertedData.updatedType(), data.isLast(), attachment.guid, data.getData(), data.getLength());
+									//Sending the data (waiting if too much data is still queued for the client)
+									if(!ConnectionManager.getCommunicationsManager().sendMassRetrievalFileChunk(request.connection, request.requestID, requestIndex, attachment.fileName, convertedData.updatedName(), convertedData.updatedType(), attachment.guid, reader, massRetrievalChunkSize)) {
+										cancel();
+										return;
+									}
 								} else {
 									Main.getLogger().log(Level.INFO, "Ignoring file request, connection not available");
 									break;
@@ -735,21 +764,117 @@ public class DatabaseManager {
 					return false;
 				}
 				
+				@Override
+				void onPageSent(MassRetrievalCursor.Position position, List<TransientAttachmentInfo> attachmentList) {
+					//Recording the checkpoint after this packet before its attachments are streamed, so that they are sent again if the client disconnects partway through them
+					cursor.addCheckpoint(packetIndex++, new MassRetrievalCursor.Checkpoint(position, attachmentList != null ? attachmentList : Collections.emptyList()));
+				}
+				
+				@Override
+				int onPageFinished(MassRetrievalCursor.Position position, int rowCount, int pageSize) {
+					//Measuring the amount of data this page sent
+					long acquiredBytes = sendWindow.getAcquiredBytes();
+					long pageBytes = acquiredBytes - lastAcquiredBytes;
+					lastAcquiredBytes = acquiredBytes;
+					
+					//Sizing the next page so that it takes about as long as the target time to drain to the client
+					double drainRate = sendWindow.getDrainRate();
+					if(drainRate <= 0 || pageBytes <= 0 || rowCount == 0) return pageSize;
+					double rowBytes = (double) pageBytes / rowCount;
+					int targetPageSize = (int) (drainRate * massRetrievalPageTime / 1000 / rowBytes);
+					return Math.max(massRetrievalPageSizeMin, Math.min(targetPageSize, massRetrievalPageSizeMax));
+				}
+				
 				@Override
 				void onFinished() {
+					//Forgetting the progress, as there is nothing left to resume
+					if(installationID != null) massRetrievalCursors.remove(installationID, cursor);
+					
 					//Returning if the connection is no longer open
 					if(!request.connection.isConnected()) return;
 					
 					//Sending the finish message
 					ConnectionManager.getCommunicationsManager().sendMessageHeaderOnly(request.connection, CommConst.nhtMassRetrievalFinish, true);
 				}
-			});
+			};
+			
+			//Sending the attachments of the packet being resumed after again, as the client may not have received all of them
+			if(request.downloadAttachments && !startCheckpoint.attachments.isEmpty()) {
+				listener.onAttachmentChunkLoaded(startCheckpoint.attachments);
+				if(listener.cancelRequested) return;
+			}
+			
+			fetchData(connection, request.restrictMessages ? new RetrievalFilter(field("message.date").greaterOrEqual(lTimeSinceMessages), -1, null) : null, listener);
 		} catch(IOException | OutOfMemoryError | RuntimeException | SQLException | GeneralSecurityException exception) {
 			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
 			Sentry.captureException(exception);
 		}
 	}
 	
+	/**
+	 * Sends the conversations and the approximate message count of a mass retrieval
+	 * @return TRUE if the data was sent, or FALSE if the client is no longer connected
+	 */
+	private boolean sendMassRetrievalInitial(DSLContext create, MassRetrievalRequest request, long lTimeSinceMessages) {
+		//Fetching the conversation information
+		List<Blocks.ConversationInfo> conversationInfoList = new ArrayList<>();
+		
+		//Fetching the chat info
+		Result<org.jooq.Record3<String, String, String>> conversationResults;
+		if(request.restrictMessages) {
+			conversationResults = create.select(field("chat.guid", String.class), field("chat.display_name", String.class), field("chat.service_name", String.class))
+										.from(DSL.table("chat"))
+										.join(DSL.table("chat_message_join")).on(field("chat.ROWID").eq(field("chat_message_join.chat_id")))
+										.join(DSL.table("message")).on(field("chat_message_join.message_id").eq(field("message.ROWID")))
+										.where(field("message.date").greaterOrEqual(lTimeSinceMessages))
+										.groupBy(field("chat.ROWID"))
+										.fetch();
+		} else {
+			conversationResults = create.select(field("chat.guid", String.class), field("chat.display_name", String.class), field("chat.service_name", String.class))
+										.from(DSL.table("chat"))
+										.fetch();
+		}
+		
+		//Iterating over the results
+		for(int i = 0; i < conversationResults.size(); i++) {
+			//Setting the conversation information
+			String conversationGUID = conversationResults.getValue(i, field("chat.guid", String.class));
+			String conversationTitle = conversationResults.getValue(i, field("chat.display_name", String.class));
+			String conversationService = conversationResults.getValue(i, field("chat.service_name", String.class));
+			
+			//Fetching the conversation members
+			ArrayList<String> conversationMembers = new ArrayList<>();
+			{
+				//Running the SQL
+				Result<org.jooq.Record1<String>> results = create.select(field("handle.id", String.class))
+						.from(DSL.table("handle"))
+						.innerJoin(DSL.table("chat_handle_join")).on(field("handle.ROWID").equal(field("chat_handle_join.handle_id")))
+						.innerJoin(DSL.table("chat")).on(field("chat_handle_join.chat_id").equal(field("chat.ROWID")))
+						.where(field("chat.guid").equal(conversationGUID))
+						.fetch();
+				
+				//Adding the members
+				for(Record1<String> result : results) conversationMembers.add(result.getValue(field("handle.id", String.class)));
+			}
+			
+			//Adding the conversation info
+			conversationInfoList.add(new Blocks.ConversationInfo(conversationGUID, conversationService, conversationTitle, conversationMembers.toArray(new String[0])));
+		}
+		
+		//Finding the amount of message entries in the database (roughly, because not all entries are messages)
+		int messagesCount;
+		if(request.restrictMessages) messagesCount = create.selectCount().from(DSL.table("message")).where(field("date").greaterOrEqual(lTimeSinceMessages)).fetchOne(0, int.class);
+		else messagesCount = create.selectCount().from(DSL.table("message")).fetchOne(0, int.class);
+		
+		//Returning if the connection is no longer open
+		if(!request.connection.isConnected()) return false;
+		
+		//Sending the conversations and message count
+		ConnectionManager.getCommunicationsManager().sendMassRetrievalInitial(request.connection, request.requestID, conversationInfoList, messagesCount);
+		
+		return true;
+	}
+	
 	private void fulfillReadReceiptRequest(Connection connection, ReadReceiptRequest request) {
 		//Converting the request time
 		long timeSince = Main.getTimeHelper().toDatabaseTime(request.timeSince);
@@ -789,14 +914,37 @@ public class DatabaseManager {
 	
 	private abstract class DataFetchListener {
 		final boolean acceptFileData;
+		final MassRetrievalCursor.Position startPosition;
 		private boolean cancelRequested = false;
-
-		DataFetchListener(boolean acceptFileData) {
+		
+		DataFetchListener(boolean acceptFileData, MassRetrievalCursor.Position startPosition) {
 			this.acceptFileData = acceptFileData;
+			this.startPosition = startPosition;
 		}
 
-		abstract void onChunkLoaded(List<Blocks.ConversationItem> conversationItems, List<Blocks.ModifierInfo> isolatedModifiers);
+		/**
+		 * Called when a page of messages has been loaded
+		 * @param conversationItems the page's conversation items, with the tapbacks and stickers found in the same page attached
+		 * @param earlierModifiers the page's tapbacks and stickers that belong to messages passed to this listener in an earlier page
+		 */
+		abstract void onChunkLoaded(List<Blocks.ConversationItem> conversationItems, List<Blocks.ModifierInfo> earlierModifiers);
 		void onAttachmentChunkLoaded(List<TransientAttachmentInfo> attachmentList) {}
+		/**
+		 * Called once a page's messages have been passed to this listener, before its attachments
+		 * @param position the position after the page's last row
+		 * @param attachmentList the page's attachments, or NULL if this listener doesn't accept file data
+		 */
+		void onPageSent(MassRetrievalCursor.Position position, List<TransientAttachmentInfo> attachmentList) {}
+		/**
+		 * Called once all of a page's data has been passed to this listener
+		 * @param position the position after the page's last row
+		 * @param rowCount the amount of rows in the page
+		 * @param pageSize the maximum amount of rows the page could have had
+		 * @return the maximum amount of rows to fetch for the next page
+		 */
+		int onPageFinished(MassRetrievalCursor.Position position, int rowCount, int pageSize) {
+			return pageSize;
+		}
 		abstract void onFinished();
 		
 		void cancel() {
@@ -809,6 +957,15 @@ public class DatabaseManager {
 	}
 	
 	private DataFetchResult fetchData(Connection connection, RetrievalFilter filter, DataFetchListener streamingListener, boolean reverseProcess) throws IOException, NoSuchAlgorithmException, SQLException {
+		return fetchData(connection, filter, streamingListener, reverseProcess, false);
+	}
+	
+	/**
+	 * Fetches messages from the database
+	 * @param prepareAttachments whether to hand attachments to the attachment preparer instead of calculating their checksums inline,
+	 *                           so that the result is returned sooner (checksums that haven't been calculated yet are left out)
+	 */
+	private DataFetchResult fetchData(Connection connection, RetrievalFilter filter, DataFetchListener streamingListener, boolean reverseProcess, boolean prepareAttachments) throws IOException, NoSuchAlgorithmException, SQLException {
 		//Creating the DSL context
 		DSLContext context = DSL.using(connection, SQLDialect.SQLITE);
 		
@@ -819,6 +976,7 @@ public class DatabaseManager {
 				field("chat.guid", String.class)));
 		
 		//Adding the extras (if applicable)
+		if(streamingListener != null) fields.add(field("chat_message_join.chat_id", Long.class));
 		if(dbSupportsSendStyle) fields.add(field("message.expressive_send_style_id", String.class));
 		if(dbSupportsAssociation) {
 			fields.add(field("message.associated_message_guid", String.class));
@@ -851,43 +1009,55 @@ public class DatabaseManager {
 		//Creating the result list
 		ArrayList<Blocks.ConversationItem> conversationItems = new ArrayList<>();
 		ArrayList<Blocks.ModifierInfo> isolatedModifiers = new ArrayList<>();
-		
-		//Completing the query
-		ResultQuery<?> resultQuery;
-		if(filter != null) {
-			//Applying the condition (must be given)
-			SelectConditionStep<?> selectConditionStep = buildStep.where(filter.condition);
-			
-			if(filter.limit != -1 && filter.orderField != null) resultQuery = selectConditionStep.orderBy(filter.orderField).limit(filter.limit);
-			else if(filter.limit != -1) resultQuery = buildStep.limit(filter.limit);
-			else if(filter.orderField != null) resultQuery = buildStep.orderBy(filter.orderField);
-			else resultQuery = buildStep;
-		} else {
-			resultQuery = buildStep;
-		}
+		MessageIndex messageIndex = new MessageIndex();
 		
 		//Checking if the data should be streamed
 		if(streamingListener != null) {
-			Cursor<?> cursor = resultQuery.fetchLazy();
-			Result<?> records;
+			//Paging through the rows in order, so that each page is a fresh query that picks up after the last one
+			Field<Long> rowIDField = field("message.ROWID", Long.class);
+			Field<Long> chatRowIDField = field("chat_message_join.chat_id", Long.class);
+			MassRetrievalCursor.Position position = streamingListener.startPosition;
+			int pageSize = massRetrievalPageSizeMin;
 			
-			while(cursor.hasNext()) {
+			while(true) {
+				//Fetching the next page
+				Condition pageCondition = rowIDField.greaterOrEqual(position.rowID).and(rowIDField.greaterThan(position.rowID).or(chatRowIDField.greaterThan(position.chatRowID)));
+				if(filter != null) pageCondition = filter.condition.and(pageCondition);
+				Result<?> records = buildStep.where(pageCondition).orderBy(rowIDField, chatRowIDField).limit(pageSize).fetch();
+				if(records.isEmpty()) break;
+				
 				//Clearing the lists
 				conversationItems.clear();
 				isolatedModifiers.clear();
 				
-				//Fetching the next records
-				records = cursor.fetchNext(20);
-				
 				//Processing the data
 				List<TransientAttachmentInfo> attachmentFiles = streamingListener.acceptFileData ? new ArrayList<>() : null;
-				processFetchDataResult(context, records, conversationItems, isolatedModifiers, attachmentFiles, reverseProcess);
+				processFetchDataResult(context, records, conversationItems, isolatedModifiers, attachmentFiles, messageIndex, reverseProcess, prepareAttachments);
+				
+				//Moving past the page
+				Record lastRecord = records.get(records.size() - 1);
+				position = new MassRetrievalCursor.Position(lastRecord.get(rowIDField), lastRecord.get(chatRowIDField));
+				
+				//Picking out the modifiers for messages in earlier pages, as they can't be attached to messages that have already been sent
+				List<Blocks.ModifierInfo> earlierModifiers = new ArrayList<>();
+				for(Blocks.ModifierInfo modifier : isolatedModifiers) {
+					if(messageIndex.get(modifier.message) == null && messageIndex.isRetired(modifier.message)) earlierModifiers.add(modifier);
+				}
 				
 				//Sending the data
-				streamingListener.onChunkLoaded(conversationItems, isolatedModifiers);
-				if(streamingListener.acceptFileData) streamingListener.onAttachmentChunkLoaded(attachmentFiles);
+				streamingListener.onChunkLoaded(conversationItems, earlierModifiers);
+				if(!streamingListener.cancelRequested) streamingListener.onPageSent(position, attachmentFiles);
+				if(streamingListener.acceptFileData && !streamingListener.cancelRequested) streamingListener.onAttachmentChunkLoaded(attachmentFiles);
+				//Releasing the messages that have been sent
+				messageIndex.retire();
 				//Breaking from the loop if a cancel has been requested
 				if(streamingListener.cancelRequested) break;
+				
+				int nextPageSize = streamingListener.onPageFinished(position, records.size(), pageSize);
+				
+				//Finishing if this was the last page
+				if(records.size() < pageSize) break;
+				pageSize = nextPageSize;
 			}
 			
 			//Logging a message
@@ -900,11 +1070,25 @@ public class DatabaseManager {
 			return null;
 		}
 		
+		//Completing the query
+		ResultQuery<?> resultQuery;
+		if(filter != null) {
+			//Applying the condition (must be given)
+			SelectConditionStep<?> selectConditionStep = buildStep.where(filter.condition);
+			
+			if(filter.limit != -1 && filter.orderField != null) resultQuery = selectConditionStep.orderBy(filter.orderField).limit(filter.limit);
+			else if(filter.limit != -1) resultQuery = buildStep.limit(filter.limit);
+			else if(filter.orderField != null) resultQuery = buildStep.orderBy(filter.orderField);
+			else resultQuery = buildStep;
+		} else {
+			resultQuery = buildStep;
+		}
+		
 		//Completing the query
 		Result<?> records = resultQuery.fetch();
 		
 		//Processing the data
-		long latestMessageID = processFetchDataResult(context, records, conversationItems, isolatedModifiers, null, reverseProcess);
+		long latestMessageID = processFetchDataResult(context, records, conversationItems, isolatedModifiers, null, messageIndex, reverseProcess, prepareAttachments);
 		
 		//Returning null if the item list is empty
 		//if(conversationItems.isEmpty()) return null;
@@ -951,13 +1135,24 @@ public class DatabaseManager {
 	 * @param conversationItems the list to add new conversation items to
 	 * @param isolatedModifiers the list to add new loose modifiers to
 	 * @param attachmentFiles the list to add found attachment files to (null if no attachment files wanted)
+	 * @param messageIndex the index of messages found so far in this fetch, used to associate modifiers with their messages
+	 * @param prepareAttachments whether to queue attachments to be prepared in the background, rather than calculating their checksums now
 	 * @return the latest found message ID
 	 */
-	private long processFetchDataResult(DSLContext context, Result<?> generalMessageRecords, List<Blocks.ConversationItem> conversationItems, List<Blocks.ModifierInfo> isolatedModifiers, List<TransientAttachmentInfo> attachmentFiles, boolean reverseProcess) throws IOException, NoSuchAlgorithmException {
+	private long processFetchDataResult(DSLContext context, Result<?> generalMessageRecords, List<Blocks.ConversationItem> conversationItems, List<Blocks.ModifierInfo> isolatedModifiers, List<TransientAttachmentInfo> attachmentFiles, MessageIndex messageIndex, boolean reverseProcess, boolean prepareAttachments) throws IOException, NoSuchAlgorithmException {
 		long latestMessageID = -1;
 		
-		//Iterating over the results
+		//Fetching the attachments of all messages in this set at once
 		int recordCount = generalMessageRecords.size();
+		List<Long> messageRowIDs = new ArrayList<>(recordCount);
+		for(int i = 0; i < recordCount; i++) {
+			if(generalMessageRecords.getValue(i, field("message.item_type", Integer.class)) == 0) {
+				messageRowIDs.add(generalMessageRecords.getValue(i, field("message.ROWID", Long.class)));
+			}
+		}
+		Map<Long, List<AttachmentRecord>> attachmentRecords = fetchAttachmentRecords(context, messageRowIDs, dbSupportsHiddenAttachments);
+		
+		//Iterating over the results
 		for(int i2 = 0; i2 < recordCount; i2++) {
 			int i = reverseProcess ? (recordCount - 1) - i2 : i2;
 			
@@ -1001,39 +1196,31 @@ public class DatabaseManager {
 						//Checking if the association is a sticker
 						if(associationType >= 1000 && associationType < 2000) {
 							//Retrieving the sticker attachment
-							Result<Record3<String, String, String>> fileRecord = context.select(field("attachment.guid", String.class), field("attachment.filename", String.class), field("attachment.mime_type", String.class))
-									.from(DSL.table("message_attachment_join"))
-									.join(DSL.table("attachment")).on(field("message_attachment_join.attachment_id").eq(field("attachment.ROWID")))
-									.where(field("message_attachment_join.message_id").eq(rowID))
-									.fetch();
+							List<AttachmentRecord> fileRecords = attachmentRecords.get(rowID);
 							
 							//Skipping the remainder of the iteration if there are no records
-							if(fileRecord.isEmpty()) continue;
+							if(fileRecords == null) continue;
+							AttachmentRecord fileRecord = fileRecords.get(0);
 							
 							//Getting the file (and skipping the remainder of the iteration if the file is invalid)
-							String fileName = fileRecord.getValue(0, field("attachment.filename", String.class));
+							String fileName = fileRecord.filePath;
 							if(fileName == null) continue;
 							File file = new File(fileName.replaceFirst("~", System.getProperty("user.home")));
 							if(!file.exists()) continue;
-							String fileType = fileRecord.getValue(0, field("attachment.mime_type", String.class));
+							String fileType = fileRecord.mimeType;
 							
 							//Reading and compressing the file
 							byte[] fileBytes = Files.readAllBytes(file.toPath());
-							fileBytes = CompressionHelper.compressDeflate(fileBytes, fileBytes.length);
+							fileBytes = CompressionHelper.compressDeflate(fileBytes, fileBytes.length, CompressionPolicy.choose(fileRecord.mimeType, fileBytes));
 							
 							//Getting the file guid
-							String fileGuid = fileRecord.getValue(0, field("attachment.guid", String.class));
+							String fileGuid = fileRecord.guid;
 							
 							//Creating the modifier
 							Blocks.StickerModifierInfo modifier = new Blocks.StickerModifierInfo(associatedMessageGUID, associationIndex, fileGuid, sender, date, fileBytes, fileType);
 							
 							//Finding the associated message in memory
-							Blocks.MessageInfo matchingItem = null;
-							for(Blocks.ConversationItem allItems : conversationItems) {
-								if(!associatedMessageGUID.equals(allItems.guid) || !(allItems instanceof Blocks.MessageInfo)) continue;
-								matchingItem = (Blocks.MessageInfo) allItems;
-								break;
-							}
+							Blocks.MessageInfo matchingItem = messageIndex.get(associatedMessageGUID);
 							//Adding the sticker to the message if it was found
 							if(matchingItem != null) matchingItem.stickers.add(modifier);
 							//Otherwise adding the modifier to the isolated list
@@ -1053,13 +1240,7 @@ public class DatabaseManager {
 							
 							//Finding the associated message in memory
 							Blocks.MessageInfo matchingItem = null;
-							if(associationType < 3000) { //If the message is an added tapback
-								for(Blocks.ConversationItem allItems : conversationItems) {
-									if(!associatedMessageGUID.equals(allItems.guid) || !(allItems instanceof Blocks.MessageInfo)) continue;
-									matchingItem = (Blocks.MessageInfo) allItems;
-									break;
-								}
-							}
+							if(associationType < 3000) matchingItem = messageIndex.get(associatedMessageGUID); //If the message is an added tapback
 							
 							//Adding the tapback to the message if it was found
 							if(matchingItem != null) matchingItem.tapbacks.add(modifier);
@@ -1088,32 +1269,23 @@ public class DatabaseManager {
 				int errorCode = convertDBErrorCode(generalMessageRecords.getValue(i, field("message.error", Integer.class)));
 				long dateRead = generalMessageRecords.getValue(i, field("message.date_read", Long.class));
 				
-				//Fetching the attachments
-				List<SelectField<?>> attachmentFields = new ArrayList<>(Arrays.asList(field("attachment.ROWID", Long.class), field("attachment.guid", String.class), field("attachment.filename", String.class), field("attachment.transfer_name", String.class), field("attachment.mime_type", String.class), field("attachment.total_bytes", Long.class)));
-				//if(dbSupportsAssociation) attachmentFields.add(DSL.field("attachment.is_sticker", Boolean.class));
-				
-				Condition filter = field("message_attachment_join.message_id").eq(rowID);
-				if(dbSupportsHiddenAttachments) filter = filter.and(field("attachment.hide_attachment").isFalse());
-				Result<?> fileRecords = context.select(attachmentFields)
-						.from(DSL.table("message_attachment_join"))
-						.join(DSL.table("attachment")).on(field("message_attachment_join.attachment_id").eq(field("attachment.ROWID")))
-						.where(filter)
-						.fetch();
+				//Getting the attachments
+				List<AttachmentRecord> fileRecords = attachmentRecords.getOrDefault(rowID, Collections.emptyList());
 				
 				//Processing the attachments
 				ArrayList<Blocks.AttachmentInfo> files = new ArrayList<>();
-				for(int f = 0; f < fileRecords.size(); f++) {
-					//Skipping the remainder of the iteration if the attachment is a sticker
-					//if(dbSupportsAssociation && fileRecords.getValue(f, DSL.field("attachment.is_sticker", Boolean.class))) continue;
+				for(AttachmentRecord fileRecord : fileRecords) {
+					//Skipping the remainder of the iteration if the attachment is hidden
+					if(fileRecord.hidden) continue;
 					
 					//Adding the file
-					String fileGUID = fileRecords.getValue(f, field("attachment.guid", String.class));
-					String fileType = fileRecords.getValue(f, field("attachment.mime_type", String.class));
-					String fileName = fileRecords.getValue(f, field("attachment.transfer_name", String.class));
-					String filePath = fileRecords.getValue(f, field("attachment.filename", String.class));
+					String fileGUID = fileRecord.guid;
+					String fileType = fileRecord.mimeType;
+					String fileName = fileRecord.transferName;
+					String filePath = fileRecord.filePath;
 					File file = filePath == null ? null : new File(filePath.replaceFirst("~", System.getProperty("user.home")));
-					long fileSize = fileRecords.getValue(f, field("attachment.total_bytes", Long.class));
-					long fileRow = fileRecords.getValue(f, field("attachment.ROWID", Long.class));
+					long fileSize = fileRecord.totalBytes;
+					long fileRow = fileRecord.rowID;
 					
 					//Updating the file name
 					if(fileName == null) {
@@ -1129,20 +1301,33 @@ public class DatabaseManager {
 						}
 					}
 					
+					//Getting the checksum if the message is outgoing
+					byte[] checksum = null;
+					if(file != null) {
+						if(prepareAttachments) {
+							//Using the checksum if it's already known, and otherwise preparing the file in the background
+							if(sender == null) checksum = checksumCache.getCached(file);
+							if(checksum == null) attachmentPreparer.prepare(file, sender == null);
+						} else if(sender == null) {
+							checksum = checksumCache.get(file);
+						}
+					}
+					
 					//Adding the file
 					files.add(new Blocks.AttachmentInfo(fileGUID,
 						fileName,
 						fileType,
 						fileSize,
-						//The checksum will be calculated if the message is outgoing
-						sender == null && file != null ? calculateChecksum(file) : null,
+						checksum,
 						fileRow));
 					
 					if(attachmentFiles != null && file != null) attachmentFiles.add(new TransientAttachmentInfo(fileGUID, date, file, fileName, fileType, fileSize));
 				}
 				
 				//Adding the conversation item
-				conversationItems.add(new Blocks.MessageInfo(rowID, guid, chatGUID, Main.getTimeHelper().toUnixTime(date), text, subject, sender, files, new ArrayList<>(), new ArrayList<>(), sendStyle, stateCode, errorCode, Main.getTimeHelper().toUnixTime(dateRead)));
+				Blocks.MessageInfo messageInfo = new Blocks.MessageInfo(rowID, guid, chatGUID, Main.getTimeHelper().toUnixTime(date), text, subject, sender, files, new ArrayList<>(), new ArrayList<>(), sendStyle, stateCode, errorCode, Main.getTimeHelper().toUnixTime(dateRead));
+				conversationItems.add(messageInfo);
+				messageIndex.add(messageInfo);
 			}
 			//Otherwise checking if the item is a group action
 			else if(itemType == 1) {
@@ -1179,59 +1364,55 @@ public class DatabaseManager {
 		return latestMessageID;
 	}
 	
-	private List<Blocks.ModifierInfo> getUnreadUpdates(Connection connection) {
-		//Creating the DSL context
-		DSLContext context = DSL.using(connection, SQLDialect.SQLITE);
+	/**
+	 * Fetches the attachments of a set of messages
+	 * @param context the DSL context to access the database with
+	 * @param messageRowIDs the row IDs of the messages to fetch attachments for
+	 * @param supportsHiddenAttachments whether the database marks hidden attachments
+	 * @return a map of message row IDs to their attachments, in the order they were added to the message
+	 */
+	static Map<Long, List<AttachmentRecord>> fetchAttachmentRecords(DSLContext context, List<Long> messageRowIDs, boolean supportsHiddenAttachments) {
+		Map<Long, List<AttachmentRecord>> attachmentRecords = new HashMap<>();
 		
-		//Fetching the data
-		Result<Record6<Long, String, Boolean, Boolean, Boolean, Long>> results = context.select(DSL.max(field("message.ROWID", Long.class)), field("message.guid", String.class), field("message.is_sent", Boolean.class), field("message.is_delivered", Boolean.class), field("message.is_read", Boolean.class), field("message.date_read", Long.class))
-			.from(DSL.table("message"))
-			.join(DSL.table("chat_message_join")).on(field("message.ROWID").eq(field("chat_message_join.message_id")))
-			.join(DSL.table("chat")).on(field("chat_message_join.chat_id").eq(field("chat.ROWID")))
-			.where(field("message.is_from_me").isTrue())
-			.groupBy(field("chat.ROWID")).fetch();
+		List<SelectField<?>> attachmentFields = new ArrayList<>(Arrays.asList(field("message_attachment_join.message_id", Long.class), field("attachment.ROWID", Long.class), field("attachment.guid", String.class), field("attachment.filename", String.class), field("attachment.transfer_name", String.class), field("attachment.mime_type", String.class), field("attachment.total_bytes", Long.class)));
+		if(supportsHiddenAttachments) attachmentFields.add(field("attachment.hide_attachment", Boolean.class));
 		
-		//Iterating over the results
-		List<Blocks.ModifierInfo> list = new ArrayList<>();
-		for(int i = 0; i < results.size(); i++) {
-			//Getting the result information
-			String resultGuid = results.getValue(i, field("message.guid", String.class));
-			int resultState = determineMessageState(results.getValue(i, field("message.is_sent", Boolean.class)),
-				results.getValue(i, field("message.is_delivered", Boolean.class)),
-				results.getValue(i, field("message.is_read", Boolean.class)));
-			
-			//Getting the item
-			MessageState messageState;
-			if(messageStates.containsKey(resultGuid)) messageState = messageStates.get(resultGuid);
-			else {
-				messageStates.put(resultGuid, new MessageState(resultState));
-				continue;
-			}
+		//Querying in batches to stay below SQLite's host parameter limit
+		for(int batchStart = 0; batchStart < messageRowIDs.size(); batchStart += attachmentQueryBatchSize) {
+			List<Long> batch = messageRowIDs.subList(batchStart, Math.min(batchStart + attachmentQueryBatchSize, messageRowIDs.size()));
 			
-			//Resetting the item's depth
-			messageState.depth = 0;
+			Result<?> fileRecords = context.select(attachmentFields)
+					.from(DSL.table("message_attachment_join"))
+					.join(DSL.table("attachment")).on(field("message_attachment_join.attachment_id").eq(field("attachment.ROWID")))
+					.where(field("message_attachment_join.message_id", Long.class).in(batch))
+					.orderBy(field("message_attachment_join.ROWID"))
+					.fetch();
 			
-			//Getting the message states
-			int cacheState = messageStates.get(resultGuid).state;
-			
-			//Checking if the states don't match
-			if(cacheState != resultState) {
-				//Updating the state
-				messageState.state = resultState;
-				
-				//Logging a debug message
-				Main.getLogger().finest("New activity status for message " + resultGuid + ": " + cacheState + " -> " + resultState);
-				//Main.getLogger().finest("New activity status for message " + results.getValue(i, DSL.field("message.text", String.class)) + ": " + cacheState + " -> " + resultState);
+			for(int f = 0; f < fileRecords.size(); f++) {
+				long messageID = fileRecords.getValue(f, field("message_attachment_join.message_id", Long.class));
+				Long totalBytes = fileRecords.getValue(f, field("attachment.total_bytes", Long.class));
 				
-				//Adding the modifier to the list
-				list.add(new Blocks.ActivityStatusModifierInfo(resultGuid, resultState, Main.getTimeHelper().toUnixTime(results.getValue(i, field("message.date_read", Long.class)))));
+				attachmentRecords.computeIfAbsent(messageID, key -> new ArrayList<>(1)).add(new AttachmentRecord(
+						fileRecords.getValue(f, field("attachment.ROWID", Long.class)),
+						fileRecords.getValue(f, field("attachment.guid", String.class)),
+						fileRecords.getValue(f, field("attachment.filename", String.class)),
+						fileRecords.getValue(f, field("attachment.transfer_name", String.class)),
+						fileRecords.getValue(f, field("attachment.mime_type", String.class)),
+						totalBytes == null ? 0 : totalBytes,
+						supportsHiddenAttachments && Boolean.TRUE.equals(fileRecords.getValue(f, field("attachment.hide_attachment", Boolean.class)))
+				));
 			}
 		}
 		
-		//Increasing the depth of the elements in the list, and removing them if they are deeper than 5
-		messageStates.entrySet().removeIf(stringMessageStateEntry -> ++stringMessageStateEntry.getValue().depth > 5);
+		return attachmentRecords;
+	}
+	
+	private List<Blocks.ModifierInfo> getUnreadUpdates(Connection connection) {
+		//Creating the DSL context
+		DSLContext context = DSL.using(connection, SQLDialect.SQLITE);
 		
-		return list;
+		//Checking for activity status changes
+		return readReceiptTracker.update(context);
 	}
 	
 	private void indexTargetAvailability(Connection connection) throws SQLException {
@@ -1261,16 +1442,7 @@ public class DatabaseManager {
 		creationTargetingAvailabilityList.set(resultList);
 	}
 	
-	private static class MessageState {
-		private int state;
-		private int depth = 0;
-		
-		MessageState(int state) {
-			this.state = state;
-		}
-	}
-	
-	private static int determineMessageState(boolean isSent, boolean isDelivered, boolean isRead) {
+	static int determineMessageState(boolean isSent, boolean isDelivered, boolean isRead) {
 		//Determining the state code
 		int stateCode = Blocks.MessageInfo.stateCodeIdle;
 		if(isSent) stateCode = Blocks.MessageInfo.stateCodeSent;
@@ -1298,22 +1470,6 @@ public class DatabaseManager {
 		};
 	}
 	
-	private static byte[] calculateChecksum(File file) throws IOException, NoSuchAlgorithmException {
-		//Returning null if the file isn't ready
-		if(!file.exists() || !file.isFile() || !file.canRead()) return null;
-		
-		MessageDigest messageDigest = MessageDigest.getInstance(CommConst.hashAlgorithm);
-		try(InputStream inputStream = new DigestInputStream(new FileInputStream(file), messageDigest)) {
-			byte[] buffer = new byte[1024];
-			int lengthRead;
-			do {
-				lengthRead = inputStream.read(buffer);
-			} while(lengthRead != -1);
-		}
-		
-		return messageDigest.digest();
-	}
-	
 	private static class DataFetchResult {
 		final ArrayList<Blocks.ConversationItem> conversationItems;
 		final ArrayList<Blocks.ModifierInfo> isolatedModifiers;
@@ -1326,6 +1482,44 @@ public class DatabaseManager {
 		}
 	}
 	
+	/**
+	 * Maps message GUIDs to the messages found during a single fetch, so that tapbacks and stickers can be associated with their messages without scanning the item list
+	 * For a streamed fetch, only the GUIDs of messages in earlier chunks are kept, so that modifiers for them can still be recognized without holding every message in memory
+	 */
+	private static class MessageIndex {
+		private final Map<String, Blocks.MessageInfo> messages = new HashMap<>();
+		private final Set<String> retiredGUIDs = new HashSet<>();
+		
+		void add(Blocks.MessageInfo message) {
+			//Keeping the first occurrence, in case a message is joined to more than one chat
+			messages.putIfAbsent(message.guid, message);
+		}
+		
+		/**
+		 * Gets a message from the current chunk
+		 * @return the message, or NULL if the message isn't part of the current chunk
+		 */
+		Blocks.MessageInfo get(String guid) {
+			return messages.get(guid);
+		}
+		
+		/**
+		 * Checks if a message was part of an earlier chunk of this fetch
+		 */
+		boolean isRetired(String guid) {
+			return retiredGUIDs.contains(guid);
+		}
+		
+		/**
+		 * Releases the messages of the current chunk once they have been sent, so that a large streamed fetch doesn't keep every message in memory
+		 * The messages' GUIDs are kept, so that modifiers for them in later chunks can be recognized
+		 */
+		void retire() {
+			retiredGUIDs.addAll(messages.keySet());
+			messages.clear();
+		}
+	}
+	
 	public static class RetrievalFilter {
 		final Condition condition;
 		final int limit;
@@ -1356,7 +1550,27 @@ public class DatabaseManager {
 		}
 	}
 	
-	private static class TransientAttachmentInfo {
+	static class AttachmentRecord {
+		final long rowID;
+		final String guid;
+		final String filePath;
+		final String transferName;
+		final String mimeType;
+		final long totalBytes;
+		final boolean hidden;
+		
+		AttachmentRecord(long rowID, String guid, String filePath, String transferName, String mimeType, long totalBytes, boolean hidden) {
+			this.rowID = rowID;
+			this.guid = guid;
+			this.filePath = filePath;
+			this.transferName = transferName;
+			this.mimeType = mimeType;
+			this.totalBytes = totalBytes;
+			this.hidden = hidden;
+		}
+	}
+	
+	static class TransientAttachmentInfo {
 		final String guid;
 		final long messageDate;
 		final File file;
@@ -0,0 +1,39 @@
+package me.tagavari.airmessageserver.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long tasks wait in a queue, and how long they take to be serviced
+ */
+public class LatencyStatistics {
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalWaitTime = new LongAdder();
+	private final LongAdder totalServiceTime = new LongAdder();
+	private final LongAccumulator maxWaitTime = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator maxServiceTime = new LongAccumulator(Math::max, 0);
+	
+	/**
+	 * Records a serviced task
+	 * @param waitTime the time the task spent waiting, in nanoseconds
+	 * @param serviceTime the time the task took to service, in nanoseconds
+	 */
+	public void record(long waitTime, long serviceTime) {
+		count.increment();
+		totalWaitTime.add(waitTime);
+		totalServiceTime.add(serviceTime);
+		maxWaitTime.accumulate(waitTime);
+		maxServiceTime.accumulate(serviceTime);
+	}
+	
+	@Override
+	public String toString() {
+		long count = this.count.sum();
+		if(count == 0) return "no requests";
+		
+		return count + " request(s), " +
+				"wait avg " + TimeUnit.NANOSECONDS.toMillis(totalWaitTime.sum() / count) + " ms / max " + TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get()) + " ms, " +
+				"service avg " + TimeUnit.NANOSECONDS.toMillis(totalServiceTime.sum() / count) + " ms / max " + TimeUnit.NANOSECONDS.toMillis(maxServiceTime.get()) + " ms";
+	}
+}
\ No newline at end of file
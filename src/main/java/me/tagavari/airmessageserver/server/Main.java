@@ -156,6 +156,7 @@ public class Main {
 			//Stopping the services
 			ConnectionManager.stop();
 			DatabaseManager.stop();
+			AppleScriptManager.stop();
 			UpdateManager.stopUpdateChecker();
 			
 			//Deleting the uploads directory
@@ -293,7 +294,8 @@ public class Main {
 	}
 	
 	public static Logger getLogger() {
-		return logger;
+		//Falling back to the global logger when the server's main method isn't run, such as in benchmarks
+		return logger != null ? logger : Logger.getGlobal();
 	}
 	
 	public static SecureRandom getSecureRandom() {
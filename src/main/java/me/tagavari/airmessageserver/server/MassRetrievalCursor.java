@@ -0,0 +1,102 @@
+package me.tagavari.airmessageserver.server;
+
+import me.tagavari.airmessageserver.request.MassRetrievalRequest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records how far a mass retrieval has progressed, so that a client that reconnects partway through can continue where it left off
+ * A checkpoint is kept for each of the most recent packets, as the packets that were queued before a disconnect may never have reached the client
+ * A packet's attachments are streamed after it, so a client that received a packet may not have received all of its attachments,
+ * and they are sent again when resuming after that packet (a client that received the next packet has received them all, as they are sent in order)
+ */
+class MassRetrievalCursor {
+	private static final int checkpointLimit = 64; //The maximum amount of packets to keep checkpoints for
+	private static final long expiryTime = 10 * 60 * 1000; //10 minutes
+	
+	final String filterKey;
+	
+	//Maps the index of each packet to the checkpoint after it
+	private final Map<Integer, Checkpoint> checkpoints = new LinkedHashMap<>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Checkpoint> eldest) {
+			return size() > checkpointLimit;
+		}
+	};
+	private volatile long updateTime = System.currentTimeMillis();
+	
+	/**
+	 * Creates a new cursor
+	 * @param filterKey the filter key of the request this cursor is for
+	 */
+	MassRetrievalCursor(String filterKey) {
+		this.filterKey = filterKey;
+	}
+	
+	/**
+	 * Records the checkpoint after a packet, as soon as the packet has been queued for the client
+	 */
+	synchronized void addCheckpoint(int packetIndex, Checkpoint checkpoint) {
+		checkpoints.put(packetIndex, checkpoint);
+		updateTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Gets the checkpoint to continue from after a packet
+	 * @return the checkpoint, or NULL if there is no checkpoint for the packet
+	 */
+	synchronized Checkpoint getCheckpoint(int packetIndex) {
+		return checkpoints.get(packetIndex);
+	}
+	
+	/**
+	 * Checks if this cursor hasn't been updated for too long to be resumed
+	 */
+	boolean isExpired() {
+		return System.currentTimeMillis() - updateTime > expiryTime;
+	}
+	
+	/**
+	 * Gets a key that identifies the data a request asks for, so that a retrieval is only resumed by an identical request
+	 */
+	static String getFilterKey(MassRetrievalRequest request) {
+		return request.restrictMessages + ":" + request.timeSinceMessages + ":" +
+				request.downloadAttachments + ":" + request.restrictAttachments + ":" + request.timeSinceAttachments + ":" +
+				request.restrictAttachmentsSizes + ":" + request.attachmentSizeLimit + ":" +
+				Arrays.toString(request.attachmentFilterWhitelist) + ":" + Arrays.toString(request.attachmentFilterBlacklist) + ":" + request.attachmentFilterDLOutside;
+	}
+	
+	/**
+	 * The state after a packet: the position to continue fetching messages from, and the packet's attachments, which may not have fully reached the client
+	 */
+	static class Checkpoint {
+		static final Checkpoint start = new Checkpoint(Position.start, Collections.emptyList());
+		
+		final Position position;
+		final List<DatabaseManager.TransientAttachmentInfo> attachments;
+		
+		Checkpoint(Position position, List<DatabaseManager.TransientAttachmentInfo> attachments) {
+			this.position = position;
+			this.attachments = attachments;
+		}
+	}
+	
+	/**
+	 * A position in the message list, ordered by message row ID and then chat row ID
+	 */
+	static class Position {
+		static final Position start = new Position(-1, -1);
+		
+		final long rowID;
+		final long chatRowID;
+		
+		Position(long rowID, long chatRowID) {
+			this.rowID = rowID;
+			this.chatRowID = chatRowID;
+		}
+	}
+}
\ No newline at end of file
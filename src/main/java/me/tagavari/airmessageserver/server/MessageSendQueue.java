@@ -0,0 +1,161 @@
+package me.tagavari.airmessageserver.server;
+
+import io.sentry.Sentry;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Runs message send tasks on a pool of worker threads, so that slow AppleScript calls don't hold up the threads that read from clients
+ * Tasks for the same chat are run one at a time in the order they were submitted, while tasks for different chats can run in parallel
+ */
+public class MessageSendQueue {
+	private final ExecutorService executor;
+	private final int capacity;
+	
+	//Maps chat keys to the tasks waiting behind the chat's running task
+	private final Map<String, Deque<SendTask<?>>> chatQueues = new HashMap<>();
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	
+	private final LatencyStatistics statistics = new LatencyStatistics();
+	
+	/**
+	 * Creates a new send queue
+	 * @param workerCount the amount of tasks that can run at once
+	 * @param capacity the maximum amount of tasks that can be queued or running at once
+	 */
+	MessageSendQueue(int workerCount, int capacity) {
+		this.capacity = capacity;
+		
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+			Thread thread = new Thread(runnable, "Message send worker " + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Queues a send task
+	 * @param chatKey a key identifying the chat the task sends to, which determines the order tasks are run in
+	 * @param task the task to run on a worker thread
+	 * @param resultListener a listener to be called on the worker thread with the task's result
+	 * @return TRUE if the task was queued, or FALSE if the queue is full
+	 */
+	public <T> boolean submit(String chatKey, Supplier<T> task, Consumer<T> resultListener) {
+		//Rejecting the task if the queue is full
+		if(queueDepth.incrementAndGet() > capacity) {
+			queueDepth.decrementAndGet();
+			Main.getLogger().log(Level.WARNING, "Rejecting message send, " + capacity + " sends are already queued");
+			return false;
+		}
+		
+		SendTask<T> sendTask = new SendTask<>(chatKey, task, resultListener);
+		synchronized(chatQueues) {
+			Deque<SendTask<?>> chatQueue = chatQueues.get(chatKey);
+			if(chatQueue != null) {
+				//Waiting for the chat's running task to finish
+				chatQueue.add(sendTask);
+				return true;
+			}
+			
+			chatQueues.put(chatKey, new ArrayDeque<>());
+		}
+		
+		executor.execute(() -> run(sendTask));
+		return true;
+	}
+	
+	private void run(SendTask<?> sendTask) {
+		//Running the task
+		long startTime = System.nanoTime();
+		try {
+			sendTask.run();
+		} catch(RuntimeException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			Sentry.captureException(exception);
+		}
+		long endTime = System.nanoTime();
+		int depth = queueDepth.decrementAndGet();
+		
+		//Recording the timings
+		long waitTime = startTime - sendTask.queueTime;
+		long serviceTime = endTime - startTime;
+		statistics.record(waitTime, serviceTime);
+		Main.getLogger().finest("Ran message send after waiting " + TimeUnit.NANOSECONDS.toMillis(waitTime) + " ms, in " + TimeUnit.NANOSECONDS.toMillis(serviceTime) + " ms (" + depth + " remaining)");
+		
+		//Starting the chat's next task
+		SendTask<?> nextTask;
+		synchronized(chatQueues) {
+			Deque<SendTask<?>> chatQueue = chatQueues.get(sendTask.chatKey);
+			nextTask = chatQueue.poll();
+			if(nextTask == null) chatQueues.remove(sendTask.chatKey);
+		}
+		if(nextTask != null) executor.execute(() -> run(nextTask));
+	}
+	
+	/**
+	 * Gets the amount of tasks that are queued or running
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+	
+	/**
+	 * Gets a summary of the queue wait and send times
+	 */
+	public String getStatisticsSummary() {
+		return statistics.toString() + ", " + getQueueDepth() + " in queue";
+	}
+	
+	/**
+	 * Stops accepting tasks, and waits briefly for running tasks to finish
+	 */
+	void stop() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Gets the chat key for an existing chat
+	 */
+	public static String keyExisting(String chatGUID) {
+		return "existing:" + chatGUID;
+	}
+	
+	/**
+	 * Gets the chat key for a chat that is identified by its members
+	 */
+	public static String keyNew(String[] members, String service) {
+		String[] sortedMembers = members.clone();
+		Arrays.sort(sortedMembers);
+		return "new:" + service + ":" + String.join(",", sortedMembers);
+	}
+	
+	private static class SendTask<T> {
+		final String chatKey;
+		final Supplier<T> task;
+		final Consumer<T> resultListener;
+		final long queueTime = System.nanoTime();
+		
+		SendTask(String chatKey, Supplier<T> task, Consumer<T> resultListener) {
+			this.chatKey = chatKey;
+			this.task = task;
+			this.resultListener = resultListener;
+		}
+		
+		void run() {
+			resultListener.accept(task.get());
+		}
+	}
+}
\ No newline at end of file
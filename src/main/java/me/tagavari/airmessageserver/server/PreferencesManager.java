@@ -1,5 +1,6 @@
 package me.tagavari.airmessageserver.server;
 
+import me.tagavari.airmessageserver.connection.EncryptionHelper;
 import me.tagavari.airmessageserver.exception.KeychainPermissionException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -22,9 +23,17 @@ public class PreferencesManager {
 	public static final int accountTypeDirect = 0;
 	public static final int accountTypeConnect = 1;
 	
+	public static final int directTransportThreaded = 0;
+	public static final int directTransportNIO = 1;
+	
 	private static final int SCHEMA_VERSION = 1;
 	
 	public static final int defaultPort = 1359;
+	public static final int defaultDatabaseWorkers = 3;
+	public static final int defaultDatabaseInteractiveWorkers = 1;
+	public static final int defaultDirectTransport = directTransportThreaded;
+	public static final long defaultOutboundQueueLimit = 4 * 1024 * 1024; //4 MiB
+	public static final long defaultConversionCacheLimit = 1024 * 1024 * 1024; //1 GiB
 	
 	private static final String javaPrefRoot = "AirMessage";
 	private static final String javaPrefSchemaVer = "SchemaVersion";
@@ -34,6 +43,11 @@ public class PreferencesManager {
 	private static final String javaPrefGetBetaUpdates = "GetBetaUpdates";
 	private static final String javaPrefServerPort = "ServerPort";
 	private static final String javaPrefConnectUserID = "ConnectUserID";
+	private static final String javaPrefDatabaseWorkers = "DatabaseWorkers";
+	private static final String javaPrefDatabaseInteractiveWorkers = "DatabaseInteractiveWorkers";
+	private static final String javaPrefDirectTransport = "DirectTransport";
+	private static final String javaPrefOutboundQueueLimit = "OutboundQueueLimit";
+	private static final String javaPrefConversionCacheLimit = "ConversionCacheLimit";
 	
 	private static final Preferences preferencesNode = Preferences.userRoot().node(javaPrefRoot);
 	private static final String keychainService = "AirMessage";
@@ -291,16 +305,74 @@ public class PreferencesManager {
 		preferencesNode.put(javaPrefConnectUserID, userID);
 	}
 	
+	public static int getPrefDatabaseWorkers() {
+		return preferencesNode.getInt(javaPrefDatabaseWorkers, defaultDatabaseWorkers);
+	}
+	
+	public static void setPrefDatabaseWorkers(int workers) {
+		preferencesNode.putInt(javaPrefDatabaseWorkers, workers);
+	}
+	
+	//The amount of database workers that only fulfill interactive requests
+	public static int getPrefDatabaseInteractiveWorkers() {
+		return preferencesNode.getInt(javaPrefDatabaseInteractiveWorkers, defaultDatabaseInteractiveWorkers);
+	}
+	
+	public static void setPrefDatabaseInteractiveWorkers(int workers) {
+		preferencesNode.putInt(javaPrefDatabaseInteractiveWorkers, workers);
+	}
+	
+	//Whether direct connections are served by a thread per client, or by a single selector thread
+	public static int getPrefDirectTransport() {
+		return preferencesNode.getInt(javaPrefDirectTransport, defaultDirectTransport);
+	}
+	
+	public static void setPrefDirectTransport(int transport) {
+		preferencesNode.putInt(javaPrefDirectTransport, transport);
+	}
+	
+	//The amount of bytes that can be queued for a client before bulk transfers wait for it to catch up
+	public static long getPrefOutboundQueueLimit() {
+		return preferencesNode.getLong(javaPrefOutboundQueueLimit, defaultOutboundQueueLimit);
+	}
+	
+	public static void setPrefOutboundQueueLimit(long limit) {
+		preferencesNode.putLong(javaPrefOutboundQueueLimit, limit);
+	}
+	
+	//The amount of bytes of converted attachments that are kept on disk
+	public static long getPrefConversionCacheLimit() {
+		return preferencesNode.getLong(javaPrefConversionCacheLimit, defaultConversionCacheLimit);
+	}
+	
+	public static void setPrefConversionCacheLimit(long limit) {
+		preferencesNode.putLong(javaPrefConversionCacheLimit, limit);
+	}
+	
 	public static String getPrefPassword() {
 		return prefCachePassword.get();
 	}
 	
 	public static boolean setPrefPassword(String password) {
 		boolean result = writeKeychain(keychainAccountPassword, password);
-		if(result) prefCachePassword.set(password);
+		if(result) {
+			prefCachePassword.set(password);
+			
+			//Discarding keys derived from the old password
+			EncryptionHelper.invalidateKeyCache();
+		}
 		return result;
 	}
 	
+	/**
+	 * Sets the password for this session only, without writing it to the keychain
+	 * Used by tools and benchmarks that run without loading the preferences
+	 */
+	public static void overridePrefPassword(String password) {
+		prefCachePassword.set(password);
+		EncryptionHelper.invalidateKeyCache();
+	}
+	
 	private static String getPrefInstallationID() {
 		return prefCacheInstallationID.get();
 	}
@@ -0,0 +1,64 @@
+package me.tagavari.airmessageserver.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs commands as child processes
+ * The program can be overridden, so that a stand-in script can be used in place of osascript on systems without it
+ */
+class ProcessCommandExecutor implements CommandExecutor {
+	private final String programOverride;
+	
+	/**
+	 * Creates a new process command executor
+	 * @param programOverride the program to run in place of each command's own program, or NULL to run commands as-is
+	 */
+	ProcessCommandExecutor(String programOverride) {
+		this.programOverride = programOverride;
+	}
+	
+	@Override
+	public Result execute(String[] command) throws IOException {
+		//Replacing the program
+		if(programOverride != null) {
+			command = command.clone();
+			command[0] = programOverride;
+		}
+		
+		Process process = Runtime.getRuntime().exec(command);
+		
+		//Reading the output in the background, so that the process can't block on a full pipe while the errors are being read
+		CompletableFuture<List<String>> outputFuture = CompletableFuture.supplyAsync(() -> {
+			try {
+				return readLines(process.getInputStream());
+			} catch(IOException exception) {
+				throw new RuntimeException(exception);
+			}
+		});
+		List<String> errorLines = readLines(process.getErrorStream());
+		
+		try {
+			return new Result(outputFuture.get(), errorLines);
+		} catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new IOException(exception);
+		} catch(ExecutionException exception) {
+			throw new IOException(exception.getCause());
+		}
+	}
+	
+	private static List<String> readLines(InputStream inputStream) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+		List<String> lineList = new ArrayList<>(1);
+		String line;
+		while((line = reader.readLine()) != null) lineList.add(line);
+		return lineList;
+	}
+}
\ No newline at end of file
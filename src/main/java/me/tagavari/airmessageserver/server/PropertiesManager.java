@@ -5,6 +5,9 @@ import java.io.InputStream;
 import java.util.Properties;
 
 public class PropertiesManager {
+	//A system property that replaces the Connect endpoint from the secrets file, to connect to a local relay
+	public static final String connectEndpointOverrideProperty = "airmessage.connectEndpoint";
+	
 	private static String connectEndpoint;
 	
 	public static void initializeProperties() throws IOException {
@@ -17,6 +20,7 @@ public class PropertiesManager {
 	}
 	
 	public static String getConnectEndpoint() {
-		return connectEndpoint;
+		String override = System.getProperty(connectEndpointOverrideProperty);
+		return override != null ? override : connectEndpoint;
 	}
 }
\ No newline at end of file
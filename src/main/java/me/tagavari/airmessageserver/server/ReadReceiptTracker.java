@@ -0,0 +1,151 @@
+package me.tagavari.airmessageserver.server;
+
+import me.tagavari.airmessageserver.common.Blocks;
+import me.tagavari.airmessageserver.helper.LongLongMap;
+import org.jooq.*;
+import org.jooq.impl.DSL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.jooq.impl.DSL.field;
+
+/**
+ * Tracks the activity status (sent, delivered, read) of the latest outgoing message in each chat, and reports when it changes
+ * Only messages past the row ID watermark and messages whose status can still change are queried, so each scan costs time proportional to the amount of active chats, rather than the amount of chats
+ */
+class ReadReceiptTracker {
+	private static final int maxWatchedMessages = 4096; //The maximum amount of messages to watch, the oldest of which are dropped first
+	private static final int queryBatchSize = 500;
+	
+	//Maps the row ID of each watched message to its packed chat row ID and state
+	private final LongLongMap watchedMessages = new LongLongMap();
+	//Maps the row ID of each chat to the row ID of its watched message
+	private final LongLongMap chatMessages = new LongLongMap();
+	//The highest message row ID that has been seen
+	private long rowIDWatermark = -1;
+	
+	/**
+	 * Checks for changes in message activity status since the last call
+	 * The first call only records the current state of each chat
+	 * @param context the DSL context to access the database with
+	 * @return a list of activity status modifiers for messages whose status has changed
+	 */
+	List<Blocks.ModifierInfo> update(DSLContext context) {
+		List<Blocks.ModifierInfo> list = new ArrayList<>();
+		
+		if(rowIDWatermark == -1) {
+			seed(context);
+			return list;
+		}
+		
+		//Checking watched messages for status changes
+		if(!watchedMessages.isEmpty()) {
+			List<Long> rowIDs = new ArrayList<>(watchedMessages.size());
+			watchedMessages.forEachKey(rowIDs::add);
+			
+			for(int batchStart = 0; batchStart < rowIDs.size(); batchStart += queryBatchSize) {
+				List<Long> batch = rowIDs.subList(batchStart, Math.min(batchStart + queryBatchSize, rowIDs.size()));
+				Result<Record6<Long, String, Boolean, Boolean, Boolean, Long>> results = context.select(field("message.ROWID", Long.class), field("message.guid", String.class), field("message.is_sent", Boolean.class), field("message.is_delivered", Boolean.class), field("message.is_read", Boolean.class), field("message.date_read", Long.class))
+						.from(DSL.table("message"))
+						.where(field("message.ROWID", Long.class).in(batch))
+						.fetch();
+				
+				for(Record6<Long, String, Boolean, Boolean, Boolean, Long> result : results) {
+					long rowID = result.value1();
+					long packedState = watchedMessages.get(rowID, -1);
+					int cacheState = unpackState(packedState);
+					int resultState = DatabaseManager.determineMessageState(result.value3(), result.value4(), result.value5());
+					if(cacheState == resultState) continue;
+					
+					//Updating the state
+					long chatRowID = unpackChatRowID(packedState);
+					if(resultState == Blocks.MessageInfo.stateCodeRead) unwatch(rowID, chatRowID); //Read messages can't change any further
+					else watchedMessages.put(rowID, packState(chatRowID, resultState));
+					
+					//Logging a debug message
+					Main.getLogger().finest("New activity status for message " + result.value2() + ": " + cacheState + " -> " + resultState);
+					
+					//Adding the modifier to the list
+					list.add(new Blocks.ActivityStatusModifierInfo(result.value2(), resultState, Main.getTimeHelper().toUnixTime(result.value6())));
+				}
+			}
+		}
+		
+		//Watching new outgoing messages (without reporting them, as their initial state is sent to clients with the message itself)
+		Result<Record6<Long, Long, Boolean, Boolean, Boolean, Boolean>> results = context.select(field("message.ROWID", Long.class), field("chat_message_join.chat_id", Long.class), field("message.is_sent", Boolean.class), field("message.is_delivered", Boolean.class), field("message.is_read", Boolean.class), field("message.is_from_me", Boolean.class))
+				.from(DSL.table("message"))
+				.join(DSL.table("chat_message_join")).on(field("message.ROWID").eq(field("chat_message_join.message_id")))
+				.where(field("message.ROWID", Long.class).greaterThan(rowIDWatermark))
+				.orderBy(field("message.ROWID"))
+				.fetch();
+		for(Record6<Long, Long, Boolean, Boolean, Boolean, Boolean> result : results) {
+			long rowID = result.value1();
+			rowIDWatermark = Math.max(rowIDWatermark, rowID);
+			if(!result.value6()) continue;
+			
+			watch(rowID, result.value2(), DatabaseManager.determineMessageState(result.value3(), result.value4(), result.value5()));
+		}
+		
+		return list;
+	}
+	
+	/**
+	 * Records the latest outgoing message of every chat, and the row ID watermark
+	 */
+	private void seed(DSLContext context) {
+		Result<Record5<Long, Long, Boolean, Boolean, Boolean>> results = context.select(DSL.max(field("message.ROWID", Long.class)), field("chat_message_join.chat_id", Long.class), field("message.is_sent", Boolean.class), field("message.is_delivered", Boolean.class), field("message.is_read", Boolean.class))
+				.from(DSL.table("message"))
+				.join(DSL.table("chat_message_join")).on(field("message.ROWID").eq(field("chat_message_join.message_id")))
+				.where(field("message.is_from_me").isTrue())
+				.groupBy(field("chat_message_join.chat_id"))
+				.fetch();
+		for(Record5<Long, Long, Boolean, Boolean, Boolean> result : results) {
+			watch(result.value1(), result.value2(), DatabaseManager.determineMessageState(result.value3(), result.value4(), result.value5()));
+		}
+		
+		Long maxRowID = context.select(DSL.max(field("message.ROWID", Long.class))).from(DSL.table("message")).fetchOne(0, Long.class);
+		rowIDWatermark = maxRowID == null ? 0 : maxRowID;
+	}
+	
+	/**
+	 * Starts watching a message, replacing the message previously watched for its chat
+	 */
+	private void watch(long rowID, long chatRowID, int state) {
+		long previousRowID = chatMessages.get(chatRowID, -1);
+		if(previousRowID != -1) {
+			if(previousRowID > rowID) return; //Keeping the newer message
+			watchedMessages.remove(previousRowID);
+			chatMessages.remove(chatRowID);
+		}
+		
+		//Read messages can't change any further
+		if(state == Blocks.MessageInfo.stateCodeRead) return;
+		
+		watchedMessages.put(rowID, packState(chatRowID, state));
+		chatMessages.put(chatRowID, rowID);
+		
+		//Dropping the oldest message if there are too many
+		if(watchedMessages.size() > maxWatchedMessages) {
+			long oldestRowID = watchedMessages.minKey(-1);
+			unwatch(oldestRowID, unpackChatRowID(watchedMessages.get(oldestRowID, -1)));
+		}
+	}
+	
+	private void unwatch(long rowID, long chatRowID) {
+		watchedMessages.remove(rowID);
+		if(chatMessages.get(chatRowID, -1) == rowID) chatMessages.remove(chatRowID);
+	}
+	
+	private static long packState(long chatRowID, int state) {
+		return chatRowID << 8 | state;
+	}
+	
+	private static long unpackChatRowID(long packedState) {
+		return packedState >>> 8;
+	}
+	
+	private static int unpackState(long packedState) {
+		return (int) (packedState & 0xFF);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,186 @@
+package me.tagavari.airmessageserver.server;
+
+import me.tagavari.airmessageserver.connection.ClientRegistration;
+import me.tagavari.airmessageserver.request.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queues database requests for the request workers
+ * Interactive requests are always handed out before bulk requests, and clients take turns within each priority class so that one client can't starve the others
+ * A client only has one request of each priority class in service at a time, so its requests are still fulfilled in order
+ */
+class RequestScheduler {
+	static final int priorityInteractive = 0;
+	static final int priorityBulk = 1;
+	
+	private final Lock lock = new ReentrantLock();
+	private final Condition requestAvailable = lock.newCondition();
+	
+	private final PriorityClass[] priorityClasses = {new PriorityClass(), new PriorityClass()};
+	private int generation = 0; //Incremented whenever the scheduler is cleared, so that requests handed out before then don't release clients' turns afterwards
+	
+	private final Map<String, LatencyStatistics> statisticsMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * Gets the priority class of a request
+	 */
+	static int getPriority(DBRequest request) {
+		if(request instanceof LiteConversationRequest || request instanceof LiteThreadRequest || request instanceof ConversationInfoRequest || request instanceof ReadReceiptRequest) return priorityInteractive;
+		else return priorityBulk;
+	}
+	
+	/**
+	 * Adds a request to the back of its client's queue
+	 */
+	void add(DBRequest request) {
+		ScheduledRequest scheduledRequest = new ScheduledRequest(request, getPriority(request), System.nanoTime());
+		
+		lock.lock();
+		try {
+			priorityClasses[scheduledRequest.priority].add(scheduledRequest);
+			requestAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for the next request to fulfill
+	 * {@link #complete(ScheduledRequest)} must be called once the request has been fulfilled
+	 * @param interactiveOnly whether to only accept interactive requests
+	 * @return the request to fulfill
+	 */
+	ScheduledRequest take(boolean interactiveOnly) throws InterruptedException {
+		lock.lock();
+		try {
+			while(true) {
+				ScheduledRequest request = priorityClasses[priorityInteractive].poll();
+				if(request == null && !interactiveOnly) request = priorityClasses[priorityBulk].poll();
+				
+				if(request != null) {
+					request.startTime = System.nanoTime();
+					request.generation = generation;
+					return request;
+				}
+				
+				requestAvailable.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Marks a request as fulfilled, allowing the client's next request of the same priority class to be handed out
+	 */
+	void complete(ScheduledRequest request) {
+		long endTime = System.nanoTime();
+		
+		lock.lock();
+		try {
+			//Ignoring requests that were handed out before the scheduler was cleared, as their clients' turns have already been reset
+			if(request.generation == generation) {
+				priorityClasses[request.priority].release(request.request.connection);
+				requestAvailable.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		//Recording the timings
+		String requestType = request.request.getClass().getSimpleName();
+		long waitTime = request.startTime - request.queueTime;
+		long serviceTime = endTime - request.startTime;
+		statisticsMap.computeIfAbsent(requestType, key -> new LatencyStatistics()).record(waitTime, serviceTime);
+		Main.getLogger().finest("Fulfilled " + requestType + " after waiting " + TimeUnit.NANOSECONDS.toMillis(waitTime) + " ms, in " + TimeUnit.NANOSECONDS.toMillis(serviceTime) + " ms");
+	}
+	
+	/**
+	 * Removes all waiting requests, and resets the turns of clients with requests in service
+	 */
+	void clear() {
+		lock.lock();
+		try {
+			generation++;
+			for(PriorityClass priorityClass : priorityClasses) priorityClass.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets a summary of the queue wait and service times of each request type
+	 */
+	String getStatisticsSummary() {
+		StringBuilder stringBuilder = new StringBuilder();
+		for(Map.Entry<String, LatencyStatistics> entry : new TreeMap<>(statisticsMap).entrySet()) {
+			if(stringBuilder.length() > 0) stringBuilder.append('\n');
+			stringBuilder.append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return stringBuilder.toString();
+	}
+	
+	static class ScheduledRequest {
+		final DBRequest request;
+		final int priority;
+		final long queueTime;
+		long startTime;
+		int generation;
+		
+		private ScheduledRequest(DBRequest request, int priority, long queueTime) {
+			this.request = request;
+			this.priority = priority;
+			this.queueTime = queueTime;
+		}
+	}
+	
+	/**
+	 * Holds the waiting requests of a single priority class, and rotates between clients
+	 */
+	private static class PriorityClass {
+		private final Map<ClientRegistration, Deque<ScheduledRequest>> clientQueues = new HashMap<>();
+		private final Deque<ClientRegistration> readyClients = new ArrayDeque<>(); //Clients with waiting requests and no request in service, in turn order
+		private final Set<ClientRegistration> busyClients = new HashSet<>(); //Clients with a request in service
+		
+		void add(ScheduledRequest request) {
+			ClientRegistration client = request.request.connection;
+			Deque<ScheduledRequest> queue = clientQueues.computeIfAbsent(client, key -> new ArrayDeque<>());
+			queue.add(request);
+			
+			//Giving the client a turn if it was idle
+			if(queue.size() == 1 && !busyClients.contains(client)) readyClients.add(client);
+		}
+		
+		ScheduledRequest poll() {
+			//Getting the client whose turn it is
+			ClientRegistration client = readyClients.poll();
+			if(client == null) return null;
+			
+			Deque<ScheduledRequest> queue = clientQueues.get(client);
+			ScheduledRequest request = queue.poll();
+			if(queue.isEmpty()) clientQueues.remove(client);
+			busyClients.add(client);
+			
+			return request;
+		}
+		
+		void release(ClientRegistration client) {
+			busyClients.remove(client);
+			
+			//Sending the client to the back of the line if it has more requests
+			if(clientQueues.containsKey(client)) readyClients.add(client);
+		}
+		
+		void clear() {
+			clientQueues.clear();
+			readyClients.clear();
+			busyClients.clear();
+		}
+	}
+}
\ No newline at end of file